@@ -0,0 +1,196 @@
+package cloud.cleo.clamav.backfill;
+
+import static cloud.cleo.clamav.ScanStatus.SCAN_TAG_NAME;
+import cloud.cleo.clamav.lambda.ScanRequest;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+/**
+ * Scan objects that existed before the scanner was deployed (S3 only sends events for new objects). Objects come from a
+ * ListObjectsV2 listing of a bucket/prefix or from an S3 Inventory manifest, and are queued on the scan queue in the
+ * same S3 event format S3 sends, so the scanners (and large object routing) treat them like any other upload.
+ *
+ * Objects that already have a scan-status tag are skipped. The SQS queue absorbs bursts, but the rate objects are
+ * queued at is limited so the scanners are not flooded with a few million messages at once. Progress is checkpointed to
+ * a file, run again with the same settings to resume.
+ *
+ * Configured with environment variables:
+ * <ul>
+ * <li>SCAN_QUEUE_URL - the scan queue (ClamavScanQueueUrl stack output), required</li>
+ * <li>BACKFILL_BUCKET and optional BACKFILL_PREFIX - list objects to scan</li>
+ * <li>BACKFILL_MANIFEST - or s3://bucket/path/manifest.json of a CSV S3 Inventory report</li>
+ * <li>BACKFILL_RATE - objects queued per second (default 50, 0 for no limit)</li>
+ * <li>BACKFILL_CONCURRENCY - objects being checked/queued at once (default 64)</li>
+ * <li>BACKFILL_CHECKPOINT - checkpoint file (default backfill.checkpoint)</li>
+ * <li>BACKFILL_SKIP_TAGGED - skip objects with a scan-status tag (default true)</li>
+ * </ul>
+ *
+ * @author sjensen
+ */
+public class Backfill {
+
+    final static Logger log = LogManager.getLogger(Backfill.class);
+
+    final static String QUEUE_URL = getEnv("SCAN_QUEUE_URL", null);
+    final static String BUCKET = getEnv("BACKFILL_BUCKET", null);
+    final static String PREFIX = getEnv("BACKFILL_PREFIX", "");
+    final static String MANIFEST = getEnv("BACKFILL_MANIFEST", null);
+    final static double RATE = Double.parseDouble(getEnv("BACKFILL_RATE", "50"));
+    final static int CONCURRENCY = Integer.parseInt(getEnv("BACKFILL_CONCURRENCY", "64"));
+    final static Path CHECKPOINT = Path.of(getEnv("BACKFILL_CHECKPOINT", "backfill.checkpoint"));
+    final static boolean SKIP_TAGGED = Boolean.parseBoolean(getEnv("BACKFILL_SKIP_TAGGED", "true"));
+
+    // Seconds between progress reports
+    final static int REPORT_SECONDS = 10;
+
+    final S3AsyncClient s3Client;
+
+    final SqsAsyncClient sqsClient;
+
+    final String queueUrl;
+
+    final double rate;
+
+    final RateLimiter rateLimiter;
+
+    final int concurrency;
+
+    final Semaphore inFlight;
+
+    final Progress progress = new Progress();
+
+    public Backfill(S3AsyncClient s3Client, SqsAsyncClient sqsClient, String queueUrl, double rate, int concurrency) {
+        this.s3Client = s3Client;
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+        this.rate = rate;
+        this.rateLimiter = new RateLimiter(rate);
+        this.concurrency = concurrency;
+        this.inFlight = new Semaphore(concurrency);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (QUEUE_URL == null || (BUCKET == null) == (MANIFEST == null)) {
+            System.err.println("Set SCAN_QUEUE_URL and either BACKFILL_BUCKET (optionally BACKFILL_PREFIX) or BACKFILL_MANIFEST");
+            System.exit(2);
+        }
+
+        try (S3AsyncClient s3 = S3AsyncClient.crtCreate();
+                SqsAsyncClient sqs = SqsAsyncClient.builder().httpClientBuilder(AwsCrtAsyncHttpClient.builder()).build()) {
+            final String description = MANIFEST != null ? MANIFEST : "s3://" + BUCKET + "/" + PREFIX;
+            final Checkpoint checkpoint = new Checkpoint(CHECKPOINT, description);
+            final String position = checkpoint.load();
+            final ObjectSource source = MANIFEST != null
+                    ? new InventorySource(s3, MANIFEST, position)
+                    : new ListingSource(s3, BUCKET, PREFIX, position);
+
+            final boolean ok = new Backfill(s3, sqs, QUEUE_URL, RATE, CONCURRENCY).run(source, checkpoint);
+            System.exit(ok ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queue everything from the source.
+     *
+     * @param source
+     * @param checkpoint
+     * @return false when any object could not be queued (run again to retry from the checkpoint)
+     * @throws Exception
+     */
+    public boolean run(ObjectSource source, Checkpoint checkpoint) throws Exception {
+        log.info("Backfilling {} to {} at {} objects/sec, concurrency {}", source.describe(), queueUrl,
+                rate > 0 ? rate : "unlimited", concurrency);
+
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "backfill-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> progress.report(checkpoint.position()), REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+        try {
+            ObjectSource.Page page;
+            while (!checkpoint.hasFailed() && (page = source.next()) != null) {
+                progress.listed.add(page.items().size());
+                final Checkpoint.Tracked tracked = checkpoint.track(page);
+                for (ObjectSource.Item item : page.items()) {
+                    inFlight.acquire();
+                    process(item).whenComplete((queued, e) -> {
+                        inFlight.release();
+                        tracked.done(e == null);
+                    });
+                }
+            }
+            // Wait for everything in flight
+            inFlight.acquire(concurrency);
+        } finally {
+            reporter.shutdownNow();
+            progress.report(checkpoint.position());
+        }
+
+        if (checkpoint.hasFailed()) {
+            log.error("{} objects could not be queued, run again to resume from {}", progress.failed.sum(), checkpoint.position());
+            return false;
+        }
+        log.info("Backfill of {} complete", source.describe());
+        return true;
+    }
+
+    /**
+     * Check the tags and queue the object if it has never been scanned.
+     *
+     * @return true if queued, false if skipped
+     */
+    private CompletableFuture<Boolean> process(ObjectSource.Item item) {
+        return isScanned(item).thenCompose(scanned -> {
+            if (scanned) {
+                progress.skipped.increment();
+                return CompletableFuture.completedFuture(false);
+            }
+            final ScanRequest request = new ScanRequest(item.bucket(), item.key());
+            return rateLimiter.acquire()
+                    .thenCompose(v -> sqsClient.sendMessage(b -> b.queueUrl(queueUrl).messageBody(request.toJson(item.size()))))
+                    .thenApply(r -> {
+                        progress.queued.increment();
+                        progress.queuedBytes.add(item.size());
+                        return true;
+                    });
+        }).whenComplete((queued, e) -> {
+            if (e != null) {
+                progress.failed.increment();
+                log.error("Failed to queue s3://{}/{}", item.bucket(), item.key(), e);
+            }
+        });
+    }
+
+    private CompletableFuture<Boolean> isScanned(ObjectSource.Item item) {
+        if (!SKIP_TAGGED) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return s3Client.getObjectTagging(b -> b.bucket(item.bucket()).key(item.key()))
+                .thenApply(r -> r.tagSet().stream().anyMatch(t -> t.key().equals(SCAN_TAG_NAME)))
+                .exceptionally(e -> {
+                    if (e instanceof CompletionException && e.getCause() instanceof NoSuchKeyException) {
+                        // Deleted since it was listed, nothing to scan
+                        return true;
+                    }
+                    throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+                });
+    }
+
+    private static String getEnv(String name, String defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+}
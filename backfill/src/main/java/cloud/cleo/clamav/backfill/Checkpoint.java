@@ -0,0 +1,146 @@
+package cloud.cleo.clamav.backfill;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records how far the backfill got so a restart picks up where it left off. Objects complete out of order, so the
+ * position only moves past a page once every object in it and in all earlier pages is done. A failed object stops the
+ * position from moving at all, so it is retried on the next run (at the cost of requeueing the objects after it).
+ *
+ * The file holds the source description on the first line and the position on the second.
+ *
+ * @author sjensen
+ */
+public class Checkpoint {
+
+    final static Logger log = LogManager.getLogger(Checkpoint.class);
+
+    final Path file;
+
+    final String source;
+
+    // Pages not yet fully done, oldest first
+    final Deque<Tracked> pages = new ArrayDeque<>();
+
+    String position;
+
+    boolean failed;
+
+    public Checkpoint(Path file, String source) {
+        this.file = file;
+        this.source = source;
+    }
+
+    /**
+     * Position saved by a previous run of the same source.
+     *
+     * @return null when starting from the beginning
+     * @throws IOException
+     */
+    public String load() throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final List<String> lines = Files.readAllLines(file);
+        if (lines.size() < 2 || !lines.get(0).equals(source)) {
+            log.warn("Checkpoint {} is for a different source, starting from the beginning", file);
+            return null;
+        }
+        log.info("Resuming {} after {}", source, lines.get(1));
+        return position = lines.get(1);
+    }
+
+    /**
+     * Start tracking a page.
+     *
+     * @param page
+     * @return call {@link Tracked#done(boolean)} once for each item of the page
+     */
+    public synchronized Tracked track(ObjectSource.Page page) {
+        final Tracked tracked = new Tracked(page.position(), page.items().size());
+        pages.add(tracked);
+        advance();
+        return tracked;
+    }
+
+    /**
+     * Position saved so far.
+     *
+     * @return
+     */
+    public synchronized String position() {
+        return position;
+    }
+
+    /**
+     * Whether any object failed, the position no longer moves once one has.
+     *
+     * @return
+     */
+    public synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    private void advance() {
+        boolean moved = false;
+        while (!failed && !pages.isEmpty() && pages.peek().remaining == 0) {
+            final String next = pages.poll().position;
+            if (next != null) {
+                position = next;
+                moved = true;
+            }
+        }
+        if (moved) {
+            save();
+        }
+    }
+
+    private void save() {
+        try {
+            final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, List.of(source, position));
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Completion tracking for one page.
+     */
+    public class Tracked {
+
+        final String position;
+
+        int remaining;
+
+        Tracked(String position, int remaining) {
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        /**
+         * One object of the page is finished (queued or skipped).
+         *
+         * @param success false when the object could not be queued
+         */
+        public void done(boolean success) {
+            synchronized (Checkpoint.this) {
+                remaining--;
+                if (!success) {
+                    failed = true;
+                }
+                advance();
+            }
+        }
+    }
+}
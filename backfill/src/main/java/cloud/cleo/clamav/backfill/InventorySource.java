@@ -0,0 +1,169 @@
+package cloud.cleo.clamav.backfill;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Objects listed in an S3 Inventory report, which is far cheaper than listing buckets with millions of objects. Only
+ * the CSV format is read (ORC and Parquet would need their own readers). With versioned inventories only the current
+ * version of each object is used.
+ *
+ * The resume position is "file index:line" within the manifest.
+ *
+ * @author sjensen
+ */
+public class InventorySource implements ObjectSource {
+
+    final static Logger log = LogManager.getLogger(InventorySource.class);
+
+    final static int PAGE_SIZE = 1000;
+
+    final S3AsyncClient s3Client;
+
+    final String manifest;
+
+    // Bucket the inventory files are in
+    final String destinationBucket;
+
+    final List<String> files;
+
+    final List<String> schema;
+
+    int fileIndex;
+
+    long line;
+
+    // Lines of the current file already queued before a restart
+    long skipLines;
+
+    BufferedReader reader;
+
+    /**
+     * @param s3Client
+     * @param manifest s3://bucket/path/manifest.json
+     * @param position resume position, null to start at the beginning
+     * @throws IOException
+     */
+    public InventorySource(S3AsyncClient s3Client, String manifest, String position) throws IOException {
+        this.s3Client = s3Client;
+        this.manifest = manifest;
+
+        final URI uri = URI.create(manifest);
+        final JsonNode json = JsonNode.parser().parse(s3Client.getObject(b -> b.bucket(uri.getHost())
+                .key(uri.getPath().substring(1)), AsyncResponseTransformer.toBytes()).join().asInputStream());
+
+        final String format = json.field("fileFormat").map(JsonNode::asString).orElse("CSV");
+        if (!"CSV".equalsIgnoreCase(format)) {
+            throw new IllegalArgumentException("Only CSV inventory reports are supported, manifest is " + format);
+        }
+        // arn:aws:s3:::bucket
+        final String arn = json.field("destinationBucket").map(JsonNode::asString).orElseThrow();
+        this.destinationBucket = arn.substring(arn.lastIndexOf(':') + 1);
+        this.schema = Arrays.stream(json.field("fileSchema").map(JsonNode::asString).orElseThrow().split(","))
+                .map(String::trim).toList();
+        this.files = json.field("files").orElseThrow().asArray().stream()
+                .map(f -> f.field("key").map(JsonNode::asString).orElseThrow())
+                .toList();
+        for (String column : List.of("Bucket", "Key", "Size")) {
+            if (!schema.contains(column)) {
+                throw new IllegalArgumentException("Inventory must include the " + column + " field");
+            }
+        }
+
+        if (position != null) {
+            final String[] parts = position.split(":");
+            fileIndex = Integer.parseInt(parts[0]);
+            skipLines = Long.parseLong(parts[1]);
+        }
+        log.info("Inventory has {} files, starting at file {} line {}", files.size(), fileIndex, skipLines);
+    }
+
+    @Override
+    public Page next() throws IOException {
+        final List<Item> items = new ArrayList<>(PAGE_SIZE);
+        while (items.size() < PAGE_SIZE) {
+            if (reader == null) {
+                if (fileIndex >= files.size()) {
+                    break;
+                }
+                open(files.get(fileIndex));
+            }
+            final String text = reader.readLine();
+            if (text == null) {
+                reader.close();
+                reader = null;
+                fileIndex++;
+                line = 0;
+                continue;
+            }
+            line++;
+            if (line <= skipLines) {
+                continue;
+            }
+            final Item item = parse(text);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        skipLines = 0;
+        if (items.isEmpty() && reader == null && fileIndex >= files.size()) {
+            return null;
+        }
+        return new Page(items, fileIndex + ":" + line);
+    }
+
+    @Override
+    public String describe() {
+        return manifest;
+    }
+
+    private void open(String key) throws IOException {
+        log.info("Reading inventory file {} of {}: {}", fileIndex + 1, files.size(), key);
+        InputStream in = s3Client.getObject(b -> b.bucket(destinationBucket).key(key),
+                AsyncResponseTransformer.toBlockingInputStream()).join();
+        if (key.endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * One CSV line, keys are URL encoded so fields never contain quotes or commas.
+     *
+     * @return null for rows that should not be scanned (old versions, delete markers, folders)
+     */
+    private Item parse(String text) {
+        final List<String> fields = Arrays.stream(text.split(",", -1))
+                .map(f -> f.length() >= 2 && f.startsWith("\"") && f.endsWith("\"") ? f.substring(1, f.length() - 1) : f)
+                .toList();
+        if (!"true".equalsIgnoreCase(field(fields, "IsLatest", "true"))
+                || "true".equalsIgnoreCase(field(fields, "IsDeleteMarker", "false"))) {
+            return null;
+        }
+        final String key = URLDecoder.decode(field(fields, "Key", ""), StandardCharsets.UTF_8);
+        final String size = field(fields, "Size", "");
+        if (key.isEmpty() || size.isEmpty() || (key.endsWith("/") && "0".equals(size))) {
+            return null;
+        }
+        return new Item(field(fields, "Bucket", ""), key, Long.parseLong(size));
+    }
+
+    private String field(List<String> fields, String name, String defaultValue) {
+        final int index = schema.indexOf(name);
+        return index < 0 || index >= fields.size() ? defaultValue : fields.get(index);
+    }
+}
@@ -0,0 +1,61 @@
+package cloud.cleo.clamav.backfill;
+
+import java.util.List;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+
+/**
+ * Objects under a prefix, listed with ListObjectsV2. Keys are returned in order, so the last key of a page is all that
+ * is needed to resume (as StartAfter).
+ *
+ * @author sjensen
+ */
+public class ListingSource implements ObjectSource {
+
+    final S3AsyncClient s3Client;
+
+    final String bucket;
+
+    final String prefix;
+
+    // Resume after this key on the first request, null to start from the beginning
+    String startAfter;
+
+    String continuationToken;
+
+    boolean done;
+
+    public ListingSource(S3AsyncClient s3Client, String bucket, String prefix, String startAfter) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.startAfter = startAfter;
+    }
+
+    @Override
+    public Page next() {
+        if (done) {
+            return null;
+        }
+        final ListObjectsV2Response response = s3Client.listObjectsV2(b -> b.bucket(bucket).prefix(prefix)
+                .startAfter(continuationToken == null ? startAfter : null)
+                .continuationToken(continuationToken)).join();
+        continuationToken = response.nextContinuationToken();
+        done = !Boolean.TRUE.equals(response.isTruncated());
+
+        final List<Item> items = response.contents().stream()
+                // Folder placeholders created by the console
+                .filter(o -> !o.key().endsWith("/") || o.size() > 0)
+                .map(o -> new Item(bucket, o.key(), o.size()))
+                .toList();
+        if (!response.contents().isEmpty()) {
+            startAfter = response.contents().getLast().key();
+        }
+        return new Page(items, startAfter);
+    }
+
+    @Override
+    public String describe() {
+        return "s3://" + bucket + "/" + (prefix == null ? "" : prefix);
+    }
+}
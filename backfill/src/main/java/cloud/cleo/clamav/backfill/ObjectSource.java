@@ -0,0 +1,49 @@
+package cloud.cleo.clamav.backfill;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the objects to backfill come from, read a page at a time. Each page carries the position to resume from once
+ * every object in it (and every page before it) has been queued.
+ *
+ * @author sjensen
+ */
+public interface ObjectSource {
+
+    /**
+     * An existing object to scan.
+     *
+     * @param bucket
+     * @param key URL decoded object key
+     * @param size object size in bytes
+     */
+    record Item(String bucket, String key, long size) {
+
+    }
+
+    /**
+     * A page of objects.
+     *
+     * @param items
+     * @param position resume position after this page
+     */
+    record Page(List<Item> items, String position) {
+
+    }
+
+    /**
+     * Read the next page.
+     *
+     * @return null when there are no more objects
+     * @throws IOException
+     */
+    Page next() throws IOException;
+
+    /**
+     * Identifies the source, so a checkpoint is never used to resume a different one.
+     *
+     * @return
+     */
+    String describe();
+}
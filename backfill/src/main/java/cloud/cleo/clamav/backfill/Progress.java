@@ -0,0 +1,55 @@
+package cloud.cleo.clamav.backfill;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Backfill counters, reported periodically with throughput since the last report and overall.
+ *
+ * @author sjensen
+ */
+public class Progress {
+
+    final static Logger log = LogManager.getLogger(Progress.class);
+
+    final LongAdder listed = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder queued = new LongAdder();
+    final LongAdder queuedBytes = new LongAdder();
+    final LongAdder failed = new LongAdder();
+
+    final long started = System.nanoTime();
+
+    long lastReport = started;
+    long lastDone;
+    long lastBytes;
+
+    /**
+     * Log current counts and rates. Objects/sec counts queued and skipped objects, bytes/sec only queued ones (bytes
+     * handed to the scanners).
+     *
+     * @param position current checkpoint position
+     */
+    public synchronized void report(String position) {
+        final long now = System.nanoTime();
+        final long done = queued.sum() + skipped.sum() + failed.sum();
+        final long bytes = queuedBytes.sum();
+        final double interval = Math.max(1, now - lastReport) / 1e9;
+        final double total = Math.max(1, now - started) / 1e9;
+
+        log.info("Listed {} queued {} skipped {} failed {} | {} objects/sec {}/sec (overall {} objects/sec {}/sec) | position {}",
+                listed.sum(), queued.sum(), skipped.sum(), failed.sum(),
+                String.format("%.1f", (done - lastDone) / interval), megabytes((bytes - lastBytes) / interval),
+                String.format("%.1f", done / total), megabytes(bytes / total),
+                position);
+
+        lastReport = now;
+        lastDone = done;
+        lastBytes = bytes;
+    }
+
+    private static String megabytes(double bytes) {
+        return String.format("%.1f MB", bytes / (1024 * 1024));
+    }
+}
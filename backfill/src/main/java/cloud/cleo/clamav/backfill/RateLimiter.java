@@ -0,0 +1,50 @@
+package cloud.cleo.clamav.backfill;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out permits evenly at a fixed rate. Callers get a future that completes when their turn comes rather than
+ * blocking a thread, so it can sit in the middle of an async chain.
+ *
+ * @author sjensen
+ */
+public class RateLimiter {
+
+    // Zero when unlimited
+    final long intervalNanos;
+
+    long next = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond zero or less for no limit
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this.intervalNanos = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+    }
+
+    /**
+     * Reserve the next permit.
+     *
+     * @return completes when the permit may be used
+     */
+    public CompletableFuture<Void> acquire() {
+        final long wait = reserve();
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS));
+    }
+
+    private synchronized long reserve() {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        // No bursting after an idle period, permits are never saved up
+        final long at = Math.max(now, next);
+        next = at + intervalNanos;
+        return at - now;
+    }
+}
@@ -0,0 +1,97 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generated scan inputs so benchmarks need no downloaded samples. Content is seeded so every run scans the same bytes.
+ *
+ * @author sjensen
+ */
+public final class Corpus {
+
+    // Standard anti-virus test file, every engine reports it as infected
+    public final static byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private Corpus() {
+    }
+
+    /**
+     * Sample by name: "eicar", "eicarzip" (EICAR inside a zip), "text-&lt;size&gt;" (compressible log-like lines),
+     * "random-&lt;size&gt;" (incompressible), "jpeg-&lt;size&gt;" and "pdf-&lt;size&gt;" (the right magic bytes
+     * followed by random or text content) or "zip-&lt;size&gt;" (text compressed into a zip), where size is like 64KB
+     * or 16MB.
+     *
+     * @param name
+     * @return
+     */
+    public static byte[] sample(String name) {
+        if ("eicar".equals(name)) {
+            return EICAR;
+        }
+        if ("eicarzip".equals(name)) {
+            return zip("eicar.com", EICAR);
+        }
+        int split = name.indexOf('-');
+        String kind = name.substring(0, split);
+        int size = parseSize(name.substring(split + 1));
+        return switch (kind) {
+            case "text" -> text(size);
+            case "random" -> random(size);
+            case "jpeg" -> withHeader(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0}, random(size));
+            case "pdf" -> withHeader("%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII), text(size));
+            case "zip" -> zip("data.log", text(size));
+            default -> throw new IllegalArgumentException("Unknown sample " + name);
+        };
+    }
+
+    static int parseSize(String size) {
+        if (size.endsWith("MB")) {
+            return Integer.parseInt(size.substring(0, size.length() - 2)) * 1024 * 1024;
+        }
+        if (size.endsWith("KB")) {
+            return Integer.parseInt(size.substring(0, size.length() - 2)) * 1024;
+        }
+        return Integer.parseInt(size);
+    }
+
+    static byte[] random(int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] text(int size) {
+        final var random = new Random(size);
+        final var sb = new StringBuilder(size + 128);
+        while (sb.length() < size) {
+            sb.append("2025-01-01T00:00:").append(random.nextInt(60)).append(" INFO request ")
+                    .append(Long.toHexString(random.nextLong())).append(" completed in ")
+                    .append(random.nextInt(1000)).append(" ms\n");
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] withHeader(byte[] header, byte[] content) {
+        System.arraycopy(header, 0, content, 0, Math.min(header.length, content.length));
+        return content;
+    }
+
+    private static byte[] zip(String name, byte[] content) {
+        final var out = new ByteArrayOutputStream();
+        try (var zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(content);
+            zip.closeEntry();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
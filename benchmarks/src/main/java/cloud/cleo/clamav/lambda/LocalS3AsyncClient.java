@@ -0,0 +1,95 @@
+package cloud.cleo.clamav.lambda;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectTaggingRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectTaggingResponse;
+import software.amazon.awssdk.services.s3.model.Tag;
+
+/**
+ * In-memory stand-in for S3 so the pipeline can be benchmarked offline. Supports just what the scanner uses: HEAD,
+ * GET (whole object or a single byte range) and object tagging. Anything else throws UnsupportedOperationException.
+ *
+ * @author sjensen
+ */
+public class LocalS3AsyncClient implements S3AsyncClient {
+
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    final Map<String, List<Tag>> tags = new ConcurrentHashMap<>();
+
+    public void putObject(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, content);
+    }
+
+    public void putTags(String bucket, String key, List<Tag> tagSet) {
+        tags.put(bucket + "/" + key, List.copyOf(tagSet));
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        final byte[] content = objects.get(request.bucket() + "/" + request.key());
+        if (content == null) {
+            return CompletableFuture.failedFuture(NoSuchKeyException.builder().message(request.key()).build());
+        }
+        return CompletableFuture.completedFuture(HeadObjectResponse.builder()
+                .contentLength((long) content.length)
+                .eTag("\"" + Integer.toHexString(System.identityHashCode(content)) + "\"")
+                .build());
+    }
+
+    @Override
+    public <ReturnT> CompletableFuture<ReturnT> getObject(GetObjectRequest request,
+            AsyncResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        final CompletableFuture<ReturnT> result = transformer.prepare();
+        byte[] content = objects.get(request.bucket() + "/" + request.key());
+        if (content == null) {
+            transformer.exceptionOccurred(NoSuchKeyException.builder().message(request.key()).build());
+            return result;
+        }
+        if (request.range() != null) {
+            // Only "bytes=first-last" is used by the scanner
+            String[] range = request.range().substring("bytes=".length()).split("-");
+            int first = Integer.parseInt(range[0]);
+            int last = Math.min(content.length - 1, Integer.parseInt(range[1]));
+            content = java.util.Arrays.copyOfRange(content, first, last + 1);
+        }
+        transformer.onResponse(GetObjectResponse.builder().contentLength((long) content.length).build());
+        transformer.onStream(AsyncRequestBody.fromBytesUnsafe(content));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<GetObjectTaggingResponse> getObjectTagging(GetObjectTaggingRequest request) {
+        return CompletableFuture.completedFuture(GetObjectTaggingResponse.builder()
+                .tagSet(tags.getOrDefault(request.bucket() + "/" + request.key(), List.of()))
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<PutObjectTaggingResponse> putObjectTagging(PutObjectTaggingRequest request) {
+        tags.put(request.bucket() + "/" + request.key(), List.copyOf(request.tagging().tagSet()));
+        return CompletableFuture.completedFuture(PutObjectTaggingResponse.builder().build());
+    }
+
+    @Override
+    public String serviceName() {
+        return "s3";
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,63 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanStatus;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.s3.model.Tag;
+
+/**
+ * Tag set rebuilding for a full scan (SCANNING then the final status) against the local S3 stand-in, so this measures
+ * the client side work only.
+ *
+ * @author sjensen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectTaggerBenchmark {
+
+    // Tags already on the object (S3 allows at most 10)
+    @Param({"0", "5", "9"})
+    int existingTags;
+
+    LocalS3AsyncClient s3;
+
+    ObjectTagger tagger;
+
+    @Setup
+    public void setup() {
+        s3 = new LocalS3AsyncClient();
+        final var tags = new ArrayList<Tag>();
+        for (int i = 0; i < existingTags; i++) {
+            tags.add(Tag.builder().key("tag-" + i).value("value-" + i).build());
+        }
+        s3.putTags("bucket", "key", tags);
+        tagger = new ObjectTagger(s3);
+    }
+
+    @Benchmark
+    public void scanningThenClean() {
+        final var session = tagger.session("bucket", "key");
+        session.setAsync(ScanStatus.SCANNING);
+        session.setAsync(ScanStatus.CLEAN).join();
+    }
+
+    @Benchmark
+    public void finalStatusOnly() {
+        tagger.session("bucket", "key").setAsync(ScanStatus.CLEAN).join();
+    }
+}
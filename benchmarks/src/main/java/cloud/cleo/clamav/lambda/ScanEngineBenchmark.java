@@ -0,0 +1,76 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forking clamscan per object versus asking a running clamd over its socket, for both file and stream input.
+ *
+ * Needs ClamAV installed locally (clamscan and clamd on the PATH) and CLAMAV_DB_DIR pointing at a signature database,
+ * for example /var/lib/clamav after running freshclam. Engine startup (loading signatures) is not measured.
+ *
+ * @author sjensen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ScanEngineBenchmark {
+
+    final static long TIMEOUT_MILLIS = 120000;
+
+    @Param({"clamscan", "clamd"})
+    String engine;
+
+    @Param({"eicar", "text-64KB", "random-1MB", "random-16MB"})
+    String sample;
+
+    ScanEngine scanEngine;
+
+    byte[] content;
+
+    Path file;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        scanEngine = "clamd".equals(engine) ? new ClamdEngine() : new ClamScanEngine();
+        scanEngine.start();
+        content = Corpus.sample(sample);
+        file = Files.createTempFile("bench-", ".bin");
+        Files.write(file, content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        scanEngine.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public ScanResult scanFile() throws IOException, InterruptedException {
+        return scanEngine.scan(file, TIMEOUT_MILLIS);
+    }
+
+    @Benchmark
+    public ScanResult scanStream() throws IOException, InterruptedException {
+        return scanEngine.scan(new ByteArrayInputStream(content), TIMEOUT_MILLIS);
+    }
+}
@@ -0,0 +1,140 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Staging an object in /tmp (single GET or parallel ranges) or in memory before scanning versus streaming it into the
+ * scanner, fed from the local S3 stand-in.
+ *
+ * With engine "none" the content is only read (no ClamAV needed), which isolates the staging cost. With "clamd" see
+ * {@link ScanEngineBenchmark} for the local ClamAV requirements.
+ *
+ * @author sjensen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class StagingBenchmark {
+
+    final static long TIMEOUT_MILLIS = 120000;
+
+    final static String BUCKET = "bucket";
+
+    final static String KEY = "object.bin";
+
+    @Param({"none", "clamd"})
+    String engine;
+
+    @Param({"random-1MB", "random-32MB", "random-96MB"})
+    String sample;
+
+    LocalS3AsyncClient s3;
+
+    ScanEngine scanEngine;
+
+    HeadObjectResponse head;
+
+    RangedDownloader singleGet;
+
+    RangedDownloader ranged;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        s3 = new LocalS3AsyncClient();
+        s3.putObject(BUCKET, KEY, Corpus.sample(sample));
+        head = s3.headObject(b -> b.bucket(BUCKET).key(KEY)).join();
+        singleGet = new RangedDownloader(s3, Long.MAX_VALUE, RangedDownloader.PART_SIZE_BYTES, 1);
+        ranged = new RangedDownloader(s3, 0, RangedDownloader.PART_SIZE_BYTES, RangedDownloader.CONCURRENCY);
+        scanEngine = "clamd".equals(engine) ? new ClamdEngine() : new ReadOnlyEngine();
+        scanEngine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        scanEngine.close();
+    }
+
+    @Benchmark
+    public ScanResult stageToTmp() throws IOException, InterruptedException {
+        return stageAndScan(singleGet);
+    }
+
+    @Benchmark
+    public ScanResult stageRanged() throws IOException, InterruptedException {
+        return stageAndScan(ranged);
+    }
+
+    @Benchmark
+    public ScanResult stageInMemory() throws IOException, InterruptedException {
+        final byte[] content = s3.getObject(b -> b.bucket(BUCKET).key(KEY), AsyncResponseTransformer.toBytes())
+                .join().asByteArrayUnsafe();
+        return scanEngine.scan(new ByteArrayInputStream(content), TIMEOUT_MILLIS);
+    }
+
+    @Benchmark
+    public ScanResult stream() throws IOException, InterruptedException {
+        try (InputStream in = s3.getObject(b -> b.bucket(BUCKET).key(KEY),
+                AsyncResponseTransformer.toBlockingInputStream()).join()) {
+            return scanEngine.scan(in, TIMEOUT_MILLIS);
+        }
+    }
+
+    private ScanResult stageAndScan(RangedDownloader downloader) throws IOException, InterruptedException {
+        Path path = ObjectScanner.createTempFilePath(KEY);
+        try {
+            downloader.download(BUCKET, KEY, head, path);
+            return scanEngine.scan(path, TIMEOUT_MILLIS);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Reads everything it is given and reports CLEAN, so only the staging side is measured.
+     */
+    static class ReadOnlyEngine implements ScanEngine {
+
+        @Override
+        public ScanResult scan(Path file, long timeoutMillis) throws IOException {
+            try (InputStream in = Files.newInputStream(file)) {
+                return scan(in, timeoutMillis);
+            }
+        }
+
+        @Override
+        public ScanResult scan(InputStream in, long timeoutMillis) throws IOException {
+            in.transferTo(OutputStream.nullOutputStream());
+            return ScanResult.of(ScanStatus.CLEAN, name());
+        }
+
+        @Override
+        public String name() {
+            return "none";
+        }
+    }
+}
@@ -2,7 +2,11 @@ package cloud.cleo.clamav.cdk;
 
 import cloud.cleo.clamav.ScanStatus;
 import static cloud.cleo.clamav.ScanStatus.*;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import software.amazon.awscdk.App;
@@ -12,24 +16,56 @@ import software.amazon.awscdk.RemovalPolicy;
 import software.amazon.awscdk.Size;
 import software.amazon.awscdk.Stack;
 import software.amazon.awscdk.StackProps;
+import software.amazon.awscdk.TimeZone;
+import software.amazon.awscdk.services.applicationautoscaling.AdjustmentType;
+import software.amazon.awscdk.services.applicationautoscaling.BasicStepScalingPolicyProps;
+import software.amazon.awscdk.services.applicationautoscaling.BasicTargetTrackingScalingPolicyProps;
+import software.amazon.awscdk.services.applicationautoscaling.PredefinedMetric;
+import software.amazon.awscdk.services.applicationautoscaling.ScalableTarget;
+import software.amazon.awscdk.services.applicationautoscaling.ScalingInterval;
+import software.amazon.awscdk.services.applicationautoscaling.ScalingSchedule;
+import software.amazon.awscdk.services.applicationautoscaling.ServiceNamespace;
+import software.amazon.awscdk.services.cloudwatch.Alarm;
+import software.amazon.awscdk.services.cloudwatch.ComparisonOperator;
+import software.amazon.awscdk.services.cloudwatch.Dashboard;
+import software.amazon.awscdk.services.cloudwatch.GraphWidget;
+import software.amazon.awscdk.services.cloudwatch.HorizontalAnnotation;
+import software.amazon.awscdk.services.cloudwatch.IMetric;
+import software.amazon.awscdk.services.cloudwatch.IWidget;
+import software.amazon.awscdk.services.cloudwatch.MathExpression;
+import software.amazon.awscdk.services.cloudwatch.Metric;
+import software.amazon.awscdk.services.cloudwatch.MetricOptions;
+import software.amazon.awscdk.services.cloudwatch.TreatMissingData;
 import software.amazon.awscdk.services.ecr.assets.DockerImageAsset;
 import software.amazon.awscdk.services.ecr.assets.Platform;
+import software.amazon.awscdk.services.events.Rule;
+import software.amazon.awscdk.services.events.Schedule;
+import software.amazon.awscdk.services.events.targets.LambdaFunction;
 import software.amazon.awscdk.services.iam.AnyPrincipal;
 import software.amazon.awscdk.services.iam.Effect;
 import software.amazon.awscdk.services.iam.PolicyStatement;
+import software.amazon.awscdk.services.iam.Role;
 import software.amazon.awscdk.services.lambda.Alias;
 import software.amazon.awscdk.services.lambda.Architecture;
 import software.amazon.awscdk.services.lambda.DockerImageCode;
 import software.amazon.awscdk.services.lambda.DockerImageFunction;
 import software.amazon.awscdk.services.lambda.EcrImageCodeProps;
 import software.amazon.awscdk.services.lambda.Version;
+import software.amazon.awscdk.services.lambda.eventsources.SqsEventSource;
 import software.amazon.awscdk.services.logs.LogGroup;
 import software.amazon.awscdk.services.logs.RetentionDays;
+import software.amazon.awscdk.services.s3.BlockPublicAccess;
 import software.amazon.awscdk.services.s3.Bucket;
+import software.amazon.awscdk.services.s3.BucketEncryption;
 import software.amazon.awscdk.services.s3.BucketPolicy;
 import software.amazon.awscdk.services.s3.EventType;
 import software.amazon.awscdk.services.s3.IBucket;
+import software.amazon.awscdk.services.s3.LifecycleRule;
+import software.amazon.awscdk.services.s3.NotificationKeyFilter;
 import software.amazon.awscdk.services.s3.notifications.LambdaDestination;
+import software.amazon.awscdk.services.s3.notifications.SqsDestination;
+import software.amazon.awscdk.services.sqs.DeadLetterQueue;
+import software.amazon.awscdk.services.sqs.Queue;
 import software.constructs.Construct;
 
 /**
@@ -39,11 +75,92 @@ import software.constructs.Construct;
  */
 public class ClamavLambdaStack extends Stack {
 
+    // Handler for direct S3 event invocation
+    final static String S3_HANDLER = "cloud.cleo.clamav.lambda.ScanningLambda::handleRequest";
+
+    // Handler for S3 events delivered in SQS batches
+    final static String SQS_HANDLER = "cloud.cleo.clamav.lambda.SqsScanningLambda::handleRequest";
+
+    // Handler for the scheduled definitions update
+    final static String DEFINITIONS_HANDLER = "cloud.cleo.clamav.lambda.DefinitionsUpdater::handleRequest";
+
+    // Tagging the current object, and a specific version of it on a versioned bucket
+    final static List<String> TAGGING_ACTIONS = List.of("s3:PutObjectTagging", "s3:PutObjectVersionTagging");
+
     public ClamavLambdaStack(final Construct scope, final String id, final StackProps props) {
         super(scope, id, props);
 
         boolean addBucketPolicy = getContextBoolean("addBucketPolicy", false);
 
+        // clamd (default) keeps definitions loaded between invocations, clamscan forks a process per scan
+        String scanEngine = getContextString("scanEngine", "clamd");
+
+        // stream (default) pipes the S3 body into the scanner, tmp downloads to /tmp before scanning
+        String stagingMode = getContextString("stagingMode", "stream");
+
+        // Deliver S3 events through SQS (default) so the Lambda scans batches concurrently, otherwise invoke directly
+        boolean useQueue = getContextBoolean("useQueue", true);
+
+        // Share scan results by content hash across execution environments in a cache bucket
+        boolean sharedScanCache = getContextBoolean("sharedScanCache", false);
+
+        // Claim each S3 event across execution environments too, not just within one, so duplicates are scanned once
+        boolean sharedIdempotency = getContextBoolean("sharedIdempotency", false);
+
+        // Cap the scanner's concurrency (0 leaves it unreserved), so a burst of uploads can't take the whole account's
+        long reservedConcurrency = getContextLong("reservedConcurrency", 0);
+
+        // Provisioned concurrency on the live alias, enabled by provisionedMax.  Scales between provisionedMin and
+        // provisionedMax on utilization (percent, 0 disables) and on the age of the oldest queued event (seconds, 0
+        // disables), and a schedule ("cron(0 8 ? * MON-FRI *)=10;cron(0 18 ? * MON-FRI *)=0") raises the minimum ahead
+        // of known peaks and drops it again after
+        long provisionedMin = getContextLong("provisionedMin", 0);
+        long provisionedMax = getContextLong("provisionedMax", 0);
+        long provisionedUtilization = getContextLong("provisionedUtilization", 70);
+        long backlogScaleOutSeconds = getContextLong("backlogScaleOutSeconds", 60);
+        Map<String, Long> provisionedSchedule = getContextSchedule("provisionedSchedule");
+        String provisionedTimeZone = getContextString("provisionedTimeZone", "UTC");
+        checkConcurrency(reservedConcurrency, provisionedMin, provisionedMax, provisionedUtilization, provisionedSchedule);
+
+        // Load signatures during init (in the background unless preloadWait, which suits provisioned concurrency)
+        boolean preloadEngine = getContextBoolean("preloadEngine", true);
+        boolean preloadWait = getContextBoolean("preloadWait", provisionedMax > 0);
+
+        // Scan objects over MAX_BYTES on a second, bigger worker (up to largeMaxBytes) instead of skipping them
+        boolean largeWorker = getContextBoolean("largeWorker", false);
+        long largeMaxBytes = getContextLong("largeMaxBytes", 2000000000L);
+        if (largeMaxBytes > Integer.MAX_VALUE) {
+            // MAX_BYTES is an int, and clamd limits are below 4GB anyway
+            throw new IllegalArgumentException("largeMaxBytes must be at most " + Integer.MAX_VALUE);
+        }
+
+        // Publish definition updates to a bucket on a schedule, warm scanners reload them without a redeploy
+        boolean liveDefinitions = getContextBoolean("liveDefinitions", false);
+        String definitionsMirror = getContextString("definitionsMirror", null);
+
+        // Buckets (or bucket/prefix) whose uploads get their own queue, so bulk loads can never delay them
+        Map<String, List<String>> priorityLanes = getContextPrefixes("priorityLanes");
+        // S3 filters can't overlap, so the rest of a bucket split by prefix has to be listed to still be scanned
+        Map<String, List<String>> bulkPrefixes = getContextPrefixes("bulkPrefixes");
+        // Most of the function's concurrency the bulk lane can use, the rest is left for the priority lane
+        long bulkConcurrency = getContextLong("bulkConcurrency", 20);
+        long priorityConcurrency = getContextLong("priorityConcurrency", 10);
+        long prioritySloSeconds = getContextLong("prioritySloSeconds", 60);
+        if (!priorityLanes.isEmpty() && !useQueue) {
+            throw new IllegalArgumentException("priorityLanes requires useQueue");
+        }
+        if (!priorityLanes.isEmpty() && reservedConcurrency > 0 && bulkConcurrency >= reservedConcurrency) {
+            throw new IllegalArgumentException("bulkConcurrency must be below reservedConcurrency to leave room for the priority lane");
+        }
+        checkLanes(priorityLanes, bulkPrefixes, bulkConcurrency, priorityConcurrency);
+
+        // Build the handlers into a GraalVM native image on a custom runtime (jar must be built with mvn -Pnative install)
+        boolean nativeImage = getContextBoolean("nativeImage", false);
+
+        // s3:// locations of SHA-256 lists, matching objects are tagged CLEAN or INFECTED without a scan
+        String knownCleanHashes = getContextString("knownCleanHashes", null);
+        String knownBadHashes = getContextString("knownBadHashes", null);
+
         String validationBucket = System.getenv("VALIDATION_BUCKET") != null
                 ? !System.getenv("VALIDATION_BUCKET").isBlank() ? System.getenv("VALIDATION_BUCKET") : null : null;
 
@@ -51,11 +168,13 @@ public class ClamavLambdaStack extends Stack {
         // For example: cdk deploy --context bucketNames="bucket1,bucket2,bucket3"
         String bucketNamesContext = (String) this.getNode().tryGetContext("bucketNames");
         List<IBucket> buckets = new ArrayList<>();
+        List<String> bucketNames = new ArrayList<>();
         if (bucketNamesContext != null && !bucketNamesContext.isBlank()) {
             String[] names = bucketNamesContext.split(",");
             int count = 0;
             for (String name : names) {
                 String trimmedName = name.trim();
+                bucketNames.add(trimmedName);
                 // Create a reference to the existing bucket.
                 IBucket bucket = Bucket.fromBucketName(this, "SourceBucket" + count, trimmedName);
                 buckets.add(bucket);
@@ -81,6 +200,12 @@ public class ClamavLambdaStack extends Stack {
             }
         }
 
+        for (String name : concat(priorityLanes.keySet(), bulkPrefixes.keySet())) {
+            if (!bucketNames.contains(name)) {
+                throw new IllegalArgumentException("Lane bucket " + name + " must also be in bucketNames");
+            }
+        }
+
         // Build the Docker image asset.
         // The bundling step runs a Maven build using a Maven image that supports Java 21,
         // then copies the produced JAR into the asset output so that the Dockerfile COPY
@@ -88,6 +213,8 @@ public class ClamavLambdaStack extends Stack {
         DockerImageAsset imageAsset = DockerImageAsset.Builder.create(this, "ClamavLambdaImage")
                 .platform(isCloudShell() ? Platform.LINUX_AMD64 : Platform.LINUX_ARM64)
                 .directory(".")
+                // Same ClamAV layers, the native variant swaps the JVM base image for a compiled bootstrap
+                .file(nativeImage ? "Dockerfile.native" : "Dockerfile")
                 .build();
 
         // Create custom log group first
@@ -97,10 +224,113 @@ public class ClamavLambdaStack extends Stack {
                 .removalPolicy(RemovalPolicy.DESTROY)
                 .build();
 
+        Bucket scanCacheBucket = null;
+        if (sharedScanCache) {
+            // Entries are keyed by signature version, so old ones are useless after a few definition updates
+            scanCacheBucket = Bucket.Builder.create(this, "ClamavScanCacheBucket")
+                    .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
+                    .encryption(BucketEncryption.S3_MANAGED)
+                    .enforceSsl(true)
+                    .lifecycleRules(List.of(LifecycleRule.builder()
+                            .expiration(Duration.days(7))
+                            .build()))
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .autoDeleteObjects(true)
+                    .build();
+        }
+
+        Bucket idempotencyBucket = null;
+        if (sharedIdempotency) {
+            // Markers only matter while an event can still be redelivered (queue and dead letter retention)
+            idempotencyBucket = Bucket.Builder.create(this, "ClamavIdempotencyBucket")
+                    .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
+                    .encryption(BucketEncryption.S3_MANAGED)
+                    .enforceSsl(true)
+                    .lifecycleRules(List.of(LifecycleRule.builder()
+                            .expiration(Duration.days(14))
+                            .build()))
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .autoDeleteObjects(true)
+                    .build();
+        }
+
+        Bucket definitionsBucket = null;
+        if (liveDefinitions) {
+            // Every release is kept under versions/, old ones are only needed until scanners have moved on
+            definitionsBucket = Bucket.Builder.create(this, "ClamavDefinitionsBucket")
+                    .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
+                    .encryption(BucketEncryption.S3_MANAGED)
+                    .enforceSsl(true)
+                    .lifecycleRules(List.of(LifecycleRule.builder()
+                            .prefix("clamav-defs/versions/")
+                            .expiration(Duration.days(7))
+                            .build()))
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .autoDeleteObjects(true)
+                    .build();
+        }
+
+        // With a large worker only objects over its limit are FILE_SIZE_EXCEEED
+        final long maxBytes = largeWorker ? largeMaxBytes : MAX_BYTES;
+
+        final var environment = new HashMap<String, String>(Map.of(
+                "ONLY_TAG_INFECTED", ONLY_TAG_INFECTED.toString(),
+                "SCAN_ENGINE", scanEngine,
+                "STAGING_MODE", stagingMode,
+                "MAX_BYTES", String.valueOf(maxBytes),
+                "PRELOAD_ENGINE", String.valueOf(preloadEngine),
+                "PRELOAD_WAIT", String.valueOf(preloadWait)));
+        if (scanCacheBucket != null) {
+            environment.put("SCAN_CACHE_BUCKET", scanCacheBucket.getBucketName());
+        }
+        if (idempotencyBucket != null) {
+            environment.put("IDEMPOTENCY_BUCKET", idempotencyBucket.getBucketName());
+        }
+        if (definitionsBucket != null) {
+            environment.put("DEFINITIONS_BUCKET", definitionsBucket.getBucketName());
+        }
+        if (knownCleanHashes != null) {
+            environment.put("KNOWN_CLEAN_HASHES", knownCleanHashes);
+        }
+        if (knownBadHashes != null) {
+            environment.put("KNOWN_BAD_HASHES", knownBadHashes);
+        }
+
+        Queue largeQueue = null;
+        if (largeWorker) {
+            Queue largeDeadLetterQueue = Queue.Builder.create(this, "ClamavLargeScanDeadLetterQueue")
+                    .retentionPeriod(Duration.days(14))
+                    .enforceSsl(true)
+                    .build();
+
+            largeQueue = Queue.Builder.create(this, "ClamavLargeScanQueue")
+                    // 6x the large worker timeout
+                    .visibilityTimeout(Duration.minutes(90))
+                    .retentionPeriod(Duration.days(4))
+                    .enforceSsl(true)
+                    .deadLetterQueue(DeadLetterQueue.builder()
+                            .queue(largeDeadLetterQueue)
+                            .maxReceiveCount(3)
+                            .build())
+                    .build();
+        }
+
+        // The large worker gets the same settings, but never routes further
+        final var largeEnvironment = new HashMap<String, String>(environment);
+        largeEnvironment.put("SCAN_CONCURRENCY", "1");
+        if (largeQueue != null) {
+            environment.put("LARGE_OBJECT_BYTES", String.valueOf(MAX_BYTES));
+            environment.put("LARGE_QUEUE_URL", largeQueue.getQueueUrl());
+        }
+
         // Create a Docker-based Lambda function using the built image.
         DockerImageFunction lambdaFunction = DockerImageFunction.Builder.create(this, LAMBDA_NAME)
                 .code(DockerImageCode.fromEcr(imageAsset.getRepository(),
-                        EcrImageCodeProps.builder().tagOrDigest(imageAsset.getImageTag()).build()))
+                        EcrImageCodeProps.builder()
+                                .tagOrDigest(imageAsset.getImageTag())
+                                // Same image, just a different handler when consuming from SQS
+                                .cmd(List.of(useQueue ? SQS_HANDLER : S3_HANDLER))
+                                .build()))
                 //
                 // We use ARM because its cheaper for CPU bound executions like CLamAV scanning
                 .architecture(isCloudShell() ? Architecture.X86_64 : Architecture.ARM_64)
@@ -109,19 +339,119 @@ public class ClamavLambdaStack extends Stack {
                 // 3009 gives you 3 VCPU vs <3009 which drops you to 2 VCPU
                 .memorySize(3009)
                 //
-                // Default is 512MB, but can be increased to support larger file sizes for scanning
+                // Default is 512MB, but can be increased to support larger file sizes for scanning when staging to /tmp
+                // (streaming mode does not use /tmp for the object itself)
                 // NOTE: increasing this will incur additional costs
                 .ephemeralStorageSize(Size.mebibytes(512))
                 //
                 // Scans should complete within a minute, so 10 mins is pretty conservative to allow scan to complete
                 .timeout(Duration.minutes(10))
+                //
+                // Bursts beyond this wait in the queue (or are throttled and retried by S3's async invoke)
+                .reservedConcurrentExecutions(reservedConcurrency > 0 ? reservedConcurrency : null)
                 .functionName(LAMBDA_NAME)
-                .description("Scans S3 files based on ObjectCreate events")
+                .description(useQueue ? "Scans S3 files based on ObjectCreate events queued in SQS"
+                        : "Scans S3 files based on ObjectCreate events")
                 .logGroup(customLogGroup)
                 // Ensure the Lambda also gets the ENV flag
-                .environment(Map.of("ONLY_TAG_INFECTED", ONLY_TAG_INFECTED.toString()))
+                .environment(environment)
                 .build();
 
+        if (scanCacheBucket != null) {
+            scanCacheBucket.grantReadWrite(lambdaFunction);
+        }
+        if (idempotencyBucket != null) {
+            idempotencyBucket.grantReadWrite(lambdaFunction);
+        }
+        if (definitionsBucket != null) {
+            definitionsBucket.grantRead(lambdaFunction);
+        }
+        grantReadHashes(knownCleanHashes, "KnownCleanHashesBucket", lambdaFunction);
+        grantReadHashes(knownBadHashes, "KnownBadHashesBucket", lambdaFunction);
+
+        DockerImageFunction largeFunction = null;
+        if (largeQueue != null) {
+            largeQueue.grantSendMessages(lambdaFunction);
+
+            largeFunction = DockerImageFunction.Builder.create(this, LAMBDA_NAME + "Large")
+                    .code(DockerImageCode.fromEcr(imageAsset.getRepository(),
+                            EcrImageCodeProps.builder()
+                                    .tagOrDigest(imageAsset.getImageTag())
+                                    .cmd(List.of(SQS_HANDLER))
+                                    .build()))
+                    .architecture(isCloudShell() ? Architecture.X86_64 : Architecture.ARM_64)
+                    //
+                    // Max memory (6 VCPU) and /tmp so large objects and archives they unpack fit
+                    .memorySize(10240)
+                    .ephemeralStorageSize(Size.mebibytes(10240))
+                    .timeout(Duration.minutes(15))
+                    .functionName(LAMBDA_NAME + "Large")
+                    .description("Scans S3 files too large for the main scanner, routed through SQS")
+                    .logGroup(LogGroup.Builder.create(this, LAMBDA_NAME + "LargeLogGroup")
+                            .logGroupName("/aws/lambda/" + LAMBDA_NAME + "Large")
+                            .retention(RetentionDays.ONE_MONTH)
+                            .removalPolicy(RemovalPolicy.DESTROY)
+                            .build())
+                    .environment(largeEnvironment)
+                    .build();
+
+            if (scanCacheBucket != null) {
+                scanCacheBucket.grantReadWrite(largeFunction);
+            }
+            if (idempotencyBucket != null) {
+                idempotencyBucket.grantReadWrite(largeFunction);
+            }
+            if (definitionsBucket != null) {
+                definitionsBucket.grantRead(largeFunction);
+            }
+            grantReadHashes(knownCleanHashes, "KnownCleanHashesBucket", largeFunction);
+            grantReadHashes(knownBadHashes, "KnownBadHashesBucket", largeFunction);
+
+            // One large object at a time per environment
+            largeFunction.addEventSource(SqsEventSource.Builder.create(largeQueue)
+                    .batchSize(1)
+                    .reportBatchItemFailures(true)
+                    .build());
+        }
+
+        if (definitionsBucket != null) {
+            final var updaterEnvironment = new HashMap<String, String>(Map.of(
+                    "DEFINITIONS_BUCKET", definitionsBucket.getBucketName()));
+            if (definitionsMirror != null) {
+                updaterEnvironment.put("DEFINITIONS_MIRROR", definitionsMirror);
+            }
+
+            DockerImageFunction updaterFunction = DockerImageFunction.Builder.create(this, LAMBDA_NAME + "Definitions")
+                    .code(DockerImageCode.fromEcr(imageAsset.getRepository(),
+                            EcrImageCodeProps.builder()
+                                    .tagOrDigest(imageAsset.getImageTag())
+                                    .cmd(List.of(DEFINITIONS_HANDLER))
+                                    .build()))
+                    .architecture(isCloudShell() ? Architecture.X86_64 : Architecture.ARM_64)
+                    //
+                    // freshclam loads the databases to test them, and keeps them in /tmp between runs
+                    .memorySize(2048)
+                    .ephemeralStorageSize(Size.mebibytes(2048))
+                    .timeout(Duration.minutes(10))
+                    .functionName(LAMBDA_NAME + "Definitions")
+                    .description("Updates ClamAV definitions with freshclam and publishes them for the scanners")
+                    .logGroup(LogGroup.Builder.create(this, LAMBDA_NAME + "DefinitionsLogGroup")
+                            .logGroupName("/aws/lambda/" + LAMBDA_NAME + "Definitions")
+                            .retention(RetentionDays.ONE_MONTH)
+                            .removalPolicy(RemovalPolicy.DESTROY)
+                            .build())
+                    .environment(updaterEnvironment)
+                    .build();
+
+            definitionsBucket.grantReadWrite(updaterFunction);
+
+            // ClamAV publishes daily updates a few times a day, more often just hits their rate limits
+            Rule.Builder.create(this, "ClamavDefinitionsSchedule")
+                    .schedule(Schedule.rate(Duration.hours(3)))
+                    .targets(List.of(new LambdaFunction(updaterFunction)))
+                    .build();
+        }
+
         // Obtain version so we can alias it
         Version lambdaVersion = lambdaFunction.getCurrentVersion();
 
@@ -133,18 +463,113 @@ public class ClamavLambdaStack extends Stack {
                 .aliasName(LAMBDA_ALIAS_NAME)
                 .description("Lambda Alias to support rollback")
                 .version(lambdaVersion)
+                // A fixed amount needs no scaling policies
+                .provisionedConcurrentExecutions(provisionedMax > 0 && !scalesProvisioned(provisionedMin, provisionedMax,
+                        provisionedSchedule) ? provisionedMax : null)
                 .build();
 
+        Queue scanQueue = null;
+        if (useQueue) {
+            // Messages that keep failing end up here for inspection
+            Queue deadLetterQueue = Queue.Builder.create(this, "ClamavScanDeadLetterQueue")
+                    .retentionPeriod(Duration.days(14))
+                    .enforceSsl(true)
+                    .build();
+
+            scanQueue = Queue.Builder.create(this, "ClamavScanQueue")
+                    // AWS recommends 6x the function timeout so messages are not redelivered while still being scanned
+                    .visibilityTimeout(Duration.minutes(60))
+                    .retentionPeriod(Duration.days(4))
+                    .enforceSsl(true)
+                    .deadLetterQueue(DeadLetterQueue.builder()
+                            .queue(deadLetterQueue)
+                            .maxReceiveCount(3)
+                            .build())
+                    .build();
+
+            // Batches are scanned concurrently, only failed messages are returned to the queue
+            final var scanSource = SqsEventSource.Builder.create(scanQueue)
+                    .batchSize(10)
+                    .maxBatchingWindow(Duration.seconds(5))
+                    .reportBatchItemFailures(true);
+            if (!priorityLanes.isEmpty()) {
+                // Everything not in a priority lane is the bulk lane, capped so it can't take all the concurrency
+                scanSource.maxConcurrency(bulkConcurrency);
+            }
+            lambdaAlias.addEventSource(scanSource.build());
+        }
+
+        Queue priorityQueue = null;
+        if (!priorityLanes.isEmpty()) {
+            Queue priorityDeadLetterQueue = Queue.Builder.create(this, "ClamavPriorityScanDeadLetterQueue")
+                    .retentionPeriod(Duration.days(14))
+                    .enforceSsl(true)
+                    .build();
+
+            priorityQueue = Queue.Builder.create(this, "ClamavPriorityScanQueue")
+                    .visibilityTimeout(Duration.minutes(60))
+                    .retentionPeriod(Duration.days(4))
+                    .enforceSsl(true)
+                    .deadLetterQueue(DeadLetterQueue.builder()
+                            .queue(priorityDeadLetterQueue)
+                            .maxReceiveCount(3)
+                            .build())
+                    .build();
+
+            // No batching window, someone is waiting on these
+            lambdaAlias.addEventSource(SqsEventSource.Builder.create(priorityQueue)
+                    .batchSize(10)
+                    .maxConcurrency(priorityConcurrency)
+                    .reportBatchItemFailures(true)
+                    .build());
+
+            // Lets the scanner tag its queue metrics with the lane
+            lambdaFunction.addEnvironment("SCAN_LANES",
+                    "priority=" + priorityQueue.getQueueArn() + ",bulk=" + scanQueue.getQueueArn());
+
+            laneMonitoring(priorityQueue, scanQueue, prioritySloSeconds);
+        }
+
+        if (scalesProvisioned(provisionedMin, provisionedMax, provisionedSchedule)) {
+            final List<Queue> queues = new ArrayList<>();
+            if (scanQueue != null) {
+                queues.add(scanQueue);
+            }
+            if (priorityQueue != null) {
+                queues.add(priorityQueue);
+            }
+            provisionedScaling(lambdaAlias, provisionedMin, provisionedMax, provisionedUtilization, provisionedSchedule,
+                    provisionedTimeZone, queues, backlogScaleOutSeconds);
+        }
+
         // For each bucket passed via CLI:
         for (IBucket bucket : buckets) {
             // Grant read permissions (to download objects into /tmp to perform scans).
             bucket.grantRead(lambdaFunction);
 
-            // Grant permission to update object tags for the scan result.
-            bucket.grantWrite(lambdaFunction, null, List.of("s3:PutObjectTagging"));
+            // Grant permission to update object tags for the scan result (on the version that was scanned).
+            bucket.grantWrite(lambdaFunction, null, TAGGING_ACTIONS);
+
+            if (largeFunction != null) {
+                bucket.grantRead(largeFunction);
+                bucket.grantWrite(largeFunction, null, TAGGING_ACTIONS);
+            }
 
-            // Add the Lambda function as an event target for all object created events.
-            bucket.addEventNotification(EventType.OBJECT_CREATED, new LambdaDestination(lambdaAlias));
+            // Add the queue (or Lambda function directly) as an event target for all object created events.
+            final String name = bucket.getBucketName();
+            if (!useQueue) {
+                bucket.addEventNotification(EventType.OBJECT_CREATED, new LambdaDestination(lambdaAlias));
+            } else if (!priorityLanes.containsKey(name) && !bulkPrefixes.containsKey(name)) {
+                bucket.addEventNotification(EventType.OBJECT_CREATED, new SqsDestination(scanQueue));
+            } else {
+                // A bucket in a lane only notifies for the prefixes listed (an empty prefix is the whole bucket)
+                for (String prefix : priorityLanes.getOrDefault(name, List.of())) {
+                    addQueueNotification(bucket, priorityQueue, prefix);
+                }
+                for (String prefix : bulkPrefixes.getOrDefault(name, List.of())) {
+                    addQueueNotification(bucket, scanQueue, prefix);
+                }
+            }
         }
 
         // Lambda Function Name Output
@@ -161,6 +586,23 @@ public class ClamavLambdaStack extends Stack {
                 .exportName("ClamavLambdaFunctionArn")
                 .build();
 
+        if (scanQueue != null) {
+            // Queue URL Output
+            CfnOutput.Builder.create(this, getStackName() + "-ScanQueueUrl")
+                    .description("SQS Queue URL that S3 events are delivered to for scanning")
+                    .value(scanQueue.getQueueUrl())
+                    .exportName("ClamavScanQueueUrl")
+                    .build();
+        }
+
+        if (priorityQueue != null) {
+            CfnOutput.Builder.create(this, getStackName() + "-PriorityScanQueueUrl")
+                    .description("SQS Queue URL of the priority lane")
+                    .value(priorityQueue.getQueueUrl())
+                    .exportName("ClamavPriorityScanQueueUrl")
+                    .build();
+        }
+
     }
 
     /**
@@ -212,6 +654,364 @@ public class ClamavLambdaStack extends Stack {
                 .build();
     }
 
+    /**
+     * Alarm when the priority lane misses its SLO, and a dashboard of depth and wait time per lane.
+     *
+     * @param priorityQueue
+     * @param bulkQueue
+     * @param sloSeconds
+     */
+    private void laneMonitoring(Queue priorityQueue, Queue bulkQueue, long sloSeconds) {
+        final Duration period = Duration.minutes(1);
+        Alarm.Builder.create(this, "ClamavPrioritySloAlarm")
+                .alarmDescription("Priority lane uploads waiting over " + sloSeconds + " seconds to be scanned")
+                .metric(priorityQueue.metricApproximateAgeOfOldestMessage(MetricOptions.builder()
+                        .period(period)
+                        .statistic("Maximum")
+                        .build()))
+                .threshold(sloSeconds)
+                .evaluationPeriods(3)
+                .comparisonOperator(ComparisonOperator.GREATER_THAN_THRESHOLD)
+                .treatMissingData(TreatMissingData.NOT_BREACHING)
+                .build();
+
+        final List<IWidget> widgets = new ArrayList<>();
+        widgets.add(GraphWidget.Builder.create()
+                .title("Messages waiting")
+                .width(8)
+                .left(List.of(
+                        priorityQueue.metricApproximateNumberOfMessagesVisible(MetricOptions.builder()
+                                .label("priority").period(period).statistic("Maximum").build()),
+                        bulkQueue.metricApproximateNumberOfMessagesVisible(MetricOptions.builder()
+                                .label("bulk").period(period).statistic("Maximum").build())))
+                .build());
+        widgets.add(GraphWidget.Builder.create()
+                .title("Oldest message (seconds)")
+                .width(8)
+                .left(List.of(
+                        priorityQueue.metricApproximateAgeOfOldestMessage(MetricOptions.builder()
+                                .label("priority").period(period).statistic("Maximum").build()),
+                        bulkQueue.metricApproximateAgeOfOldestMessage(MetricOptions.builder()
+                                .label("bulk").period(period).statistic("Maximum").build())))
+                .leftAnnotations(List.of(HorizontalAnnotation.builder()
+                        .value(sloSeconds)
+                        .label("Priority SLO")
+                        .build()))
+                .build());
+        // Written by the scanner for every message it receives
+        final List<IMetric> waits = new ArrayList<>();
+        for (String lane : List.of("priority", "bulk")) {
+            waits.add(Metric.Builder.create()
+                    .namespace("ClamAV")
+                    .metricName("QueueAgeMillis")
+                    .dimensionsMap(Map.of("Lane", lane))
+                    .statistic("p99")
+                    .period(period)
+                    .label(lane + " p99")
+                    .build());
+        }
+        widgets.add(GraphWidget.Builder.create()
+                .title("Queue wait per message (ms)")
+                .width(8)
+                .left(waits)
+                .build());
+
+        Dashboard.Builder.create(this, "ClamavLanesDashboard")
+                .dashboardName(LAMBDA_NAME + "Lanes")
+                .widgets(List.of(widgets))
+                .build();
+    }
+
+    /**
+     * Reject concurrency settings that could never deploy or would never do anything.
+     *
+     * @param reserved 0 when unreserved
+     * @param min
+     * @param max 0 when provisioned concurrency is off
+     * @param utilizationPercent
+     * @param schedule minimum per schedule expression
+     */
+    static void checkConcurrency(long reserved, long min, long max, long utilizationPercent, Map<String, Long> schedule) {
+        if (reserved < 0 || min < 0 || max < 0) {
+            throw new IllegalArgumentException("Concurrency settings can't be negative");
+        }
+        if (max == 0) {
+            if (min > 0 || !schedule.isEmpty()) {
+                throw new IllegalArgumentException("provisionedMin and provisionedSchedule require provisionedMax");
+            }
+            return;
+        }
+        if (min > max) {
+            throw new IllegalArgumentException("provisionedMin must not be above provisionedMax");
+        }
+        if (reserved > 0 && max > reserved) {
+            throw new IllegalArgumentException("provisionedMax must not be above reservedConcurrency");
+        }
+        if (utilizationPercent < 0 || utilizationPercent > 100) {
+            throw new IllegalArgumentException("provisionedUtilization is a percentage (0 to disable)");
+        }
+        schedule.forEach((expression, capacity) -> {
+            if (capacity < 0 || capacity > max) {
+                throw new IllegalArgumentException("Scheduled minimum for " + expression + " must be between 0 and provisionedMax");
+            }
+        });
+    }
+
+    /**
+     * Reject priority lanes that would leave uploads unscanned or that SQS event sources would not accept.
+     *
+     * @param priorityLanes prefixes per bucket in the priority lane (an empty prefix is the whole bucket)
+     * @param bulkPrefixes prefixes per bucket in the bulk lane
+     * @param bulkConcurrency
+     * @param priorityConcurrency
+     */
+    static void checkLanes(Map<String, List<String>> priorityLanes, Map<String, List<String>> bulkPrefixes,
+            long bulkConcurrency, long priorityConcurrency) {
+        if (priorityLanes.isEmpty()) {
+            return;
+        }
+        // Event source maximum concurrency is 2 to 1000
+        if (bulkConcurrency < 2 || bulkConcurrency > 1000 || priorityConcurrency < 2 || priorityConcurrency > 1000) {
+            throw new IllegalArgumentException("bulkConcurrency and priorityConcurrency must be between 2 and 1000");
+        }
+        priorityLanes.forEach((bucket, prefixes) -> {
+            // Notifications only go out for the prefixes listed, and a whole bucket bulk lane would overlap them
+            if (!prefixes.contains("") && !bulkPrefixes.containsKey(bucket)) {
+                throw new IllegalArgumentException("Only prefixes " + prefixes + " of " + bucket
+                        + " are in the priority lane, list the rest in bulkPrefixes or nothing else in it is scanned");
+            }
+        });
+    }
+
+    /**
+     * Whether provisioned concurrency moves at all, otherwise the alias just gets provisionedMax.
+     */
+    static boolean scalesProvisioned(long min, long max, Map<String, Long> schedule) {
+        return max > 0 && (min < max || !schedule.isEmpty());
+    }
+
+    /**
+     * Scale provisioned concurrency on the live alias between min and max, so warm scanners (signatures loaded during
+     * init) are ready for peaks without paying for them all day. Three policies share one scalable target: target
+     * tracking on utilization (which also scales back in), a step out when the oldest queued event gets old, and
+     * scheduled minimums for peaks known in advance. Also a dashboard of what they scale on.
+     *
+     * @param alias
+     * @param min
+     * @param max
+     * @param utilizationPercent 0 for no utilization tracking
+     * @param schedule minimum from each schedule expression on
+     * @param timeZone of the schedule expressions
+     * @param queues scan queues whose backlog adds capacity, empty when S3 invokes directly
+     * @param backlogSeconds oldest message age that adds capacity, 0 to disable
+     */
+    private void provisionedScaling(Alias alias, long min, long max, long utilizationPercent, Map<String, Long> schedule,
+            String timeZone, List<Queue> queues, long backlogSeconds) {
+        final ScalableTarget target = ScalableTarget.Builder.create(this, "ClamavProvisionedScaling")
+                .serviceNamespace(ServiceNamespace.LAMBDA)
+                .resourceId("function:" + alias.getFunctionName())
+                .scalableDimension("lambda:function:ProvisionedConcurrency")
+                .minCapacity(min)
+                .maxCapacity(max)
+                // Same service linked role Alias.addAutoScaling uses
+                .role(Role.fromRoleArn(this, "ClamavProvisionedScalingRole", "arn:" + getPartition() + ":iam::" + getAccount()
+                        + ":role/aws-service-role/lambda.application-autoscaling.amazonaws.com/"
+                        + "AWSServiceRoleForApplicationAutoScaling_LambdaConcurrency"))
+                .build();
+        target.getNode().addDependency(alias);
+
+        if (utilizationPercent > 0) {
+            target.scaleToTrackMetric("ClamavProvisionedUtilization", BasicTargetTrackingScalingPolicyProps.builder()
+                    .targetValue(utilizationPercent / 100.0)
+                    .predefinedMetric(PredefinedMetric.LAMBDA_PROVISIONED_CONCURRENCY_UTILIZATION)
+                    .build());
+        }
+
+        final Duration period = Duration.minutes(1);
+        IMetric backlog = null;
+        if (!queues.isEmpty()) {
+            final Map<String, IMetric> ages = new LinkedHashMap<>();
+            for (Queue queue : queues) {
+                ages.put("q" + ages.size(), queue.metricApproximateAgeOfOldestMessage(MetricOptions.builder()
+                        .period(period).statistic("Maximum").build()));
+            }
+            backlog = ages.size() == 1 ? ages.get("q0") : MathExpression.Builder.create()
+                    .expression("MAX([" + String.join(",", ages.keySet()) + "])")
+                    .usingMetrics(ages)
+                    .period(period)
+                    .label("oldest queued event")
+                    .build();
+        }
+        if (backlog != null && backlogSeconds > 0) {
+            // Only ever adds capacity, utilization tracking (or the next scheduled minimum) takes it away again
+            target.scaleOnMetric("ClamavProvisionedBacklog", BasicStepScalingPolicyProps.builder()
+                    .metric(backlog)
+                    .adjustmentType(AdjustmentType.PERCENT_CHANGE_IN_CAPACITY)
+                    .minAdjustmentMagnitude(1)
+                    .cooldown(Duration.minutes(3))
+                    .scalingSteps(List.of(
+                            ScalingInterval.builder().upper(backlogSeconds).change(0).build(),
+                            ScalingInterval.builder().lower(backlogSeconds).change(25).build(),
+                            ScalingInterval.builder().lower(backlogSeconds * 4).change(50).build()))
+                    .build());
+        }
+
+        int index = 0;
+        for (var entry : schedule.entrySet()) {
+            target.scaleOnSchedule("ClamavProvisionedSchedule" + index++, ScalingSchedule.builder()
+                    .schedule(software.amazon.awscdk.services.applicationautoscaling.Schedule.expression(entry.getKey()))
+                    .minCapacity(entry.getValue())
+                    .timeZone(TimeZone.of(timeZone))
+                    .build());
+        }
+
+        final List<IWidget> widgets = new ArrayList<>();
+        widgets.add(GraphWidget.Builder.create()
+                .title("Concurrency")
+                .width(6)
+                .left(List.of(
+                        alias.metric("ProvisionedConcurrentExecutions", MetricOptions.builder()
+                                .label("provisioned").period(period).statistic("Maximum").build()),
+                        alias.metric("ConcurrentExecutions", MetricOptions.builder()
+                                .label("running").period(period).statistic("Maximum").build())))
+                .right(List.of(
+                        alias.metric("ProvisionedConcurrencySpilloverInvocations", MetricOptions.builder()
+                                .label("cold (spillover)").period(period).statistic("Sum").build())))
+                .build());
+        widgets.add(GraphWidget.Builder.create()
+                .title("Provisioned utilization")
+                .width(6)
+                .left(List.of(alias.metric("ProvisionedConcurrencyUtilization", MetricOptions.builder()
+                        .label("utilization").period(period).statistic("Maximum").build())))
+                .leftAnnotations(utilizationPercent > 0 ? List.of(HorizontalAnnotation.builder()
+                        .value(utilizationPercent / 100.0)
+                        .label("Target")
+                        .build()) : List.of())
+                .build());
+        // Written by the scanner once per invocation
+        widgets.add(GraphWidget.Builder.create()
+                .title("Event age and objects in flight")
+                .width(6)
+                .left(List.of(Metric.Builder.create()
+                        .namespace("ClamAV")
+                        .metricName("EventAgeMillis")
+                        .statistic("p90")
+                        .period(period)
+                        .label("event age p90 (ms)")
+                        .build()))
+                .right(List.of(Metric.Builder.create()
+                        .namespace("ClamAV")
+                        .metricName("InFlightScans")
+                        .statistic("Maximum")
+                        .period(period)
+                        .label("in flight per environment")
+                        .build()))
+                .build());
+        if (backlog != null) {
+            widgets.add(GraphWidget.Builder.create()
+                    .title("Oldest queued event (seconds)")
+                    .width(6)
+                    .left(List.of(backlog))
+                    .leftAnnotations(backlogSeconds > 0 ? List.of(HorizontalAnnotation.builder()
+                            .value(backlogSeconds)
+                            .label("Scale out")
+                            .build()) : List.of())
+                    .build());
+        }
+
+        Dashboard.Builder.create(this, "ClamavScalingDashboard")
+                .dashboardName(LAMBDA_NAME + "Scaling")
+                .widgets(List.of(widgets))
+                .build();
+    }
+
+    /**
+     * Let a scanner read a hash list stored in S3 (lists baked into the image need nothing).
+     *
+     * @param location s3://bucket/key or a local path
+     * @param id
+     * @param function
+     */
+    private void grantReadHashes(String location, String id, DockerImageFunction function) {
+        if (location == null || !location.startsWith("s3://")) {
+            return;
+        }
+        final URI uri = URI.create(location);
+        IBucket bucket = (IBucket) getNode().tryFindChild(id);
+        if (bucket == null) {
+            bucket = Bucket.fromBucketName(this, id, uri.getHost());
+        }
+        bucket.grantRead(function, uri.getPath().substring(1));
+    }
+
+    private static void addQueueNotification(IBucket bucket, Queue queue, String prefix) {
+        if (prefix.isEmpty()) {
+            bucket.addEventNotification(EventType.OBJECT_CREATED, new SqsDestination(queue));
+        } else {
+            bucket.addEventNotification(EventType.OBJECT_CREATED, new SqsDestination(queue),
+                    NotificationKeyFilter.builder().prefix(prefix).build());
+        }
+    }
+
+    private static List<String> concat(Collection<String> a, Collection<String> b) {
+        final List<String> all = new ArrayList<>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    /**
+     * Parse a context value like "bucket1,bucket2/uploads/" into the prefixes of each bucket (empty for all of it).
+     *
+     * @param key
+     * @return
+     */
+    private Map<String, List<String>> getContextPrefixes(String key) {
+        final Map<String, List<String>> prefixes = new LinkedHashMap<>();
+        final String value = getContextString(key, null);
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                final String trimmed = entry.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                final int slash = trimmed.indexOf('/');
+                final String bucket = slash < 0 ? trimmed : trimmed.substring(0, slash);
+                prefixes.computeIfAbsent(bucket, b -> new ArrayList<>()).add(slash < 0 ? "" : trimmed.substring(slash + 1));
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Parse a context value like "cron(0 8 ? * MON-FRI *)=10;cron(0 18 ? * MON-FRI *)=0" into the provisioned
+     * minimum from each schedule expression on.
+     *
+     * @param key
+     * @return
+     */
+    private Map<String, Long> getContextSchedule(String key) {
+        return parseSchedule(getContextString(key, null));
+    }
+
+    static Map<String, Long> parseSchedule(String value) {
+        final Map<String, Long> schedule = new LinkedHashMap<>();
+        if (value != null) {
+            for (String entry : value.split(";")) {
+                final String trimmed = entry.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                final int eq = trimmed.lastIndexOf('=');
+                try {
+                    schedule.put(trimmed.substring(0, eq).trim(), Long.parseLong(trimmed.substring(eq + 1).trim()));
+                } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                    throw new IllegalArgumentException("Schedule entries look like cron(0 8 ? * MON-FRI *)=10: " + trimmed, e);
+                }
+            }
+        }
+        return schedule;
+    }
+
     private boolean getContextBoolean(String key, boolean defaultValue) {
         Object contextValue = this.getNode().tryGetContext(key);
         if (contextValue instanceof String str) {
@@ -220,6 +1020,26 @@ public class ClamavLambdaStack extends Stack {
         return defaultValue;
     }
 
+    private long getContextLong(String key, long defaultValue) {
+        Object contextValue = this.getNode().tryGetContext(key);
+        if (contextValue instanceof String str && !str.isBlank()) {
+            try {
+                return Long.parseLong(str.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Context " + key + " must be a number: " + str, e);
+            }
+        }
+        return defaultValue;
+    }
+
+    private String getContextString(String key, String defaultValue) {
+        Object contextValue = this.getNode().tryGetContext(key);
+        if (contextValue instanceof String str && !str.isBlank()) {
+            return str.trim();
+        }
+        return defaultValue;
+    }
+
     /**
      * Detect if using CloudShell which means we need x86 architecture/platform.
      *
@@ -0,0 +1,241 @@
+package cloud.cleo.clamav.cdk;
+
+import static cloud.cleo.clamav.ScanStatus.LAMBDA_ALIAS_NAME;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import software.amazon.awscdk.App;
+import software.amazon.awscdk.StackProps;
+import software.amazon.awscdk.assertions.Match;
+import software.amazon.awscdk.assertions.Template;
+
+/**
+ * Synth the stack offline and check the provisioned concurrency scaling it produces, along with the settings it
+ * rejects before anything is deployed.
+ *
+ * @author sjensen
+ */
+public class ClamavLambdaStackTest {
+
+    private static final String SCALABLE_TARGET = "AWS::ApplicationAutoScaling::ScalableTarget";
+    private static final String SCALING_POLICY = "AWS::ApplicationAutoScaling::ScalingPolicy";
+    private static final String ALIAS = "AWS::Lambda::Alias";
+
+    private static final String PEAK = "cron(0 8 ? * MON-FRI *)";
+    private static final String OFF_PEAK = "cron(0 18 ? * MON-FRI *)";
+
+    /**
+     * Synth the stack with context values given the way the CDK CLI passes them (as strings).
+     *
+     * @param context
+     * @return
+     */
+    private static Template synth(Map<String, String> context) {
+        final Map<String, Object> values = new HashMap<>(context);
+        // Only the template matters, don't copy the Docker build context for every test
+        values.put("aws:cdk:disable-asset-staging", true);
+        final App app = App.Builder.create().context(values).build();
+        return Template.fromStack(new ClamavLambdaStack(app, "ClamavLambdaStack", StackProps.builder().build()));
+    }
+
+    @Test
+    public void scalingTargetHasMinMaxAndSchedule() {
+        final Template template = synth(Map.of(
+                "reservedConcurrency", "50",
+                "provisionedMin", "2",
+                "provisionedMax", "20",
+                "provisionedSchedule", PEAK + "=10;" + OFF_PEAK + "=2",
+                "provisionedTimeZone", "America/Chicago"));
+
+        template.resourceCountIs(SCALABLE_TARGET, 1);
+        template.hasResourceProperties(SCALABLE_TARGET, Map.of(
+                "MinCapacity", 2,
+                "MaxCapacity", 20,
+                "ScalableDimension", "lambda:function:ProvisionedConcurrency",
+                "ServiceNamespace", "lambda",
+                "ScheduledActions", Match.arrayWith(List.of(
+                        Match.objectLike(Map.of(
+                                "Schedule", PEAK,
+                                "ScalableTargetAction", Map.of("MinCapacity", 10),
+                                "Timezone", "America/Chicago")),
+                        Match.objectLike(Map.of(
+                                "Schedule", OFF_PEAK,
+                                "ScalableTargetAction", Map.of("MinCapacity", 2),
+                                "Timezone", "America/Chicago"))))));
+    }
+
+    @Test
+    public void scalingPoliciesTrackUtilizationAndStepOnBacklog() {
+        final Template template = synth(Map.of(
+                "provisionedMin", "1",
+                "provisionedMax", "10",
+                "provisionedUtilization", "60"));
+
+        template.hasResourceProperties(SCALING_POLICY, Map.of(
+                "PolicyType", "TargetTrackingScaling",
+                "TargetTrackingScalingPolicyConfiguration", Match.objectLike(Map.of(
+                        "TargetValue", 0.6,
+                        "PredefinedMetricSpecification", Map.of(
+                                "PredefinedMetricType", "LambdaProvisionedConcurrencyUtilization")))));
+
+        // Backlog only ever scales out
+        template.hasResourceProperties(SCALING_POLICY, Map.of(
+                "PolicyType", "StepScaling",
+                "StepScalingPolicyConfiguration", Match.objectLike(Map.of(
+                        "AdjustmentType", "PercentChangeInCapacity",
+                        "StepAdjustments", Match.arrayWith(List.of(
+                                Match.objectLike(Map.of("ScalingAdjustment", 25)),
+                                Match.objectLike(Map.of("ScalingAdjustment", 50))))))));
+        template.hasResourceProperties("AWS::CloudWatch::Alarm", Map.of(
+                "ComparisonOperator", "GreaterThanOrEqualToThreshold",
+                "Threshold", 60));
+    }
+
+    @Test
+    public void disabledPoliciesAreLeftOut() {
+        final Template template = synth(Map.of(
+                "provisionedMin", "1",
+                "provisionedMax", "10",
+                "provisionedUtilization", "0",
+                "backlogScaleOutSeconds", "0"));
+
+        template.resourceCountIs(SCALABLE_TARGET, 1);
+        template.resourceCountIs(SCALING_POLICY, 0);
+    }
+
+    @Test
+    public void aliasHasNoProvisionedConcurrencyWhenScaling() {
+        final Template template = synth(Map.of(
+                "provisionedMin", "1",
+                "provisionedMax", "10"));
+
+        // Application Auto Scaling owns the setting, a fixed value on the alias would fight it on every deploy
+        template.hasResourceProperties(ALIAS, Map.of(
+                "Name", LAMBDA_ALIAS_NAME,
+                "ProvisionedConcurrencyConfig", Match.absent()));
+    }
+
+    @Test
+    public void fixedProvisionedConcurrencyGoesOnTheAlias() {
+        final Template template = synth(Map.of(
+                "provisionedMin", "5",
+                "provisionedMax", "5"));
+
+        template.resourceCountIs(SCALABLE_TARGET, 0);
+        template.hasResourceProperties(ALIAS, Map.of(
+                "Name", LAMBDA_ALIAS_NAME,
+                "ProvisionedConcurrencyConfig", Map.of("ProvisionedConcurrentExecutions", 5)));
+    }
+
+    @Test
+    public void noProvisionedConcurrencyByDefault() {
+        final Template template = synth(Map.of());
+
+        template.resourceCountIs(SCALABLE_TARGET, 0);
+        template.hasResourceProperties(ALIAS, Map.of(
+                "Name", LAMBDA_ALIAS_NAME,
+                "ProvisionedConcurrencyConfig", Match.absent()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void workersCanTagObjectVersions() {
+        final Template template = synth(Map.of(
+                "bucketNames", "scan-bucket",
+                "largeWorker", "true"));
+
+        // Every statement that lets a worker tag objects also lets it tag the version it scanned
+        int tagging = 0;
+        for (Map<String, Object> policy : template.findResources("AWS::IAM::Policy").values()) {
+            final var document = (Map<String, Object>) ((Map<String, Object>) policy.get("Properties")).get("PolicyDocument");
+            for (Map<String, Object> statement : (List<Map<String, Object>>) document.get("Statement")) {
+                final Object action = statement.get("Action");
+                final List<Object> actions = action instanceof List ? (List<Object>) action : List.of(action);
+                if (actions.contains("s3:PutObjectTagging")) {
+                    assertTrue(actions.contains("s3:PutObjectVersionTagging"), "Missing version tagging: " + actions);
+                    tagging++;
+                }
+            }
+        }
+        assertEquals(2, tagging);
+    }
+
+    @Test
+    public void stackRejectsProvisionedAboveReserved() {
+        assertThrows(IllegalArgumentException.class, () -> synth(Map.of(
+                "reservedConcurrency", "5",
+                "provisionedMax", "10")));
+    }
+
+    @Test
+    public void checkConcurrencyRejectsInvalidSettings() {
+        final Map<String, Long> none = Map.of();
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(-1, 0, 0, 70, none));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(0, 2, 0, 70, none));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(0, 0, 0, 70, Map.of(PEAK, 1L)));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(0, 11, 10, 70, none));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(5, 1, 10, 70, none));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(0, 1, 10, 101, none));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(0, 1, 10, -1, none));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkConcurrency(0, 1, 10, 70, Map.of(PEAK, 11L)));
+
+        assertDoesNotThrow(() -> ClamavLambdaStack.checkConcurrency(0, 0, 0, 70, none));
+        assertDoesNotThrow(() -> ClamavLambdaStack.checkConcurrency(10, 1, 10, 0, Map.of(PEAK, 10L, OFF_PEAK, 0L)));
+    }
+
+    @Test
+    public void stackRejectsPriorityPrefixWithoutBulkPrefixes() {
+        assertThrows(IllegalArgumentException.class, () -> synth(Map.of(
+                "bucketNames", "scan-bucket",
+                "priorityLanes", "scan-bucket/uploads/")));
+        assertDoesNotThrow(() -> synth(Map.of(
+                "bucketNames", "scan-bucket,other-bucket",
+                "priorityLanes", "scan-bucket/uploads/,other-bucket",
+                "bulkPrefixes", "scan-bucket/imports/")));
+    }
+
+    @Test
+    public void checkLanesRejectsInvalidSettings() {
+        final Map<String, List<String>> whole = Map.of("a", List.of(""));
+        final Map<String, List<String>> none = Map.of();
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkLanes(whole, none, 1, 10));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkLanes(whole, none, 20, 1));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkLanes(whole, none, 1001, 10));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.checkLanes(Map.of("a", List.of("uploads/")), none, 20, 10));
+
+        assertDoesNotThrow(() -> ClamavLambdaStack.checkLanes(whole, none, 2, 2));
+        assertDoesNotThrow(() -> ClamavLambdaStack.checkLanes(none, none, 1, 0));
+        assertDoesNotThrow(() -> ClamavLambdaStack.checkLanes(Map.of("a", List.of("uploads/")),
+                Map.of("a", List.of("imports/")), 20, 10));
+    }
+
+    @Test
+    public void scalesOnlyWhenCapacityCanMove() {
+        assertFalse(ClamavLambdaStack.scalesProvisioned(0, 0, Map.of()));
+        assertFalse(ClamavLambdaStack.scalesProvisioned(5, 5, Map.of()));
+        assertTrue(ClamavLambdaStack.scalesProvisioned(1, 5, Map.of()));
+        assertTrue(ClamavLambdaStack.scalesProvisioned(5, 5, Map.of(PEAK, 5L)));
+    }
+
+    @Test
+    public void parseScheduleKeepsOrderAndSkipsBlanks() {
+        final Map<String, Long> schedule = ClamavLambdaStack.parseSchedule(" " + PEAK + " = 10 ;; " + OFF_PEAK + "=0;");
+        assertEquals(List.of(PEAK, OFF_PEAK), List.copyOf(schedule.keySet()));
+        assertEquals(10L, schedule.get(PEAK));
+        assertEquals(0L, schedule.get(OFF_PEAK));
+        assertTrue(ClamavLambdaStack.parseSchedule(null).isEmpty());
+    }
+
+    @Test
+    public void parseScheduleRejectsMalformedEntries() {
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.parseSchedule(PEAK));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.parseSchedule(PEAK + "=ten"));
+        assertThrows(IllegalArgumentException.class, () -> ClamavLambdaStack.parseSchedule(PEAK + "=10;" + OFF_PEAK));
+    }
+}
@@ -0,0 +1,359 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Scan the members of a zip archive in parallel instead of handing the whole archive to a single scan (which only uses
+ * one core). Results are combined into one status and the remaining members are abandoned as soon as one is INFECTED.
+ *
+ * Members are read straight out of the staged file by the worker threads. Guards against zip bombs: a limit on the
+ * number of members, on total expanded bytes and on the expansion ratio to the archive size (all counted on the bytes
+ * actually read, not the sizes the archive claims). Nested archives are passed whole to the engine where ClamAV's own
+ * recursion limit (ARCHIVE_MAX_DEPTH) applies.
+ *
+ * Anything that is not a readable zip (7z, rar, encrypted members, corrupt files) is scanned whole by the delegate.
+ *
+ * @author sjensen
+ */
+public class ArchiveScanEngine implements ScanEngine {
+
+    final static Logger log = LogManager.getLogger(ArchiveScanEngine.class);
+
+    // Turn archive member scanning on or off
+    final static boolean ENABLED = EnvConfig.getBoolean("ARCHIVE_MODE", true);
+
+    // Members scanned at once
+    final static int CONCURRENCY = Math.max(1, EnvConfig.getInt("ARCHIVE_CONCURRENCY", Runtime.getRuntime().availableProcessors()));
+
+    // Zip bomb limits
+    final static int MAX_ENTRIES = EnvConfig.getInt("ARCHIVE_MAX_ENTRIES", 10000);
+    final static long MAX_RATIO = EnvConfig.getLong("ARCHIVE_MAX_RATIO", 100);
+    final static long MAX_EXPANDED_BYTES = EnvConfig.getLong("ARCHIVE_MAX_EXPANDED_BYTES", 4L * ScanStatus.MAX_BYTES);
+
+    // Nesting limit passed on to the engine (clamd MaxRecursion)
+    final static int MAX_DEPTH = EnvConfig.getInt("ARCHIVE_MAX_DEPTH", 16);
+
+    // Extensions worth staging to /tmp so members can be read in parallel
+    final static List<String> EXTENSIONS = List.of(".zip", ".jar");
+
+    final static ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY, r -> {
+        Thread t = new Thread(r, "archive-scan");
+        t.setDaemon(true);
+        return t;
+    });
+
+    final ScanEngine delegate;
+
+    public ArchiveScanEngine(ScanEngine delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void start() throws IOException, InterruptedException {
+        delegate.start();
+    }
+
+    @Override
+    public long startupMillis() {
+        return delegate.startupMillis();
+    }
+
+    @Override
+    public long scanMillis(ScanResult result) {
+        return delegate.scanMillis(result);
+    }
+
+    @Override
+    public boolean prefersFile(String key) {
+        final String name = key.toLowerCase(Locale.ROOT);
+        return EXTENSIONS.stream().anyMatch(name::endsWith) || delegate.prefersFile(key);
+    }
+
+    @Override
+    public ScanResult scan(Path file, long timeoutMillis) throws IOException, InterruptedException {
+        return scan(file, ScanProfile.DEFAULT, timeoutMillis);
+    }
+
+    @Override
+    public ScanResult scan(Path file, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        if (!isZip(file)) {
+            return delegate.scan(file, profile, timeoutMillis);
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            final var members = new Members(zip, Math.min(MAX_EXPANDED_BYTES, MAX_RATIO * Math.max(1, Files.size(file))));
+            final ScanResult result = members.scan(deadline);
+            if (result != null) {
+                return result;
+            }
+        } catch (ZipException e) {
+            log.info("Could not read {} as zip ({}), scanning whole archive", file, e.getMessage());
+        }
+        return delegate.scan(file, profile, Math.max(1, deadline - System.currentTimeMillis()));
+    }
+
+    @Override
+    public CompletableFuture<ScanResult> scanAsync(Path file, ScanProfile profile, long timeoutMillis, Executor executor) {
+        try {
+            if (!isZip(file)) {
+                return delegate.scanAsync(file, profile, timeoutMillis, executor);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // Members are scanned on the engine's own pool, block for them on the executor
+        return ScanEngine.super.scanAsync(file, profile, timeoutMillis, executor);
+    }
+
+    @Override
+    public ScanResult scan(InputStream in, long timeoutMillis) throws IOException, InterruptedException {
+        return scan(in, ScanProfile.DEFAULT, timeoutMillis);
+    }
+
+    @Override
+    public ScanResult scan(InputStream in, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        // A stream cannot be rewound to fall back on, so only staged files are split into members
+        return delegate.scan(in, profile, timeoutMillis);
+    }
+
+    @Override
+    public void reload(Path dir) throws IOException, InterruptedException {
+        delegate.reload(dir);
+    }
+
+    @Override
+    public boolean holdsDatabase() {
+        return delegate.holdsDatabase();
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return delegate.isHealthy();
+    }
+
+    @Override
+    public String name() {
+        return delegate.name();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private static boolean isZip(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = in.readNBytes(4);
+            return magic.length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+        }
+    }
+
+    /**
+     * One archive's member scan.
+     */
+    private class Members {
+
+        final ZipFile zip;
+
+        // Expanded bytes still allowed across all members
+        final AtomicLong budget;
+
+        // Set on the first INFECTED, limit hit or unreadable member so the rest stop reading
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        // Member could not be read as zip (encrypted etc), scan the whole archive instead
+        volatile boolean wholeArchive;
+
+        Members(ZipFile zip, long budget) {
+            this.zip = zip;
+            this.budget = new AtomicLong(budget);
+        }
+
+        /**
+         * @param deadline
+         * @return combined result, or null when the archive should be scanned whole instead
+         */
+        ScanResult scan(long deadline) throws InterruptedException {
+            final CompletionService<ScanResult> completion = new ExecutorCompletionService<>(executor);
+            final List<Future<ScanResult>> futures = new ArrayList<>();
+            if (zip.size() > MAX_ENTRIES) {
+                log.warn("{} has more than {} members, not scanning (possible zip bomb)", zip.getName(), MAX_ENTRIES);
+                return error();
+            }
+            try {
+                final Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    futures.add(completion.submit(() -> scanMember(entry, deadline)));
+                }
+                log.info("Scanning {} archive members with concurrency {}", futures.size(), CONCURRENCY);
+
+                ScanResult combined = ScanResult.of(ScanStatus.CLEAN, name());
+                for (int i = 0; i < futures.size(); i++) {
+                    Future<ScanResult> done = completion.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        log.error("Archive member scan timed out!");
+                        return combined.merge(error());
+                    }
+                    ScanResult result = get(done);
+                    if (wholeArchive) {
+                        return null;
+                    }
+                    // Sizes and times of the members add up, the first INFECTED member ends the scan
+                    combined = combined.merge(result);
+                    if (result.status() == ScanStatus.INFECTED) {
+                        return combined;
+                    }
+                }
+                return combined;
+            } finally {
+                stop.set(true);
+                futures.forEach(f -> f.cancel(true));
+            }
+        }
+
+        private ScanResult scanMember(ZipEntry entry, long deadline) throws IOException, InterruptedException {
+            if (stop.get()) {
+                return error();
+            }
+            try (InputStream in = new BudgetInputStream(zip.getInputStream(entry))) {
+                ScanResult result = delegate.scan(in, Math.max(1, deadline - System.currentTimeMillis()));
+                if (result.status() == ScanStatus.INFECTED) {
+                    log.info("Archive member {} is INFECTED: {}", entry.getName(), result.signatures());
+                    stop.set(true);
+                }
+                return result;
+            } catch (ZipException e) {
+                log.info("Could not read archive member {} ({})", entry.getName(), e.getMessage());
+                wholeArchive = true;
+                stop.set(true);
+                return error();
+            }
+        }
+
+        private ScanResult get(Future<ScanResult> future) throws InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                if (!stop.get() && !(e.getCause() instanceof ScanAborted)) {
+                    log.error("Archive member scan failed", e.getCause());
+                }
+                return error();
+            }
+        }
+
+        private ScanResult error() {
+            return ScanResult.of(ScanStatus.ERROR, name());
+        }
+
+        /**
+         * Counts expanded bytes against the shared budget and aborts reading once the scan is stopped. Aborts are thrown
+         * as {@link ScanAborted} so they pass through the engines (and any fallback) as a source failure, not as the
+         * engine failing.
+         */
+        private class BudgetInputStream extends FilterInputStream {
+
+            BudgetInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                check();
+                int b = stopped(() -> super.read());
+                if (b >= 0) {
+                    spend(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                check();
+                int n = stopped(() -> super.read(b, off, len));
+                if (n > 0) {
+                    spend(n);
+                }
+                return n;
+            }
+
+            /**
+             * A read that fails because the scan was stopped (cancel interrupts the worker) is an abort, not a bad member.
+             */
+            private int stopped(Read read) throws IOException {
+                try {
+                    return read.read();
+                } catch (IOException e) {
+                    if (stop.get() || Thread.currentThread().isInterrupted()) {
+                        throw new ScanAborted("Archive scan stopped", e);
+                    }
+                    throw e;
+                }
+            }
+
+            private void check() {
+                if (stop.get()) {
+                    throw new ScanAborted("Archive scan stopped", null);
+                }
+            }
+
+            private void spend(int n) {
+                if (budget.addAndGet(-n) < 0) {
+                    if (!stop.getAndSet(true)) {
+                        log.warn("{} expands past {} bytes or {}x its size, not scanning (possible zip bomb)",
+                                zip.getName(), MAX_EXPANDED_BYTES, MAX_RATIO);
+                    }
+                    throw new ScanAborted("Archive expansion limit exceeded", null);
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Read {
+
+        int read() throws IOException;
+    }
+
+    /**
+     * Reading an archive member was stopped on purpose (another member is INFECTED, a zip bomb limit was hit or the scan
+     * was cancelled). Unchecked so engines and {@link ScanEngines.FallbackScanEngine} don't take it for a clamd failure.
+     */
+    static class ScanAborted extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ScanAborted(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
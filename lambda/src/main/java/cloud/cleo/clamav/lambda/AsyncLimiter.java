@@ -0,0 +1,105 @@
+package cloud.cleo.clamav.lambda;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Run at most a fixed number of asynchronous tasks at once. Tasks over the limit wait in order without holding a
+ * thread, and start as soon as a running one completes.
+ *
+ * @author sjensen
+ */
+public class AsyncLimiter {
+
+    final int limit;
+
+    // Guarded by this
+    int running;
+
+    final Deque<Runnable> waiting = new ArrayDeque<>();
+
+    // Tasks handed a slot on this thread while it was already starting one, started in turn once that returns
+    private final ThreadLocal<Deque<Runnable>> starting = new ThreadLocal<>();
+
+    public AsyncLimiter(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Start the task now if under the limit, otherwise when a slot frees up.
+     *
+     * @param <T>
+     * @param task creates the future to wait on, only called once the task has a slot
+     * @return completes like the future the task creates
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        final var result = new CompletableFuture<T>();
+        final Runnable start = () -> {
+            CompletableFuture<T> future;
+            try {
+                future = task.get();
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((value, failure) -> {
+                release();
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        final boolean now;
+        synchronized (this) {
+            now = running < limit;
+            if (now) {
+                running++;
+            } else {
+                waiting.add(start);
+            }
+        }
+        if (now) {
+            launch(start);
+        }
+        return result;
+    }
+
+    private void release() {
+        final Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                running--;
+            }
+        }
+        // The slot passes straight to the next task
+        if (next != null) {
+            launch(next);
+        }
+    }
+
+    /**
+     * Start a task that has a slot. A task whose future is already complete releases its slot while being started, so
+     * the next one is queued and started in a loop here rather than inside it, however long the queue.
+     */
+    private void launch(Runnable task) {
+        final Deque<Runnable> pending = starting.get();
+        if (pending != null) {
+            pending.add(task);
+            return;
+        }
+        final Deque<Runnable> queue = new ArrayDeque<>();
+        starting.set(queue);
+        try {
+            for (Runnable next = task; next != null; next = queue.poll()) {
+                next.run();
+            }
+        } finally {
+            starting.remove();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import static cloud.cleo.clamav.ScanStatus.MAX_BYTES;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Scan by forking a new clamscan process for every file. This loads the entire signature database on each run, so it
+ * is slow, but it has no moving parts and is used as the fallback when clamd is not available.
+ *
+ * Output is parsed as it is printed ({@link ScanOutput}) for the signatures found and the summary. Several files can be
+ * scanned by one process with --file-list, so the database is loaded once for the batch. The result of each file is
+ * then read from the --stdout lines, since the exit code only says whether anything was found.
+ *
+ * @author sjensen
+ */
+public class ClamScanEngine implements ScanEngine {
+
+    final static Logger log = LogManager.getLogger(ClamScanEngine.class);
+
+    // Time to load the full database, paid by every run
+    final static long STARTUP_MILLIS = EnvConfig.getLong("CLAMSCAN_STARTUP_MILLIS", 45000L);
+
+    @Override
+    public ScanResult scan(Path file, long timeoutMillis) throws IOException, InterruptedException {
+        return scan(file, ScanProfile.DEFAULT, timeoutMillis);
+    }
+
+    @Override
+    public ScanResult scan(InputStream in, long timeoutMillis) throws IOException, InterruptedException {
+        return scan(in, ScanProfile.DEFAULT, timeoutMillis);
+    }
+
+    @Override
+    public long startupMillis() {
+        return STARTUP_MILLIS;
+    }
+
+    @Override
+    public long scanMillis(ScanResult result) {
+        // The reported time includes loading the database (and reading stdin), which can't be told apart from the scan
+        return -1;
+    }
+
+    @Override
+    public ScanResult scan(Path file, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        log.info("Running clamscan on file: {}", file);
+        return run(file.toString(), null, profile, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<ScanResult> scanAsync(Path file, ScanProfile profile, long timeoutMillis, Executor executor) {
+        log.info("Running clamscan on file: {}", file);
+        final List<String> command = command(profile);
+        command.add(file.toString());
+        final Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // Parse the output as it is printed, so clamscan never blocks on a full pipe
+        final var output = new ScanOutput(name(), List.of(file.toString()));
+        final CompletableFuture<Void> read = CompletableFuture.runAsync(() -> output.read(process.getInputStream()), executor);
+
+        // No thread waits for the process, onExit completes from the JDK's process reaper
+        return process.onExit()
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .handleAsync((exited, failure) -> {
+                    if (failure != null) {
+                        process.descendants().forEach(ProcessHandle::destroyForcibly);
+                        process.destroyForcibly();
+                        log.error("clamscan process timed out!");
+                        return CompletableFuture.completedFuture(ScanResult.of(ScanStatus.ERROR, name()));
+                    }
+                    return read.thenApply(v -> output.result(file.toString(), status(exited.exitValue())));
+                }, executor)
+                .thenCompose(status -> status);
+    }
+
+    @Override
+    public ScanResult scan(InputStream in, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        log.info("Running clamscan on stream");
+        // clamscan reads from stdin when the file name is "-"
+        return run("-", in, profile, timeoutMillis);
+    }
+
+    @Override
+    public Map<Path, ScanResult> scan(List<Path> files, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        if (files.size() == 1) {
+            return Map.of(files.getFirst(), scan(files.getFirst(), profile, timeoutMillis));
+        }
+        log.info("Running clamscan on {} files", files.size());
+
+        final Path fileList = Files.createTempFile(Path.of("/tmp"), "clamscan", ".list");
+        try {
+            Files.write(fileList, files.stream().map(Path::toString).toList());
+            final List<String> command = command(profile);
+            command.add("--no-summary");
+            command.add("--file-list=" + fileList);
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+
+            // Read results as they are printed, so files finished before a timeout keep their result
+            final var output = new ScanOutput(name(), files.stream().map(Path::toString).toList());
+            final Thread reader = Thread.ofVirtual().start(() -> output.read(process.getInputStream()));
+
+            final boolean finished = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!finished) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                log.error("clamscan process timed out with {} of {} files scanned", output.verdicts.size(), files.size());
+            }
+            reader.join();
+            if (finished && output.verdicts.size() < files.size()) {
+                log.error("clamscan exited with {} before reporting on every file", process.exitValue());
+            }
+
+            // Files never reported on were not scanned
+            final Map<Path, ScanResult> results = new LinkedHashMap<>();
+            files.forEach(file -> results.put(file,
+                    output.result(file.toString(), output.status(file.toString()).orElse(ScanStatus.ERROR))));
+            return results;
+        } finally {
+            Files.deleteIfExists(fileList);
+        }
+    }
+
+    @Override
+    public boolean batchesScans() {
+        return true;
+    }
+
+    private ScanResult run(String target, InputStream stdin, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        final List<String> command = command(profile);
+        command.add(target);
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+
+        // Parse the output as it is printed, -v output for a big archive could otherwise fill the pipe and stall clamscan
+        final String name = "-".equals(target) ? "stdin" : target;
+        final var output = new ScanOutput(name(), List.of(name));
+        final Thread reader = Thread.ofVirtual().start(() -> output.read(process.getInputStream()));
+
+        // Feed stdin on its own thread so we can still enforce the timeout
+        Thread feeder = null;
+        final var feedFailure = new AtomicReference<RuntimeException>();
+        if (stdin != null) {
+            feeder = Thread.ofVirtual().start(() -> {
+                try (OutputStream os = process.getOutputStream()) {
+                    stdin.transferTo(os);
+                } catch (IOException e) {
+                    // clamscan closed its side, exit code will tell us what happened
+                    log.warn("Failed writing stream to clamscan: {}", e.getMessage());
+                } catch (RuntimeException e) {
+                    // Source stream failed, the scan only saw part of the content
+                    feedFailure.set(e);
+                    process.destroyForcibly();
+                }
+            });
+        }
+
+        boolean finished = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        if (!finished) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            log.error("clamscan process timed out!");
+            return ScanResult.of(ScanStatus.ERROR, name());
+        }
+
+        if (feeder != null) {
+            feeder.join();
+            if (feedFailure.get() != null) {
+                throw feedFailure.get();
+            }
+        }
+
+        reader.join();
+        return output.result(name, status(process.exitValue()));
+    }
+
+    private static ScanStatus status(int exitValue) {
+        // According to ClamAV: 0 means CLEAN, 1 means INFECTED, else ERROR.
+        return switch (exitValue) {
+            case 0 ->
+                ScanStatus.CLEAN;
+            case 1 ->
+                ScanStatus.INFECTED;
+            default ->
+                ScanStatus.ERROR;
+        };
+    }
+
+    private static List<String> command(ScanProfile profile) {
+        final List<String> command = new ArrayList<>(List.of(
+                "clamscan",
+                "-v",
+                "--database=" + Definitions.directory(),
+                "--stdout",
+                "--max-filesize=" + MAX_BYTES,
+                "--max-scansize=" + MAX_BYTES,
+                "-r",
+                "--tempdir=/tmp"));
+        // Later options win, so profile limits override the defaults above
+        command.addAll(profile.options());
+        return command;
+    }
+
+    @Override
+    public String name() {
+        return "clamscan";
+    }
+}
@@ -0,0 +1,505 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import static cloud.cleo.clamav.ScanStatus.MAX_BYTES;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Scan using a clamd daemon that is started once per execution environment. The signature database is loaded into
+ * memory a single time and then every scan is just a request over the local unix socket, so warm invocations do not pay
+ * to reload the definitions.
+ *
+ * @author sjensen
+ */
+public class ClamdEngine implements ScanEngine {
+
+    final static Logger log = LogManager.getLogger(ClamdEngine.class);
+
+    // Where we write the generated config and where clamd listens
+    final static Path CONFIG_FILE = Path.of("/tmp/clamd.conf");
+    final static Path SOCKET_FILE = Path.of("/tmp/clamd.sock");
+
+    // Size of chunks sent with INSTREAM
+    final static int CHUNK_SIZE = 64 * 1024;
+
+    // Loading the full database can take a while on first start
+    final static long STARTUP_MILLIS = EnvConfig.getLong("CLAMD_STARTUP_MILLIS", 120000L);
+
+    // After a failed start scans go straight to the fallback for this long before clamd is started again
+    final static long RETRY_MILLIS = EnvConfig.getLong("CLAMD_RETRY_MILLIS", 60000L);
+
+    // Interval between VERSION checks while waiting for a reload
+    final static long RELOAD_POLL_MILLIS = 500;
+
+    // Used to abort socket reads when a scan runs too long
+    final static ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "clamd-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Process process;
+
+    // When process was started and whether it has answered PING since
+    private long startedAt;
+    private boolean ready;
+
+    // No new start before this time, set when a start fails
+    private long retryAt;
+
+    // Scans using the process now, and whether it is replaced once none are
+    private int active;
+    private boolean restartPending;
+
+    /**
+     * Start clamd if it is not already running and wait until it answers PING.
+     *
+     * @throws IOException if clamd could not be started or never became ready
+     * @throws InterruptedException
+     */
+    @Override
+    public void start() throws IOException, InterruptedException {
+        start(STARTUP_MILLIS);
+    }
+
+    /**
+     * Start clamd if it is not already running and wait at most maxWaitMillis for it to answer PING. The wait is not
+     * held under the lock, so a scan never waits longer than it asked to because another one is waiting. A start that
+     * is not ready by then carries on for the next scan, a start that fails is not tried again for RETRY_MILLIS.
+     *
+     * @param maxWaitMillis
+     * @throws NotReadyException if clamd is still starting or a failed start is not retried yet
+     * @throws IOException if clamd could not be started or never became ready
+     * @throws InterruptedException
+     */
+    void start(long maxWaitMillis) throws IOException, InterruptedException {
+        final Process starting;
+        final long waitUntil;
+        synchronized (this) {
+            if (process != null && process.isAlive() && ready) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (process != null && !process.isAlive()) {
+                if (ready) {
+                    log.warn("clamd exited with code {}, restarting", process.exitValue());
+                    process = null;
+                } else {
+                    failedStart("clamd exited during startup with code " + process.exitValue());
+                }
+            }
+            if (process == null) {
+                if (now < retryAt) {
+                    throw new NotReadyException("clamd failed to start, retrying in " + (retryAt - now) + " ms");
+                }
+                log.info("Starting clamd with database {}", Definitions.directory());
+                try {
+                    writeConfig();
+                    Files.deleteIfExists(SOCKET_FILE);
+                    process = new ProcessBuilder("clamd", "--config-file=" + CONFIG_FILE)
+                            .redirectErrorStream(true)
+                            .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+                } catch (IOException e) {
+                    failedStart("clamd could not be started (" + e.getMessage() + ")");
+                    throw e;
+                }
+                startedAt = now;
+                ready = false;
+            }
+            starting = process;
+            waitUntil = Math.min(startedAt + STARTUP_MILLIS, now + maxWaitMillis);
+        }
+
+        while (System.currentTimeMillis() < waitUntil) {
+            if (!starting.isAlive()) {
+                synchronized (this) {
+                    if (process == starting) {
+                        failedStart("clamd exited during startup with code " + starting.exitValue());
+                    }
+                }
+                throw new IOException("clamd exited during startup with code " + starting.exitValue());
+            }
+            if (Files.exists(SOCKET_FILE)) {
+                try {
+                    if ("PONG".equals(command("zPING", 5000))) {
+                        synchronized (this) {
+                            if (process == starting && !ready) {
+                                ready = true;
+                                log.info("clamd ready in {} ms", System.currentTimeMillis() - startedAt);
+                            }
+                        }
+                        return;
+                    }
+                } catch (IOException e) {
+                    log.debug("clamd not ready yet: {}", e.getMessage());
+                }
+            }
+            Thread.sleep(250);
+        }
+
+        synchronized (this) {
+            if (process == starting && System.currentTimeMillis() - startedAt >= STARTUP_MILLIS) {
+                starting.destroyForcibly();
+                failedStart("clamd did not become ready within " + STARTUP_MILLIS + " ms");
+                throw new IOException("clamd did not become ready within " + STARTUP_MILLIS + " ms");
+            }
+        }
+        throw new NotReadyException("clamd still starting after " + maxWaitMillis + " ms");
+    }
+
+    /**
+     * Forget a process that did not start and hold off on starting another.
+     */
+    private void failedStart(String reason) {
+        log.error("{}, not starting it again for {} ms", reason, RETRY_MILLIS);
+        process = null;
+        ready = false;
+        retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+    }
+
+    /**
+     * Claim the running clamd for a scan, unless it is waiting to be restarted (the fallback scans meanwhile).
+     *
+     * @throws NotReadyException
+     */
+    private synchronized void acquire() throws NotReadyException {
+        if (restartPending) {
+            throw new NotReadyException("clamd is restarting after a scan timed out");
+        }
+        active++;
+    }
+
+    /**
+     * Done with clamd for a scan. One that timed out after clamd had all of the content leaves clamd scanning it for
+     * nobody, holding one of its threads until it finishes, so clamd is restarted once no other scan is using it.
+     *
+     * @param abandoned true when the scan timed out while clamd was scanning
+     */
+    private synchronized void release(boolean abandoned) {
+        active--;
+        if (abandoned && !restartPending) {
+            log.warn("clamd is still scanning content nobody is waiting for, restarting it once {} other scans finish", active);
+            restartPending = true;
+        }
+        if (restartPending && active == 0) {
+            restartPending = false;
+            close();
+        }
+    }
+
+    @Override
+    public synchronized boolean isHealthy() {
+        if (process == null || !process.isAlive()) {
+            return false;
+        }
+        try {
+            return "PONG".equals(command("zPING", 5000));
+        } catch (IOException e) {
+            log.warn("clamd did not answer PING: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public boolean holdsDatabase() {
+        return true;
+    }
+
+    /**
+     * Repoint the database link and ask clamd to reload. clamd loads the new database alongside the old one and keeps
+     * serving scans until it switches, so this waits for VERSION to change before reporting the new definitions.
+     *
+     * The wait is counted in polls, not wall clock time, so a freeze between invocations cannot use it up. When VERSION
+     * never changes (clamd still loading, or a release with the same daily version) the link is put back and the new
+     * definitions are not reported, the watcher tries again on its next check.
+     *
+     * @param dir
+     * @throws IOException when clamd did not confirm the reload
+     * @throws InterruptedException
+     */
+    @Override
+    public void reload(Path dir) throws IOException, InterruptedException {
+        final boolean running;
+        synchronized (this) {
+            running = process != null && process.isAlive();
+            Definitions.link(dir);
+        }
+        if (!running) {
+            // Will load from the link when started
+            Definitions.activate(dir);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        boolean loaded = false;
+        try {
+            String before = command("zVERSION", 5000);
+            String reply = command("zRELOAD", 5000);
+            if (!"RELOADING".equals(reply)) {
+                throw new IOException("clamd did not accept RELOAD: " + reply);
+            }
+            for (long polls = STARTUP_MILLIS / RELOAD_POLL_MILLIS; polls > 0; polls--) {
+                Thread.sleep(RELOAD_POLL_MILLIS);
+                String version = command("zVERSION", 5000);
+                if (version != null && !version.equals(before)) {
+                    log.info("clamd reloaded in {} ms: {}", (System.nanoTime() - start) / 1_000_000, version);
+                    Definitions.activate(dir);
+                    loaded = true;
+                    return;
+                }
+            }
+            throw new IOException("clamd VERSION unchanged after reload of " + dir);
+        } finally {
+            if (!loaded) {
+                // Back to what scans are reported as using, a later restart must not pick up unconfirmed definitions
+                Definitions.link(Definitions.directory());
+            }
+        }
+    }
+
+    @Override
+    public ScanResult scan(Path file, long timeoutMillis) throws IOException, InterruptedException {
+        // Leave at least half the time for the scan, or for a fallback when clamd is not ready by then
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        start(timeoutMillis / 2);
+        acquire();
+        boolean abandoned = false;
+        try {
+            log.info("Sending file to clamd for scanning: {}", file);
+            final long start = System.currentTimeMillis();
+            String reply = command("zSCAN " + file, Math.max(1, deadline - start));
+            if (reply == null) {
+                // clamd has the path as soon as the command is sent and carries on scanning it
+                abandoned = true;
+                log.error("clamd scan timed out!");
+                return ScanResult.of(ScanStatus.ERROR, name());
+            }
+            log.debug("clamd reply: {}", reply);
+            return parseReply(reply, Files.size(file), System.currentTimeMillis() - start);
+        } finally {
+            release(abandoned);
+        }
+    }
+
+    /**
+     * Map a clamd reply line to a result. Replies look like "path: OK", "path: Signature FOUND" or "path: reason
+     * ERROR". clamd does not report a summary, so the size is what was sent (or the file size) and the time is from
+     * when clamd had all of the content to the reply, which is all clamd's own work since the database is already
+     * loaded.
+     *
+     * @param reply
+     * @param bytes
+     * @param millis
+     * @return
+     */
+    static ScanResult parseReply(String reply, long bytes, long millis) {
+        // Signature names never contain ": ", paths can
+        final int sep = reply.lastIndexOf(": ");
+        final ScanResult verdict = ScanOutput.verdict(sep >= 0 ? reply.substring(sep + 2) : reply, "clamd");
+        return new ScanResult(verdict.status(), verdict.signatures(), bytes, millis, verdict.engine());
+    }
+
+    @Override
+    public ScanResult scan(InputStream in, long timeoutMillis) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        start(timeoutMillis / 2);
+        acquire();
+
+        log.info("Streaming content to clamd for scanning");
+        final var sent = new AtomicLong();
+        // When the last chunk was sent, clamd only scans once it has the whole stream
+        final var scanStart = new AtomicLong();
+        final String reply;
+        boolean abandoned = false;
+        try {
+            reply = stream(in, Math.max(1, deadline - System.currentTimeMillis()), sent, scanStart);
+            // A timeout while still sending ends the stream, clamd drops it without scanning
+            abandoned = reply == null && scanStart.get() > 0;
+        } finally {
+            release(abandoned);
+        }
+        if (reply == null) {
+            log.error("clamd scan timed out!");
+            return ScanResult.of(ScanStatus.ERROR, name());
+        }
+        log.debug("clamd reply: {}", reply);
+        return parseReply(reply, sent.get(), System.currentTimeMillis() - scanStart.get());
+    }
+
+    /**
+     * Send content with INSTREAM and read the reply.
+     *
+     * @return the reply, or null if the timeout was reached first
+     */
+    private String stream(InputStream in, long timeoutMillis, AtomicLong sent, AtomicLong scanStart) throws IOException {
+        return exchange(timeoutMillis, channel -> {
+            writeFully(channel, ByteBuffer.wrap("zINSTREAM\0".getBytes(StandardCharsets.UTF_8)));
+
+            // Each chunk is prefixed with its length as a 4 byte unsigned int in network byte order
+            ByteBuffer length = ByteBuffer.allocate(4);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                if (read == 0) {
+                    continue;
+                }
+                length.clear();
+                length.putInt(read).flip();
+                writeFully(channel, length);
+                writeFully(channel, ByteBuffer.wrap(chunk, 0, read));
+                sent.addAndGet(read);
+            }
+
+            // Zero length chunk terminates the stream
+            length.clear();
+            length.putInt(0).flip();
+            writeFully(channel, length);
+            scanStart.set(System.currentTimeMillis());
+            return readReply(channel);
+        });
+    }
+
+    /**
+     * Send a single null terminated command on a new connection and read the null terminated reply.
+     *
+     * @param command command including the "z" prefix
+     * @param timeoutMillis
+     * @return the reply, or null if the timeout was reached first
+     * @throws IOException
+     */
+    String command(String command, long timeoutMillis) throws IOException {
+        return exchange(timeoutMillis, channel -> {
+            writeFully(channel, ByteBuffer.wrap((command + '\0').getBytes(StandardCharsets.UTF_8)));
+            return readReply(channel);
+        });
+    }
+
+    /**
+     * Conversation with clamd on a single connection.
+     */
+    @FunctionalInterface
+    interface Exchange {
+
+        String run(SocketChannel channel) throws IOException;
+    }
+
+    /**
+     * Open a connection to clamd and run the exchange, aborting it if it takes longer than the timeout.
+     *
+     * @param timeoutMillis
+     * @param exchange
+     * @return the reply, or null if the timeout was reached first
+     * @throws IOException
+     */
+    private String exchange(long timeoutMillis, Exchange exchange) throws IOException {
+        final SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(SOCKET_FILE));
+
+            // Closing the channel from the watchdog unblocks any read or write in progress
+            final var timedOut = new AtomicBoolean(false);
+            ScheduledFuture<?> timer = watchdog.schedule(() -> {
+                timedOut.set(true);
+                closeQuietly(channel);
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+            try {
+                return exchange.run(channel);
+            } catch (IOException e) {
+                if (timedOut.get()) {
+                    return null;
+                }
+                throw e;
+            } finally {
+                timer.cancel(false);
+            }
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static String readReply(SocketChannel channel) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == 0) {
+                    return reply.toString(StandardCharsets.UTF_8).trim();
+                }
+                reply.write(b);
+            }
+            buffer.clear();
+        }
+        return reply.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Generate clamd config. Limits mirror the arguments used for clamscan so results are the same for either engine.
+     *
+     * @throws IOException
+     */
+    private static void writeConfig() throws IOException {
+        String config = String.join("\n",
+                "Foreground yes",
+                "LocalSocket " + SOCKET_FILE,
+                "DatabaseDirectory " + Definitions.link(),
+                "TemporaryDirectory /tmp",
+                "MaxThreads " + Math.max(Runtime.getRuntime().availableProcessors(), ArchiveScanEngine.CONCURRENCY),
+                "MaxRecursion " + ArchiveScanEngine.MAX_DEPTH,
+                "MaxFileSize " + MAX_BYTES,
+                "MaxScanSize " + MAX_BYTES,
+                "StreamMaxLength " + MAX_BYTES,
+                "LogVerbose no",
+                ""
+        );
+        Files.writeString(CONFIG_FILE, config);
+    }
+
+    @Override
+    public String name() {
+        return "clamd";
+    }
+
+    @Override
+    public synchronized void close() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+            ready = false;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tracks which signature database directory is in use. Starts with the definitions baked into the image and moves to
+ * newer ones downloaded by {@link DefinitionsWatcher}.
+ *
+ * Each update lives in its own directory and is never changed afterwards, so the directory doubles as the version
+ * (see {@link SignatureVersion}). clamd is configured with a symlink that is repointed before asking it to reload,
+ * while {@link #directory()} only moves once the engine actually uses the new definitions.
+ *
+ * @author sjensen
+ */
+public final class Definitions {
+
+    final static Logger log = LogManager.getLogger(Definitions.class);
+
+    // Stable path handed to clamd as its DatabaseDirectory
+    final static Path LINK = Path.of("/tmp/clamav_db");
+
+    private static volatile Path current = Path.of(ScanEngine.DATABASE_DIR);
+
+    private Definitions() {
+    }
+
+    /**
+     * Directory holding the definitions scans are using now.
+     *
+     * @return
+     */
+    public static Path directory() {
+        return current;
+    }
+
+    /**
+     * Version of the definitions in use, for cache keys and logging.
+     *
+     * @return
+     */
+    public static String version() {
+        return SignatureVersion.of(current.toString());
+    }
+
+    /**
+     * Point the clamd symlink at a directory (atomically, so a reload never sees a missing directory).
+     *
+     * @param dir
+     * @return the symlink path
+     * @throws IOException
+     */
+    static synchronized Path link(Path dir) throws IOException {
+        Path tmp = LINK.resolveSibling(LINK.getFileName() + ".new");
+        Files.deleteIfExists(tmp);
+        Files.createSymbolicLink(tmp, dir);
+        Files.move(tmp, LINK, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return LINK;
+    }
+
+    /**
+     * Link clamd to the current directory, used when the engine starts.
+     *
+     * @return the symlink path
+     * @throws IOException
+     */
+    static Path link() throws IOException {
+        return link(current);
+    }
+
+    /**
+     * Record that the engine now scans with the definitions in dir.
+     *
+     * @param dir
+     */
+    static synchronized void activate(Path dir) {
+        log.info("Definitions now in use: {} ({})", dir, SignatureVersion.of(dir.toString()));
+        current = dir;
+    }
+}
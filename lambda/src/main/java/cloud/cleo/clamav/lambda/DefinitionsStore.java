@@ -0,0 +1,193 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Signature definitions published to S3 by {@link DefinitionsUpdater} and pulled by {@link DefinitionsWatcher}.
+ *
+ * Layout under the prefix:
+ * <ul>
+ * <li>versions/&lt;release&gt;/&lt;file&gt; - the CVD/CLD files of each release, never modified</li>
+ * <li>CURRENT - release id on the first line, then one "file version" line per database file</li>
+ * </ul>
+ * CURRENT is written last, so readers only ever see complete releases.
+ *
+ * @author sjensen
+ */
+public class DefinitionsStore {
+
+    final static Logger log = LogManager.getLogger(DefinitionsStore.class);
+
+    // Bucket the definitions are published to, live updates are off when not set
+    final static String BUCKET = EnvConfig.getString("DEFINITIONS_BUCKET", null);
+
+    final static String PREFIX = EnvConfig.getString("DEFINITIONS_PREFIX", "clamav-defs/");
+
+    /**
+     * A published set of definitions.
+     *
+     * @param id release id derived from the signature version
+     * @param files file name to version (like "daily.cld" to "daily:27000")
+     */
+    public record Release(String id, Map<String, String> files) {
+
+        static Release of(Path dir) throws IOException {
+            final var files = new LinkedHashMap<String, String>();
+            try (Stream<Path> list = Files.list(dir)) {
+                for (Path file : list.sorted().toList()) {
+                    String version = SignatureVersion.readHeader(file);
+                    if (version != null) {
+                        files.put(file.getFileName().toString(), version);
+                    }
+                }
+            }
+            return new Release(String.join("_", files.values()).replace(':', '-'), files);
+        }
+
+        static Release parse(String text) {
+            final var lines = text.strip().split("\n");
+            final var files = new LinkedHashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                String[] parts = lines[i].trim().split(" ");
+                files.put(parts[0], parts[1]);
+            }
+            return new Release(lines[0].trim(), files);
+        }
+
+        String format() {
+            final var sb = new StringBuilder(id).append('\n');
+            files.forEach((name, version) -> sb.append(name).append(' ').append(version).append('\n'));
+            return sb.toString();
+        }
+    }
+
+    final S3AsyncClient s3Client;
+
+    final String bucket;
+
+    final String prefix;
+
+    public DefinitionsStore(S3AsyncClient s3Client, String bucket, String prefix) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Store configured from environment, empty when live definitions are not enabled.
+     *
+     * @param s3Client
+     * @return
+     */
+    public static Optional<DefinitionsStore> fromEnv(S3AsyncClient s3Client) {
+        return BUCKET == null ? Optional.empty() : Optional.of(new DefinitionsStore(s3Client, BUCKET, PREFIX));
+    }
+
+    /**
+     * The latest published release.
+     *
+     * @return empty if nothing has been published yet
+     */
+    public Optional<Release> current() {
+        try {
+            String text = s3Client.getObject(b -> b.bucket(bucket).key(prefix + "CURRENT"), AsyncResponseTransformer.toBytes())
+                    .join().asUtf8String();
+            return Optional.of(Release.parse(text));
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof NoSuchKeyException) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Download a release into an empty directory. Files with the same version in reuseFrom are linked instead of
+     * downloaded (CVD/CLD files never change for a given version), so usually only daily is transferred.
+     *
+     * @param release
+     * @param dir
+     * @param reuseFrom directory with the definitions currently in use, may be null
+     * @throws IOException
+     */
+    public void download(Release release, Path dir, Path reuseFrom) throws IOException {
+        Files.createDirectories(dir);
+        final List<CompletableFuture<?>> downloads = new ArrayList<>();
+        for (var file : release.files().entrySet()) {
+            Path target = dir.resolve(file.getKey());
+            Path existing = reuseFrom == null ? null : reuseFrom.resolve(file.getKey());
+            if (existing != null && file.getValue().equals(SignatureVersion.readHeader(existing))) {
+                reuse(existing.toRealPath(), target);
+            } else {
+                log.info("Downloading {} ({})", file.getKey(), file.getValue());
+                downloads.add(s3Client.getObject(b -> b.bucket(bucket).key(fileKey(release, file.getKey())), target));
+            }
+        }
+        CompletableFuture.allOf(downloads.toArray(CompletableFuture[]::new)).join();
+    }
+
+    /**
+     * Publish the databases in dir as a new release and make it current. Files unchanged from the previous release
+     * are copied within S3 rather than uploaded again.
+     *
+     * @param dir
+     * @param previous
+     * @return the new release
+     * @throws IOException
+     */
+    public Release publish(Path dir, Optional<Release> previous) throws IOException {
+        final Release release = Release.of(dir);
+        final List<CompletableFuture<?>> uploads = new ArrayList<>();
+        for (var file : release.files().entrySet()) {
+            final String key = fileKey(release, file.getKey());
+            if (previous.isPresent() && file.getValue().equals(previous.get().files().get(file.getKey()))) {
+                final String source = fileKey(previous.get(), file.getKey());
+                uploads.add(s3Client.copyObject(b -> b.sourceBucket(bucket).sourceKey(source)
+                        .destinationBucket(bucket).destinationKey(key)));
+            } else {
+                log.info("Uploading {} ({})", file.getKey(), file.getValue());
+                uploads.add(s3Client.putObject(b -> b.bucket(bucket).key(key),
+                        AsyncRequestBody.fromFile(dir.resolve(file.getKey()))));
+            }
+        }
+        CompletableFuture.allOf(uploads.toArray(CompletableFuture[]::new)).join();
+
+        s3Client.putObject(b -> b.bucket(bucket).key(prefix + "CURRENT"),
+                AsyncRequestBody.fromString(release.format(), StandardCharsets.UTF_8)).join();
+        log.info("Published definitions release {}", release.id());
+        return release;
+    }
+
+    private String fileKey(Release release, String file) {
+        return prefix + "versions/" + release.id() + "/" + file;
+    }
+
+    /**
+     * Hard link when on the same file system (survives the old directory being deleted), otherwise symlink (files
+     * baked into the image are never deleted).
+     */
+    private static void reuse(Path existing, Path target) throws IOException {
+        try {
+            Files.createLink(target, existing);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.createSymbolicLink(target, existing);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package cloud.cleo.clamav.lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Scheduled Lambda that brings the signature definitions up to date and publishes them to the {@link DefinitionsStore}
+ * for warm scanners to pick up, so definitions no longer require an image rebuild.
+ *
+ * freshclam does the real work (incremental CDIFF updates), the working directory is kept in /tmp between warm
+ * invocations and seeded from the last published release otherwise. DEFINITIONS_MIRROR can point freshclam at a
+ * private http(s) mirror, or be a file:// directory of CVD/CLD files which are copied in when newer (a local stand-in
+ * for offline testing).
+ *
+ * @author sjensen
+ */
+public class DefinitionsUpdater implements RequestHandler<Map<String, Object>, String> {
+
+    final static Logger log = LogManager.getLogger(DefinitionsUpdater.class);
+
+    // Optional mirror, http(s):// for freshclam or file:// for a local directory
+    final static String MIRROR = EnvConfig.getString("DEFINITIONS_MIRROR", null);
+
+    final static Path WORK_DIR = Path.of("/tmp/freshclam");
+
+    final static Path CONFIG_FILE = Path.of("/tmp/freshclam.conf");
+
+    final static long FRESHCLAM_MILLIS = EnvConfig.getLong("FRESHCLAM_TIMEOUT_MILLIS", 300000L);
+
+    final DefinitionsStore store;
+
+    final String mirror;
+
+    // freshclam working directory, kept between warm invocations
+    final Path workDir;
+
+    // Definitions to start from when nothing has been published yet
+    final Path imageDir;
+
+    public DefinitionsUpdater() {
+        this(DefinitionsStore.fromEnv(S3Clients.create())
+                .orElseThrow(() -> new IllegalStateException("DEFINITIONS_BUCKET must be set")),
+                MIRROR, WORK_DIR, Path.of(ScanEngine.DATABASE_DIR));
+    }
+
+    DefinitionsUpdater(DefinitionsStore store, String mirror, Path workDir, Path imageDir) {
+        this.store = store;
+        this.mirror = mirror;
+        this.workDir = workDir;
+        this.imageDir = imageDir;
+    }
+
+    @Override
+    public String handleRequest(Map<String, Object> event, Context context) {
+        try {
+            final var previous = store.current();
+            seed(previous);
+
+            if (mirror != null && mirror.startsWith("file:")) {
+                copyFromDirectory(Path.of(URI.create(mirror)));
+            } else {
+                freshclam();
+            }
+
+            final var release = DefinitionsStore.Release.of(workDir);
+            if (previous.isPresent() && previous.get().id().equals(release.id())) {
+                log.info("Definitions unchanged ({})", release.id());
+                return "UNCHANGED " + release.id();
+            }
+            return "PUBLISHED " + store.publish(workDir, previous).id();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Make sure the working directory has a database to update. A warm environment keeps its own, otherwise start from
+     * the last published release (or the image when nothing has been published).
+     */
+    private void seed(Optional<DefinitionsStore.Release> previous) throws IOException {
+        if (Files.isDirectory(workDir) && !DefinitionsStore.Release.of(workDir).files().isEmpty()) {
+            return;
+        }
+        Files.createDirectories(workDir);
+        if (previous.isPresent()) {
+            log.info("Seeding {} from release {}", workDir, previous.get().id());
+            // freshclam rewrites files in place, so copies are needed rather than links
+            store.download(previous.get(), workDir, null);
+        } else {
+            log.info("Seeding {} from {}", workDir, imageDir);
+            copyFromDirectory(imageDir);
+        }
+    }
+
+    /**
+     * Copy database files that are missing or newer than what is in the working directory.
+     */
+    private void copyFromDirectory(Path source) throws IOException {
+        try (Stream<Path> files = Files.list(source)) {
+            for (Path file : files.toList()) {
+                String version = SignatureVersion.readHeader(file);
+                if (version == null) {
+                    continue;
+                }
+                // A database can be a .cvd or a .cld (after CDIFFs are applied), only one of each may exist
+                String base = baseName(file);
+                Path existing = findDatabase(base);
+                if (existing == null || versionNumber(version) > versionNumber(SignatureVersion.readHeader(existing))) {
+                    log.info("Copying {} ({})", file, version);
+                    if (existing != null) {
+                        Files.delete(existing);
+                    }
+                    Files.copy(file, workDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private void freshclam() throws IOException, InterruptedException {
+        final var config = new StringBuilder()
+                .append("DatabaseDirectory ").append(workDir).append('\n')
+                .append("ScriptedUpdates yes\n")
+                .append("CompressLocalDatabase no\n");
+        if (mirror != null) {
+            config.append("PrivateMirror ").append(mirror).append('\n');
+        } else {
+            config.append("DatabaseMirror database.clamav.net\n");
+        }
+        Files.writeString(CONFIG_FILE, config);
+
+        Process process = new ProcessBuilder("freshclam", "--stdout", "--config-file=" + CONFIG_FILE)
+                .redirectErrorStream(true)
+                .start();
+        // Drain output to the log so the process never blocks on a full pipe
+        Thread reader = Thread.ofVirtual().start(() -> {
+            try (InputStream in = process.getInputStream()) {
+                new String(in.readAllBytes()).lines().forEach(line -> log.info("freshclam: {}", line));
+            } catch (IOException ignore) {
+            }
+        });
+        if (!process.waitFor(FRESHCLAM_MILLIS, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("freshclam timed out");
+        }
+        reader.join();
+        // 0 = updated, 1 = already up to date
+        if (process.exitValue() > 1) {
+            throw new IOException("freshclam failed with exit code " + process.exitValue());
+        }
+    }
+
+    private Path findDatabase(String base) throws IOException {
+        try (Stream<Path> files = Files.list(workDir)) {
+            return files.filter(f -> baseName(f).equals(base) && SignatureVersion.readHeader(f) != null)
+                    .findFirst().orElse(null);
+        }
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static long versionNumber(String version) {
+        try {
+            return Long.parseLong(Objects.requireNonNull(version).substring(version.indexOf(':') + 1));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keep a warm scanner on the latest published definitions without redeploying. When an invocation starts and the
+ * check interval has passed, CURRENT is read from the {@link DefinitionsStore} in the background. A new release is
+ * downloaded into its own directory and the engine reloads it while scans in flight carry on with the old database.
+ *
+ * Checks only run at the start of invocations because the execution environment is frozen in between. Engines that
+ * read the database files on every scan (clamscan) may still be using the previous release after the switch, so its
+ * directory is only deleted on a later check once every scan started before the switch must have finished.
+ *
+ * @author sjensen
+ */
+public class DefinitionsWatcher {
+
+    final static Logger log = LogManager.getLogger(DefinitionsWatcher.class);
+
+    final static long CHECK_MILLIS = EnvConfig.getLong("DEFINITIONS_CHECK_MINUTES", 15) * 60 * 1000;
+
+    // Each release gets a directory under here
+    final static Path ROOT = Path.of("/tmp/clamav_defs");
+
+    // Longest a scan started before a switch can still be running (the Lambda timeout limit)
+    final static long RETIRE_MILLIS = EnvConfig.getLong("DEFINITIONS_RETIRE_MINUTES", 15) * 60 * 1000;
+
+    final Optional<DefinitionsStore> store;
+
+    final ScanEngine engine;
+
+    final Path root;
+
+    final AtomicBoolean checking = new AtomicBoolean();
+
+    volatile long lastCheck = System.currentTimeMillis();
+
+    // Previous releases still on disk for scans that started before a switch, with when they were replaced
+    final Map<Path, Long> retired = new LinkedHashMap<>();
+
+    public DefinitionsWatcher(Optional<DefinitionsStore> store, ScanEngine engine) {
+        this(store, engine, ROOT);
+    }
+
+    /**
+     * @param store
+     * @param engine
+     * @param root directory each release is downloaded under
+     */
+    DefinitionsWatcher(Optional<DefinitionsStore> store, ScanEngine engine, Path root) {
+        this.store = store;
+        this.engine = engine;
+        this.root = root;
+    }
+
+    /**
+     * Called at the start of every invocation, never blocks.
+     */
+    public void onInvoke() {
+        if (store.isEmpty() || System.currentTimeMillis() - lastCheck < CHECK_MILLIS) {
+            return;
+        }
+        CompletableFuture.runAsync(this::refresh);
+    }
+
+    /**
+     * Check for a new release now and switch to it. Called during init before the engine starts, so a new execution
+     * environment loads the latest definitions once instead of loading the image ones and then reloading.
+     */
+    public void refresh() {
+        if (store.isEmpty() || !checking.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            check();
+        } catch (Exception e) {
+            // Keep scanning with what we have, try again next interval
+            log.error("Definitions update failed", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            lastCheck = System.currentTimeMillis();
+            checking.set(false);
+        }
+    }
+
+    /**
+     * Download and switch to the current release if it differs from what is loaded.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void check() throws IOException, InterruptedException {
+        for (var it = retired.entrySet().iterator(); it.hasNext();) {
+            final var entry = it.next();
+            if (System.currentTimeMillis() - entry.getValue() >= RETIRE_MILLIS) {
+                log.info("Deleting previous definitions {}", entry.getKey());
+                deleteDirectory(entry.getKey());
+                it.remove();
+            }
+        }
+
+        final var release = store.get().current();
+        final Path inUse = Definitions.directory();
+        if (release.isEmpty() || release.get().id().equals(DefinitionsStore.Release.of(inUse).id())) {
+            log.debug("Definitions are current");
+            return;
+        }
+
+        final Path dir = root.resolve(release.get().id());
+        log.info("New definitions release {}, downloading to {}", release.get().id(), dir);
+        try {
+            retired.remove(dir);
+            deleteDirectory(dir); // Left over from a failed attempt
+            store.get().download(release.get(), dir, inUse);
+            engine.reload(dir);
+        } catch (IOException | RuntimeException e) {
+            deleteDirectory(dir);
+            throw e;
+        }
+
+        // Image files stay, release files go once nothing can be reading them
+        if (!inUse.startsWith(root)) {
+            return;
+        }
+        if (engine.holdsDatabase()) {
+            deleteDirectory(inUse);
+        } else {
+            retired.put(inUse, System.currentTimeMillis());
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
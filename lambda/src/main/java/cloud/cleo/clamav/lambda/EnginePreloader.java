@@ -0,0 +1,142 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.crac.Core;
+import org.crac.Resource;
+
+/**
+ * Start the scan engine during Lambda init (before the first event arrives) and report cold start timings.
+ *
+ * On-demand init is limited to 10 seconds, which is often not enough to load the full signature database, so by default
+ * the engine is started on a background thread and init completes right away. The first scan then only waits for
+ * whatever load time is left. With provisioned concurrency init can run longer, set PRELOAD_WAIT=true to load
+ * completely during init.
+ *
+ * Also registered as a CRaC resource so the warmed engine ends up in a checkpoint (SnapStart style) and is checked and
+ * restarted if needed after restore.
+ *
+ * @author sjensen
+ */
+public final class EnginePreloader implements Resource {
+
+    final static Logger log = LogManager.getLogger(EnginePreloader.class);
+
+    // Start the engine during init
+    final static boolean PRELOAD = EnvConfig.getBoolean("PRELOAD_ENGINE", true);
+
+    // Block init until the engine is ready instead of loading in the background
+    final static boolean WAIT = EnvConfig.getBoolean("PRELOAD_WAIT", false);
+
+    final ScanEngine engine;
+
+    final DefinitionsWatcher definitions;
+
+    // When the JVM started and when our init began/finished
+    final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    final long initStartMillis = System.currentTimeMillis();
+    long initEndMillis;
+
+    // Completes when the engine is ready (or failed to start)
+    volatile CompletableFuture<Long> ready;
+
+    final AtomicBoolean coldStart = new AtomicBoolean(true);
+
+    private EnginePreloader(ScanEngine engine, DefinitionsWatcher definitions) {
+        this.engine = engine;
+        this.definitions = definitions;
+    }
+
+    /**
+     * Called from the handler's static init.
+     *
+     * @param engine
+     * @param definitions brought up to date before the engine starts
+     * @return
+     */
+    public static EnginePreloader preload(ScanEngine engine, DefinitionsWatcher definitions) {
+        final var preloader = new EnginePreloader(engine, definitions);
+        if (PRELOAD) {
+            preloader.ready = CompletableFuture.supplyAsync(preloader::startEngine);
+            if (WAIT) {
+                preloader.ready.join();
+            }
+        } else {
+            preloader.ready = CompletableFuture.completedFuture(-1L);
+        }
+        // CRaC holds resources weakly, the handler keeps a static reference to us
+        Core.getGlobalContext().register(preloader);
+        preloader.initEndMillis = System.currentTimeMillis();
+        log.info("Init complete {} ms after JVM start (preload={}, wait={})",
+                preloader.initEndMillis - preloader.jvmStartMillis, PRELOAD, WAIT);
+        return preloader;
+    }
+
+    /**
+     * Called at the start of every invocation. On the first one (cold start) wait for the engine and log the timings.
+     *
+     * @return true for the first invocation in this execution environment
+     */
+    public boolean onInvoke() {
+        if (!coldStart.getAndSet(false)) {
+            return false;
+        }
+        long waitStart = System.currentTimeMillis();
+        long readyMillis = ready.join();
+        long waited = System.currentTimeMillis() - waitStart;
+        if (readyMillis < 0) {
+            log.info("Cold start: init took {} ms (JVM {} ms + handler {} ms), engine not preloaded",
+                    initEndMillis - jvmStartMillis, initStartMillis - jvmStartMillis, initEndMillis - initStartMillis);
+        } else {
+            log.info("Cold start: init took {} ms (JVM {} ms + handler {} ms), engine ready {} ms after JVM start, first event waited {} ms",
+                    initEndMillis - jvmStartMillis, initStartMillis - jvmStartMillis, initEndMillis - initStartMillis,
+                    readyMillis - jvmStartMillis, waited);
+        }
+        return true;
+    }
+
+    /**
+     * Start the engine and warm anything else that reads the definitions.
+     *
+     * @return time the engine became ready, or -1 if it could not be started
+     */
+    private long startEngine() {
+        long start = System.currentTimeMillis();
+        try {
+            definitions.refresh();
+            engine.start();
+            Definitions.version();
+            log.info("{} engine preloaded in {} ms", engine.name(), System.currentTimeMillis() - start);
+            return System.currentTimeMillis();
+        } catch (IOException e) {
+            log.error("Could not preload {} engine, it will be started on first scan", engine.name(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return -1L;
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws Exception {
+        // Make sure the snapshot has fully loaded definitions in it
+        ready.join();
+        log.info("Checkpoint taken with {} engine ready", engine.name());
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) throws Exception {
+        long start = System.currentTimeMillis();
+        if (engine.isHealthy()) {
+            log.info("Restored with {} engine healthy in {} ms", engine.name(), System.currentTimeMillis() - start);
+            ready = CompletableFuture.completedFuture(start);
+        } else {
+            log.warn("{} engine did not survive restore, restarting", engine.name());
+            engine.close();
+            ready = CompletableFuture.supplyAsync(this::startEngine);
+        }
+    }
+}
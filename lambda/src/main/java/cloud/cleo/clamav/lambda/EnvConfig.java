@@ -0,0 +1,105 @@
+package cloud.cleo.clamav.lambda;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Small helpers to read Lambda configuration from environment variables with sane defaults.
+ *
+ * @author sjensen
+ */
+final class EnvConfig {
+
+    final static Logger log = LogManager.getLogger(EnvConfig.class);
+
+    private EnvConfig() {
+    }
+
+    /**
+     * Get a String value, or the default when not set or blank.
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Get a long value, or the default when not set or not a valid number.
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for {}: {} (defaulting to {})", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a double value, or the default when not set or not a valid number.
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    static double getDouble(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for {}: {} (defaulting to {})", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get an int value, or the default when not set or not a valid number.
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    static int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+        return value > Integer.MAX_VALUE || value < Integer.MIN_VALUE ? defaultValue : (int) value;
+    }
+
+    /**
+     * Get a boolean value, only "true" or "false" are accepted, anything else is the default.
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return switch (value.toLowerCase()) {
+            case "true" ->
+                true;
+            case "false" ->
+                false;
+            default -> {
+                log.warn("Invalid value for {}: {} (defaulting to {})", name, value, defaultValue);
+                yield defaultValue;
+            }
+        };
+    }
+}
@@ -0,0 +1,325 @@
+package cloud.cleo.clamav.lambda;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Drop S3 events that were already handled (at least once delivery) or are superseded by a newer event for the same key
+ * (quick overwrites), before anything is downloaded.
+ *
+ * Events for the same key are ordered by their sequencer. Each key remembers the newest sequencer seen and the one
+ * claimed for scanning. A claim is released when its scan fails, so a retried delivery is scanned again, and kept when
+ * it succeeds, so a duplicate delivery is dropped. Requests without a sequencer (backfill, scan service) are always
+ * scanned.
+ *
+ * The in-memory tier lives as long as the warm execution environment. When IDEMPOTENCY_BUCKET is set, claims are also
+ * made across environments with a small marker object per key, written with S3 conditional writes so two environments
+ * can never both claim the same event.
+ *
+ * @author sjensen
+ */
+public class EventDeduplicator {
+
+    final static Logger log = LogManager.getLogger(EventDeduplicator.class);
+
+    // Keys remembered in memory per execution environment
+    final static int CACHE_SIZE = EnvConfig.getInt("IDEMPOTENCY_CACHE_SIZE", 10000);
+
+    // Optional bucket for claims shared across environments
+    final static String BUCKET = EnvConfig.getString("IDEMPOTENCY_BUCKET", null);
+
+    // Prefix for marker objects
+    final static String PREFIX = EnvConfig.getString("IDEMPOTENCY_PREFIX", "idempotency/");
+
+    // A claim nobody finished after this long (environment died mid scan) can be taken over
+    final static long CLAIM_MILLIS = EnvConfig.getLong("IDEMPOTENCY_CLAIM_SECONDS", 900) * 1000;
+
+    /**
+     * What to do with an event.
+     */
+    public enum Outcome {
+        SCAN, DUPLICATE, STALE
+    }
+
+    /**
+     * Result of admitting a request. markerETag is the shared marker this claim wrote, if any.
+     */
+    public record Claim(ScanRequest request, Outcome outcome, String markerETag) {
+
+        public boolean admitted() {
+            return outcome == Outcome.SCAN;
+        }
+    }
+
+    /**
+     * Shared marker for a key: "sequencer state millis", state is CLAIMED, DONE or FAILED.
+     */
+    private record Marker(String sequencer, String state, long millis, String eTag) {
+
+        static Marker parse(String body, String eTag) {
+            final String[] fields = body.trim().split(" ");
+            try {
+                return new Marker(fields[0], fields.length > 1 ? fields[1] : "",
+                        fields.length > 2 ? Long.parseLong(fields[2]) : 0, eTag);
+            } catch (NumberFormatException e) {
+                return new Marker(fields[0], fields[1], 0, eTag);
+            }
+        }
+
+        static String format(String sequencer, String state) {
+            return sequencer + " " + state + " " + System.currentTimeMillis();
+        }
+
+        boolean abandoned() {
+            return "CLAIMED".equals(state) && System.currentTimeMillis() - millis > CLAIM_MILLIS;
+        }
+    }
+
+    /**
+     * Sequencers known for one key, guarded by the map.
+     */
+    private static final class Entry {
+
+        String newest;
+
+        String claimed;
+    }
+
+    final S3AsyncClient s3Client;
+
+    final String bucket;
+
+    final Map<String, Entry> entries;
+
+    public EventDeduplicator(S3AsyncClient s3Client, String bucket, int capacity) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        // At least the key being admitted has to stay put while it is checked and claimed
+        final int keep = Math.max(1, capacity);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > keep;
+            }
+        });
+    }
+
+    /**
+     * Deduplicator configured from environment.
+     *
+     * @param s3Client
+     * @return
+     */
+    public static EventDeduplicator fromEnv(S3AsyncClient s3Client) {
+        return new EventDeduplicator(s3Client, BUCKET, CACHE_SIZE);
+    }
+
+    /**
+     * Note every event in a batch before any is admitted, so an older event for a key is dropped even when it comes
+     * first in the batch.
+     *
+     * @param requests
+     */
+    public void observe(Collection<ScanRequest> requests) {
+        requests.stream().filter(r -> r.sequencer() != null).forEach(r -> noteNewest(r.objectId(), r.sequencer()));
+    }
+
+    private void noteNewest(String objectId, String sequencer) {
+        synchronized (entries) {
+            noteNewest(entries.computeIfAbsent(objectId, k -> new Entry()), sequencer);
+        }
+    }
+
+    private static void noteNewest(Entry entry, String sequencer) {
+        if (entry.newest == null || compare(sequencer, entry.newest) > 0) {
+            entry.newest = sequencer;
+        }
+    }
+
+    /**
+     * Decide whether to scan a request, claiming it when it should be. Never completes exceptionally, the shared tier
+     * failing just means relying on memory alone.
+     *
+     * @param request
+     * @return
+     */
+    public CompletableFuture<Claim> admit(ScanRequest request) {
+        final String sequencer = request.sequencer();
+        if (sequencer == null) {
+            return CompletableFuture.completedFuture(new Claim(request, Outcome.SCAN, null));
+        }
+        synchronized (entries) {
+            // The entry is used as returned, the map may evict the key as soon as anything else is added
+            final Entry entry = entries.computeIfAbsent(request.objectId(), k -> new Entry());
+            noteNewest(entry, sequencer);
+            if (compare(sequencer, entry.newest) < 0) {
+                log.info("Dropping event {} for {}, superseded by {}", sequencer, request.objectId(), entry.newest);
+                return CompletableFuture.completedFuture(new Claim(request, Outcome.STALE, null));
+            }
+            if (sequencer.equals(entry.claimed)) {
+                log.info("Dropping duplicate event {} for {}", sequencer, request.objectId());
+                return CompletableFuture.completedFuture(new Claim(request, Outcome.DUPLICATE, null));
+            }
+            entry.claimed = sequencer;
+        }
+        if (bucket == null) {
+            return CompletableFuture.completedFuture(new Claim(request, Outcome.SCAN, null));
+        }
+        return claimShared(request, 3).thenApply(claim -> {
+            if (!claim.admitted()) {
+                release(request);
+            }
+            return claim;
+        });
+    }
+
+    /**
+     * Finish a claim: kept when the event was handled, released when it should be scanned again on redelivery.
+     *
+     * @param claim
+     * @param handled
+     * @return completes once the shared marker is written, never exceptionally
+     */
+    public CompletableFuture<Void> complete(Claim claim, boolean handled) {
+        if (!claim.admitted() || claim.request().sequencer() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!handled) {
+            release(claim.request());
+        }
+        if (claim.markerETag() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // Only if the marker is still ours, a newer event may have claimed the key since
+        return s3Client.putObject(b -> b.bucket(bucket).key(markerKey(claim.request())).ifMatch(claim.markerETag()),
+                AsyncRequestBody.fromString(Marker.format(claim.request().sequencer(), handled ? "DONE" : "FAILED")))
+                .handle((r, t) -> {
+                    if (t != null && status(t) != 412) {
+                        log.warn("Could not update idempotency marker for {}: {}", claim.request().objectId(), t.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Whether no newer event for the key has been seen, so a verdict for an unversioned object still belongs on it.
+     *
+     * @param request
+     * @return
+     */
+    public boolean isCurrent(ScanRequest request) {
+        if (request.sequencer() == null) {
+            return true;
+        }
+        synchronized (entries) {
+            final Entry entry = entries.get(request.objectId());
+            return entry == null || entry.newest == null || compare(request.sequencer(), entry.newest) >= 0;
+        }
+    }
+
+    private void release(ScanRequest request) {
+        synchronized (entries) {
+            final Entry entry = entries.get(request.objectId());
+            if (entry != null && request.sequencer().equals(entry.claimed)) {
+                entry.claimed = null;
+            }
+        }
+    }
+
+    /**
+     * Read the marker for the key and replace it with our claim if our event is newer (or the same event failed or was
+     * abandoned), retrying when another environment wrote it in between.
+     */
+    private CompletableFuture<Claim> claimShared(ScanRequest request, int attempts) {
+        final String key = markerKey(request);
+        final String sequencer = request.sequencer();
+        return s3Client.getObject(b -> b.bucket(bucket).key(key), AsyncResponseTransformer.toBytes())
+                .handle((bytes, t) -> {
+                    if (t == null) {
+                        return Marker.parse(bytes.asUtf8String(), bytes.response().eTag());
+                    }
+                    if (cause(t) instanceof NoSuchKeyException) {
+                        return null;
+                    }
+                    throw new CompletionException(cause(t));
+                })
+                .thenCompose(current -> {
+                    if (current != null) {
+                        final int order = compare(sequencer, current.sequencer());
+                        if (order < 0) {
+                            log.info("Dropping event {} for {}, superseded by {} (shared)", sequencer, request.objectId(),
+                                    current.sequencer());
+                            noteNewest(request.objectId(), current.sequencer());
+                            return CompletableFuture.completedFuture(new Claim(request, Outcome.STALE, null));
+                        }
+                        if (order == 0 && !"FAILED".equals(current.state()) && !current.abandoned()) {
+                            log.info("Dropping duplicate event {} for {} (shared, {})", sequencer, request.objectId(),
+                                    current.state());
+                            return CompletableFuture.completedFuture(new Claim(request, Outcome.DUPLICATE, null));
+                        }
+                    }
+                    return s3Client.putObject(b -> {
+                        b.bucket(bucket).key(key);
+                        if (current == null) {
+                            b.ifNoneMatch("*");
+                        } else {
+                            b.ifMatch(current.eTag());
+                        }
+                    }, AsyncRequestBody.fromString(Marker.format(sequencer, "CLAIMED")))
+                            .thenApply(r -> new Claim(request, Outcome.SCAN, r.eTag()));
+                })
+                .exceptionallyCompose(t -> {
+                    final int status = status(t);
+                    if ((status == 412 || status == 409) && attempts > 1) {
+                        // Someone else wrote the marker since we read it, decide again against theirs
+                        return claimShared(request, attempts - 1);
+                    }
+                    log.warn("Could not claim event {} for {} in shared store, relying on memory: {}", sequencer,
+                            request.objectId(), cause(t).getMessage());
+                    return CompletableFuture.completedFuture(new Claim(request, Outcome.SCAN, null));
+                });
+    }
+
+    private static String markerKey(ScanRequest request) {
+        return PREFIX + URLEncoder.encode(request.bucket(), StandardCharsets.UTF_8)
+                + "/" + URLEncoder.encode(request.key(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Order two sequencers for the same key. They are hex strings of varying length, compared after right padding the
+     * shorter one with zeros (as S3 documents).
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    static int compare(String a, String b) {
+        final int length = Math.max(a.length(), b.length());
+        return pad(a, length).compareToIgnoreCase(pad(b, length));
+    }
+
+    private static String pad(String sequencer, int length) {
+        return sequencer + "0".repeat(length - sequencer.length());
+    }
+
+    private static Throwable cause(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    private static int status(Throwable t) {
+        return cause(t) instanceof S3Exception e ? e.statusCode() : 0;
+    }
+}
@@ -0,0 +1,226 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanStatus;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * SHA-256 hashes of content known to be clean (vendor installers, static assets) or known to be malicious, so matching
+ * objects are tagged without running the scanner at all.
+ *
+ * Each list is loaded once per execution environment, in the background during init, from a file in the image or an S3
+ * object (s3://bucket/key). Lines hold a hex or base64 SHA-256, optionally followed by a file name (sha256sum output),
+ * and # starts a comment. Hashes are held as a sorted array of longs (32 bytes each, no per entry objects) and found
+ * with a binary search, so lookups are exact and millions of hashes fit easily.
+ *
+ * The known bad list wins when a hash is on both.
+ *
+ * @author sjensen
+ */
+public class KnownHashes {
+
+    final static Logger log = LogManager.getLogger(KnownHashes.class);
+
+    // Where to load the lists from, off when not set
+    final static String CLEAN_SOURCE = EnvConfig.getString("KNOWN_CLEAN_HASHES", null);
+    final static String BAD_SOURCE = EnvConfig.getString("KNOWN_BAD_HASHES", null);
+
+    final CompletableFuture<Sha256Set> clean;
+
+    final CompletableFuture<Sha256Set> bad;
+
+    final boolean enabled;
+
+    public KnownHashes(S3AsyncClient s3Client, String cleanSource, String badSource) {
+        this.enabled = cleanSource != null || badSource != null;
+        this.clean = load(s3Client, cleanSource);
+        this.bad = load(s3Client, badSource);
+    }
+
+    /**
+     * Lists configured from environment.
+     *
+     * @param s3Client
+     * @return
+     */
+    public static KnownHashes fromEnv(S3AsyncClient s3Client) {
+        return new KnownHashes(s3Client, CLEAN_SOURCE, BAD_SOURCE);
+    }
+
+    /**
+     * Whether any list is configured, hashing content just to look it up is wasted otherwise.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Look up the SHA-256 content ids ("sha256:base64") of an object. Waits for the lists to finish loading.
+     *
+     * @param contentIds
+     * @return INFECTED for a known bad hash, CLEAN for a known clean one
+     */
+    public Optional<ScanStatus> lookup(List<String> contentIds) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        for (String id : contentIds) {
+            if (!id.startsWith("sha256:")) {
+                continue;
+            }
+            final byte[] hash;
+            try {
+                hash = Base64.getDecoder().decode(id.substring("sha256:".length()));
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (bad.join().contains(hash)) {
+                log.warn("Content {} is on the known bad list", id);
+                return Optional.of(ScanStatus.INFECTED);
+            }
+            if (clean.join().contains(hash)) {
+                log.info("Content {} is on the known clean list", id);
+                return Optional.of(ScanStatus.CLEAN);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static CompletableFuture<Sha256Set> load(S3AsyncClient s3Client, String source) {
+        if (source == null) {
+            return CompletableFuture.completedFuture(Sha256Set.EMPTY);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            final long start = System.currentTimeMillis();
+            try (InputStream in = open(s3Client, source);
+                    var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                final Sha256Set set = Sha256Set.parse(reader);
+                log.info("Loaded {} hashes from {} in {} ms", set.size(), source, System.currentTimeMillis() - start);
+                return set;
+            } catch (IOException | RuntimeException e) {
+                // Only an optimization, objects are just scanned as usual
+                log.error("Could not load hashes from {}, list will be empty", source, e);
+                return Sha256Set.EMPTY;
+            }
+        });
+    }
+
+    private static InputStream open(S3AsyncClient s3Client, String source) throws IOException {
+        if (source.startsWith("s3://")) {
+            final URI uri = URI.create(source);
+            return s3Client.getObject(b -> b.bucket(uri.getHost()).key(uri.getPath().substring(1)),
+                    AsyncResponseTransformer.toBlockingInputStream()).join();
+        }
+        return Files.newInputStream(Path.of(source));
+    }
+
+    /**
+     * Exact set of SHA-256 hashes, each stored as 4 longs in one sorted array.
+     */
+    static final class Sha256Set {
+
+        final static Sha256Set EMPTY = new Sha256Set(new long[0]);
+
+        final long[] packed;
+
+        Sha256Set(long[] packed) {
+            this.packed = packed;
+        }
+
+        static Sha256Set parse(BufferedReader reader) throws IOException {
+            final List<long[]> hashes = new ArrayList<>();
+            String line;
+            int invalid = 0;
+            while ((line = reader.readLine()) != null) {
+                final int comment = line.indexOf('#');
+                final String[] tokens = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+", 2);
+                if (tokens[0].isEmpty()) {
+                    continue;
+                }
+                final byte[] hash = decode(tokens[0]);
+                if (hash == null) {
+                    invalid++;
+                    continue;
+                }
+                hashes.add(toLongs(hash));
+            }
+            if (invalid > 0) {
+                log.warn("Ignored {} lines that are not SHA-256 hashes", invalid);
+            }
+
+            hashes.sort(Arrays::compareUnsigned);
+            final long[] packed = new long[hashes.size() * 4];
+            int count = 0;
+            for (long[] hash : hashes) {
+                // Drop duplicates, they are next to each other once sorted
+                if (count > 0 && Arrays.equals(packed, (count - 1) * 4, count * 4, hash, 0, 4)) {
+                    continue;
+                }
+                System.arraycopy(hash, 0, packed, count++ * 4, 4);
+            }
+            return new Sha256Set(Arrays.copyOf(packed, count * 4));
+        }
+
+        int size() {
+            return packed.length / 4;
+        }
+
+        boolean contains(byte[] hash) {
+            if (hash.length != 32) {
+                return false;
+            }
+            final long[] key = toLongs(hash);
+            int low = 0;
+            int high = size() - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = Arrays.compareUnsigned(packed, mid * 4, mid * 4 + 4, key, 0, 4);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static long[] toLongs(byte[] hash) {
+            final ByteBuffer buffer = ByteBuffer.wrap(hash);
+            return new long[]{buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong()};
+        }
+
+        private static byte[] decode(String token) {
+            try {
+                if (token.length() == 64) {
+                    return HexFormat.of().parseHex(token);
+                }
+                final byte[] hash = Base64.getDecoder().decode(token);
+                return hash.length == 32 ? hash : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
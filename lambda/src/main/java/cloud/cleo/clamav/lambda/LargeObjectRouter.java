@@ -0,0 +1,87 @@
+package cloud.cleo.clamav.lambda;
+
+import java.util.concurrent.CompletableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+/**
+ * Hand objects over a size threshold to a second worker (bigger memory and ephemeral storage) by queueing them on that
+ * worker's SQS queue, so the common small object path can stay on a cheap function.
+ *
+ * Routing is enabled by setting LARGE_QUEUE_URL. The large worker itself runs without it and scans everything up to
+ * MAX_BYTES.
+ *
+ * @author sjensen
+ */
+public class LargeObjectRouter {
+
+    final static Logger log = LogManager.getLogger(LargeObjectRouter.class);
+
+    // Queue the large worker consumes, routing is off when not set
+    final static String QUEUE_URL = EnvConfig.getString("LARGE_QUEUE_URL", null);
+
+    // Objects larger than this go to the large worker
+    final static long THRESHOLD_BYTES = EnvConfig.getLong("LARGE_OBJECT_BYTES", 100000000L);
+
+    final String queueUrl;
+
+    final long thresholdBytes;
+
+    // Only created when routing is enabled
+    final SqsAsyncClient sqsClient;
+
+    public LargeObjectRouter(String queueUrl, long thresholdBytes) {
+        this.queueUrl = queueUrl;
+        this.thresholdBytes = thresholdBytes;
+        this.sqsClient = queueUrl == null ? null : SqsAsyncClient.builder()
+                .httpClientBuilder(AwsCrtAsyncHttpClient.builder())
+                .build();
+    }
+
+    /**
+     * Router configured from environment.
+     *
+     * @return
+     */
+    public static LargeObjectRouter fromEnv() {
+        if (QUEUE_URL != null) {
+            log.info("Objects over {} bytes will be routed to {}", THRESHOLD_BYTES, QUEUE_URL);
+        }
+        return new LargeObjectRouter(QUEUE_URL, THRESHOLD_BYTES);
+    }
+
+    /**
+     * Whether an object of this size should be scanned by the large worker instead of here.
+     *
+     * @param size
+     * @return
+     */
+    public boolean shouldRoute(long size) {
+        return queueUrl != null && size > thresholdBytes;
+    }
+
+    /**
+     * Queue the object for the large worker, in the same S3 event format S3 itself sends.
+     *
+     * @param request
+     * @param size
+     * @throws java.util.concurrent.CompletionException when the message could not be sent, so the event is retried
+     */
+    public void route(ScanRequest request, long size) {
+        routeAsync(request, size).join();
+    }
+
+    /**
+     * Queue the object for the large worker without waiting.
+     *
+     * @param request
+     * @param size
+     * @return completes once sent, exceptionally when the message could not be sent
+     */
+    public CompletableFuture<Void> routeAsync(ScanRequest request, long size) {
+        log.info("Routing {} ({} bytes) to large object worker", request.key(), size);
+        return sqsClient.sendMessage(b -> b.queueUrl(queueUrl).messageBody(request.toJson(size))).thenApply(r -> null);
+    }
+}
@@ -0,0 +1,1088 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import static cloud.cleo.clamav.ScanStatus.MAX_BYTES;
+import static cloud.cleo.clamav.ScanStatus.ONLY_TAG_INFECTED;
+import com.amazonaws.services.lambda.runtime.Context;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.CloseableThreadContext;
+import org.apache.logging.log4j.ThreadContext;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Scan a single S3 Object and set Tag with result. Shared by the direct S3 event and the SQS batch handlers, and safe
+ * to call from several threads at once.
+ *
+ * @author sjensen
+ */
+public class ObjectScanner {
+
+    // Configure a Log4j2 logger.
+    final static Logger log = LogManager.getLogger(ObjectScanner.class);
+
+    // Stream objects straight into the scanner (default) or stage them in /tmp first when STAGING_MODE=tmp
+    final static boolean STAGE_TO_TMP = "tmp".equalsIgnoreCase(EnvConfig.getString("STAGING_MODE", "stream"));
+
+    // Leave some of /tmp for clamd/clamscan to unpack archives into
+    final static int TMP_BUDGET_MB = (int) (new File("/tmp").getUsableSpace() / (1024 * 1024) * 6 / 10);
+
+    // When staging, limits how many objects can be in /tmp at once, permits are MB
+    final static Semaphore tmpBudget = new Semaphore(Math.max(1, TMP_BUDGET_MB));
+
+    // Objects up to this size are staged in RAM instead of /tmp while the memory budget allows
+    final static long MEMORY_STAGING_MAX_BYTES = EnvConfig.getLong("MEMORY_STAGING_MAX_BYTES", 8 * 1024 * 1024);
+
+    // MB staged in RAM at once across concurrent scans, a quarter of the heap by default (0 stages everything in /tmp)
+    final static int MEMORY_BUDGET_MB = EnvConfig.getInt("MEMORY_STAGING_MB",
+            (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024) / 4));
+
+    final static Semaphore memoryBudget = new Semaphore(Math.max(0, MEMORY_BUDGET_MB));
+
+    // RAM backed directory for when the scanner needs a path. Lambda has no /dev/shm, small objects are then held on
+    // the heap and scanned as a stream, unless a path is needed (batches, archives) and they go to /tmp as before
+    final static Path MEMORY_DIR = writableDir(EnvConfig.getString("MEMORY_STAGING_DIR", "/dev/shm"));
+
+    // Scans running at once (including the download when streaming). CPU bound, so by default one per vCPU (3 at 3009MB)
+    final static int SCAN_CONCURRENCY = EnvConfig.getInt("SCAN_CONCURRENCY", Runtime.getRuntime().availableProcessors());
+
+    // Stages of every object run on virtual threads, blocking ones included, so no SDK thread is ever held
+    final static ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Scan all objects of an SQS batch (or multi record event) in one engine call per profile, when the engine gains
+    final static boolean BATCH_MODE = EnvConfig.getBoolean("SCAN_BATCH", true);
+
+    final S3AsyncClient s3Client;
+
+    final ScanEngine scanEngine;
+
+    final ScanResultCache scanCache;
+
+    final RangedDownloader downloader;
+
+    final ObjectTagger tagger;
+
+    final LargeObjectRouter router;
+
+    final KnownHashes knownHashes;
+
+    final EventDeduplicator dedup;
+
+    final AsyncLimiter scanSlots = new AsyncLimiter(SCAN_CONCURRENCY);
+
+    // Objects started and not yet finished, and the most at once since peakInFlight() was last called
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    final AtomicInteger peakInFlight = new AtomicInteger();
+
+    public ObjectScanner(S3AsyncClient s3Client, ScanEngine scanEngine) {
+        this(s3Client, scanEngine, ScanResultCache.fromEnv(s3Client), LargeObjectRouter.fromEnv(),
+                KnownHashes.fromEnv(s3Client), EventDeduplicator.fromEnv(s3Client));
+    }
+
+    public ObjectScanner(S3AsyncClient s3Client, ScanEngine scanEngine, ScanResultCache scanCache,
+            LargeObjectRouter router, KnownHashes knownHashes, EventDeduplicator dedup) {
+        this.s3Client = s3Client;
+        this.scanEngine = scanEngine;
+        this.scanCache = scanCache;
+        this.router = router;
+        this.knownHashes = knownHashes;
+        this.dedup = dedup;
+        this.downloader = new RangedDownloader(s3Client);
+        this.tagger = new ObjectTagger(s3Client);
+    }
+
+    /**
+     * Note every event of an invocation before processing any of them, so an event superseded by a later one in the
+     * same batch is dropped no matter the order they are processed in.
+     *
+     * @param requests
+     */
+    public void observe(Collection<ScanRequest> requests) {
+        dedup.observe(requests);
+    }
+
+    /**
+     * Most objects in flight at once since the last call (or since this scanner was created), published by the handlers
+     * once per invocation as a scaling input.
+     *
+     * @return
+     */
+    public int peakInFlight() {
+        return peakInFlight.getAndSet(inFlight.get());
+    }
+
+    private void started() {
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * Scan the object and tag it with the result.
+     *
+     * @param request
+     * @param context used to bound the scan by the remaining Lambda time
+     * @param coldStart true when this is the first invocation in the execution environment
+     * @throws CompletionException on transient S3 failures that should be retried
+     */
+    public void process(ScanRequest request, Context context, boolean coldStart) {
+        processAsync(request, context, coldStart).join();
+    }
+
+    /**
+     * Scan the object and tag it with the result without blocking the caller, bounded by the remaining Lambda time.
+     *
+     * @param request
+     * @param context used to bound the scan by the remaining Lambda time
+     * @param coldStart true when this is the first invocation in the execution environment
+     * @return completes with the outcome, exceptionally on transient S3 failures that should be retried
+     * @see #processAsync(ScanRequest, IntSupplier)
+     */
+    public CompletableFuture<String> processAsync(ScanRequest request, Context context, boolean coldStart) {
+        return processAsync(request, context::getRemainingTimeInMillis, coldStart);
+    }
+
+    /**
+     * Scan the object and tag it with the result without blocking the caller. HEAD, cache lookup, download, scan and
+     * tagging are chained on each other's completion, so many objects can be in flight at once and only the scan itself
+     * counts against SCAN_CONCURRENCY.
+     *
+     * @param request
+     * @param remainingMillis time left to finish in (the Lambda's remaining time, or a per request limit in the service)
+     * @return completes with the outcome recorded in the metrics (CLEAN, INFECTED, ERROR, FILE_SIZE_EXCEEDED, ROUTED,
+     * DUPLICATE, STALE, FAILED when the scanner failed...), exceptionally on transient S3 failures that should be
+     * retried
+     */
+    public CompletableFuture<String> processAsync(ScanRequest request, IntSupplier remainingMillis) {
+        return processAsync(request, remainingMillis, false);
+    }
+
+    private CompletableFuture<String> processAsync(ScanRequest request, IntSupplier remainingMillis, boolean coldStart) {
+        final Executor executor = withLogContext();
+        final var metrics = metrics(request, coldStart);
+        started();
+        return dedup.admit(request)
+                .thenComposeAsync(claim -> {
+                    if (!claim.admitted()) {
+                        metrics.result(claim.outcome());
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return prepare(request, metrics, executor)
+                            .thenComposeAsync(prepared -> {
+                                if (prepared.isEmpty()) {
+                                    return CompletableFuture.<Void>completedFuture(null);
+                                }
+                                final Prepared object = prepared.get();
+                                return scanSlots.submit(() -> scan(object, remainingMillis, metrics, executor))
+                                        .thenComposeAsync(status -> status == null
+                                                ? CompletableFuture.completedFuture(null) : finish(object, status, metrics), executor);
+                            }, executor)
+                            .whenComplete((r, t) -> dedup.complete(claim, handled(metrics, t)));
+                }, executor)
+                .whenComplete((r, t) -> {
+                    inFlight.decrementAndGet();
+                    metrics.emit();
+                })
+                .thenApply(v -> metrics.result());
+    }
+
+    /**
+     * Scan content that is not in S3 (an upload to the scan service) as it is read, under the same SCAN_CONCURRENCY
+     * limit as objects. Nothing is tagged or cached, the caller gets the result.
+     *
+     * @param in content to scan, read until EOF but not closed
+     * @param size length of the content, used for the scan profile and its deadline
+     * @param remainingMillis time left to finish in
+     * @return completes with the result, exceptionally with a {@link ScanFailure} when the engine failed
+     */
+    public CompletableFuture<ScanResult> scanAsync(InputStream in, long size, IntSupplier remainingMillis) {
+        final Executor executor = withLogContext();
+        final var metrics = new ScanMetrics(false);
+        metrics.property("Source", "upload");
+        metrics.size(size);
+        started();
+        return scanSlots.submit(() -> CompletableFuture.supplyAsync(() -> {
+            final long waitMillis = getClamScanWaitMillis(remainingMillis.getAsInt());
+            if (waitMillis <= 0) {
+                log.error("Not enough time left to safely scan upload of {} bytes", size);
+                return ScanResult.of(ScanStatus.ERROR, scanEngine.name());
+            }
+            final long phaseStart = System.nanoTime();
+            try {
+                // Not closed, the stream belongs to the caller
+                final var peek = new PushbackInputStream(in, ScanProfile.HEAD_BYTES);
+                final byte[] head = peek.readNBytes(ScanProfile.HEAD_BYTES);
+                peek.unread(head);
+                final ScanProfile profile = ScanProfile.detect(head, size);
+                metrics.property("Profile", profile);
+                final ScanResult result = profile.timed(size, scanEngine, waitMillis,
+                        timeout -> scanEngine.scan(peek, profile, timeout));
+                metrics.phase(ScanMetrics.SCAN, phaseStart);
+                metrics.scan(result);
+                metrics.result(result.status());
+                log.info("Scan result for upload of {} bytes: {}", size, result.status());
+                return result;
+            } catch (IOException e) {
+                throw new ScanFailure(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ScanFailure(e);
+            }
+        }, executor)).whenComplete((r, t) -> {
+            inFlight.decrementAndGet();
+            metrics.emit();
+        });
+    }
+
+    /**
+     * Executor for the stages of one object. Runs them on virtual threads (blocking steps like reading a streamed body
+     * or waiting for room in /tmp never hold an SDK thread) and carries the caller's log context (request id) along.
+     *
+     * @return
+     */
+    static Executor withLogContext() {
+        final Map<String, String> logContext = ThreadContext.getImmutableContext();
+        return task -> virtualThreads.execute(() -> {
+            try (var ignored = CloseableThreadContext.putAll(logContext)) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Whether {@link #processBatch} saves anything over processing objects one at a time in parallel.
+     *
+     * @return
+     */
+    public boolean batches() {
+        return BATCH_MODE && scanEngine.batchesScans();
+    }
+
+    /**
+     * Scan several objects with one engine call per scan profile, so an engine that loads the signature database on
+     * every call (clamscan) pays for it once per batch instead of once per object.
+     *
+     * Objects are checked and downloaded to /tmp concurrently. Objects that do not fit in the /tmp budget next to the
+     * rest of the batch are scanned on their own once the batch is done.
+     *
+     * @param requests
+     * @param context used to bound the scan by the remaining Lambda time
+     * @param coldStart true when this is the first invocation in the execution environment
+     * @return a future per request, in order, completed exceptionally when that object should be retried
+     */
+    public List<CompletableFuture<Void>> processBatch(List<ScanRequest> requests, Context context, boolean coldStart) {
+        final IntSupplier remainingMillis = context::getRemainingTimeInMillis;
+        final Executor executor = withLogContext();
+        final List<CompletableFuture<Void>> results = new ArrayList<>();
+        final List<CompletableFuture<Staged>> staging = new ArrayList<>();
+        for (ScanRequest request : requests) {
+            final var result = new CompletableFuture<Void>();
+            results.add(result);
+            started();
+            result.whenComplete((r, t) -> inFlight.decrementAndGet());
+            final var metrics = metrics(request, coldStart);
+            staging.add(dedup.admit(request).thenComposeAsync(claim -> {
+                if (!claim.admitted()) {
+                    metrics.result(claim.outcome());
+                    metrics.emit();
+                    result.complete(null);
+                    return CompletableFuture.<Staged>completedFuture(null);
+                }
+                result.whenComplete((r, t) -> dedup.complete(claim, handled(metrics, t)));
+                return stage(request, metrics, result, executor);
+            }, executor));
+        }
+        final List<Staged> staged = staging.stream().map(CompletableFuture::join).filter(Objects::nonNull).toList();
+
+        // One engine call per profile, since options apply to the whole call
+        final Map<ScanProfile, List<Staged>> groups = new LinkedHashMap<>();
+        staged.stream().filter(s -> s.file() != null)
+                .forEach(s -> groups.computeIfAbsent(s.profile(), p -> new ArrayList<>()).add(s));
+        groups.forEach((profile, group) -> scanGroup(profile, group, remainingMillis));
+
+        // Budget has been released, these can now wait for room in /tmp like single objects do
+        staged.stream().filter(s -> s.file() == null).forEach(s
+                -> scanSlots.submit(() -> scan(s.object(), remainingMillis, s.metrics(), executor))
+                        .thenComposeAsync(status -> status == null
+                                ? CompletableFuture.completedFuture(null) : finish(s.object(), status, s.metrics()), executor)
+                        .whenComplete((r, t) -> {
+                            s.metrics().emit();
+                            complete(s.result(), t);
+                        }));
+        return results;
+    }
+
+    /**
+     * An object in a batch that still needs scanning. staging is null when it did not fit in /tmp with the rest.
+     */
+    private record Staged(Prepared object, ScanMetrics metrics, CompletableFuture<Void> result, Staging staging,
+            ScanProfile profile) {
+
+        Path file() {
+            return staging == null ? null : staging.file();
+        }
+    }
+
+    /**
+     * Room reserved to stage an object: a file in /tmp or in RAM, or when file is null a buffer on the heap.
+     */
+    private record Staging(Path file, Semaphore budget, int permits, String kind) {
+
+        /**
+         * Delete the file (if any) and give the room back to the budget.
+         */
+        void discard() {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    log.warn("Warning: Could not delete local file {}: {}", file, e.getMessage());
+                }
+            }
+            budget.release(permits);
+        }
+    }
+
+    /**
+     * Reserve room to stage an object. Small objects go to RAM while the memory budget allows (never waiting for it,
+     * /tmp is always the fallback), everything else to /tmp.
+     *
+     * @param key object key, the file keeps its extension
+     * @param size
+     * @param needsFile whether the scan needs a path (batches, engines that prefer files)
+     * @param wait block until there is room in /tmp, otherwise return null when there is not
+     * @return
+     */
+    private static Staging reserve(String key, long size, boolean needsFile, boolean wait) {
+        if (size <= MEMORY_STAGING_MAX_BYTES && (MEMORY_DIR != null || !needsFile)) {
+            final int permits = (int) (size / (1024 * 1024) + 1);
+            if (memoryBudget.tryAcquire(permits)) {
+                return MEMORY_DIR != null
+                        ? new Staging(createTempFilePath(MEMORY_DIR, key), memoryBudget, permits, "shm")
+                        : new Staging(null, memoryBudget, permits, "memory");
+            }
+        }
+        final int permits = tmpPermits(size);
+        if (wait) {
+            tmpBudget.acquireUninterruptibly(permits);
+        } else if (!tmpBudget.tryAcquire(permits)) {
+            return null;
+        }
+        return new Staging(createTempFilePath(key), tmpBudget, permits, "tmp");
+    }
+
+    /**
+     * Everything before the scan for an object in a batch, including the download to /tmp.
+     *
+     * @return completes with null when the object needs no scan or failed (result is then complete), never
+     * exceptionally
+     */
+    private CompletableFuture<Staged> stage(ScanRequest request, ScanMetrics metrics, CompletableFuture<Void> result,
+            Executor executor) {
+        final var preparedObject = new AtomicReference<Prepared>();
+        return prepare(request, metrics, executor).thenComposeAsync(prepared -> {
+            if (prepared.isEmpty()) {
+                return CompletableFuture.<Staged>completedFuture(null);
+            }
+            final Prepared object = prepared.get();
+            preparedObject.set(object);
+            final Staging staging = reserve(request.key(), object.size(), true, false);
+            if (staging == null) {
+                return CompletableFuture.completedFuture(new Staged(object, metrics, result, null, null));
+            }
+            metrics.property("Staging", staging.kind());
+            return download(object, staging.file(), metrics)
+                    .thenComposeAsync(v -> knownStaged(object, staging.file(), metrics), executor)
+                    .thenComposeAsync(known -> {
+                        if (known.isPresent()) {
+                            return finish(object, known.get(), metrics).thenApply(r -> (Staged) null);
+                        }
+                        final ScanProfile profile = ScanProfile.detect(readHead(staging.file()), object.size());
+                        metrics.property("Profile", profile);
+                        return CompletableFuture.completedFuture(new Staged(object, metrics, result, staging, profile));
+                    }, executor)
+                    .whenComplete((staged, t) -> {
+                        if (staged == null) {
+                            staging.discard();
+                        }
+                    });
+        }, executor).handleAsync((staged, t) -> {
+            if (staged != null) {
+                return staged;
+            }
+            if (t != null && preparedObject.get() != null) {
+                // Same handling as for a single object: scanner failures leave it tagged SCANNING, S3 failures retry
+                t = failed(preparedObject.get(), t);
+            }
+            metrics.emit();
+            complete(result, t);
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Scan the staged files of one profile together and tag each object with its own result.
+     */
+    private void scanGroup(ScanProfile profile, List<Staged> group, IntSupplier remainingMillis) {
+        final List<CompletableFuture<Void>> finished = new ArrayList<>();
+        try {
+            int remaining = remainingMillis.getAsInt();
+            log.info("Remaining Millis before timeout: {}", remaining);
+            long waitMillis = getClamScanWaitMillis(remaining);
+            if (waitMillis <= 0) {
+                log.error("Not enough execution time left to safely run clamscan. Remaining millis: {}", remaining);
+                group.forEach(s -> finished.add(tagFinalStatus(s.object().tags(), ScanStatus.ERROR)
+                        .whenComplete((r, t) -> s.metrics().result(ScanStatus.ERROR))
+                        .whenComplete((r, t) -> complete(s.result(), t))));
+                return;
+            }
+
+            final List<Path> files = group.stream().map(Staged::file).toList();
+            final long totalSize = group.stream().mapToLong(s -> s.object().size()).sum();
+            final long phaseStart = System.nanoTime();
+            final Map<Path, ScanResult> results;
+            try {
+                // One engine run for the whole batch, there is no scan time per object to learn from
+                results = profile.timed(totalSize, scanEngine, waitMillis,
+                        timeout -> scanEngine.scan(files, profile, timeout),
+                        r -> r.values().stream().anyMatch(result -> result.status() == ScanStatus.ERROR)
+                        ? ScanStatus.ERROR : ScanStatus.CLEAN, r -> -1);
+            } catch (IOException | InterruptedException e) {
+                log.error("Error running {}: ", scanEngine.name(), e);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                group.forEach(s -> {
+                    s.object().tags().awaitPending();
+                    s.result().complete(null);
+                });
+                return;
+            }
+
+            for (Staged s : group) {
+                s.metrics().phase(ScanMetrics.SCAN, phaseStart);
+                s.metrics().property("BatchSize", group.size());
+            }
+            for (Staged s : group) {
+                final ScanResult result = results.getOrDefault(s.file(), ScanResult.of(ScanStatus.ERROR, scanEngine.name()));
+                s.metrics().scan(result);
+                final ScanStatus status = result.status();
+                log.info("Scan result for {}: {}", s.object().request().key(), status);
+                finished.add(finish(s.object(), status, s.metrics()).whenComplete((r, t) -> complete(s.result(), t)));
+            }
+        } catch (RuntimeException e) {
+            group.forEach(s -> s.result().completeExceptionally(e));
+        } finally {
+            // Tags for the whole group are written at once, metrics wait for them
+            group.forEach(s -> s.staging().discard());
+            CompletableFuture.allOf(finished.toArray(CompletableFuture[]::new))
+                    .whenComplete((r, t) -> group.forEach(s -> s.metrics().emit()));
+        }
+    }
+
+    /**
+     * Whether an admitted event is done with, so a redelivery of it is a duplicate. A routed event is not, the large
+     * object worker has to be able to claim it.
+     */
+    private static boolean handled(ScanMetrics metrics, Throwable failure) {
+        return failure == null && !"ROUTED".equals(metrics.result());
+    }
+
+    private static ScanMetrics metrics(ScanRequest request, boolean coldStart) {
+        final var metrics = new ScanMetrics(coldStart);
+        metrics.property("Bucket", request.bucket());
+        metrics.property("Key", request.key());
+        return metrics;
+    }
+
+    /**
+     * An object that passed the checks before scanning and is tagged SCANNING.
+     */
+    private record Prepared(ScanRequest request, ObjectTagger.Session tags, HeadObjectResponse head, long size,
+            List<String> contentIds, String signatureVersion) {
+
+    }
+
+    /**
+     * Everything before the scan: size limit, cached result and large object routing.
+     *
+     * @return empty when the object is already dealt with, exceptionally on transient S3 failures that should be
+     * retried
+     */
+    private CompletableFuture<Optional<Prepared>> prepare(ScanRequest request, ScanMetrics metrics, Executor executor) {
+        String bucket = request.bucket();
+        String key = request.key();
+
+        log.info("Processing file from bucket: {}, key: {}", bucket, key);
+
+        if (!request.isValid()) {
+            log.error("Invalid S3 event: bucket and key must be provided");
+            metrics.result("INVALID");
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        // Check file size before downloading (checksum mode returns the SHA-256 if the uploader provided one). Pinned to
+        // the version in the event, every later read and tag uses the version HEAD returned
+        final long phaseStart = System.nanoTime();
+        return s3Client.headObject(b -> b.bucket(bucket).key(key).versionId(request.versionId())
+                .checksumMode(ChecksumMode.ENABLED))
+                .whenCompleteAsync((head, t) -> {
+                    if (t != null) {
+                        log.error("Transient S3 failure, triggering retry", t);
+                    }
+                }, executor)
+                .thenComposeAsync(head -> {
+                    final long size = head.contentLength();
+                    metrics.phase(ScanMetrics.HEAD, phaseStart);
+                    metrics.size(size);
+
+                    // Unversioned key overwritten since the event, the newer upload has its own event
+                    if (request.versionId() == null && request.eTag() != null && !request.eTag().equals(unquote(head.eTag()))) {
+                        log.info("Skipping {}, overwritten since the event (ETag {} is now {})", key, request.eTag(), head.eTag());
+                        metrics.result(EventDeduplicator.Outcome.STALE);
+                        return CompletableFuture.completedFuture(Optional.<Prepared>empty());
+                    }
+
+                    // Tag set is read once and reused for every status written to this object
+                    final ObjectTagger.Session tags = tagger.session(bucket, key, head.versionId());
+                    if (size > MAX_BYTES) {
+                        log.warn("Skipping file {} due to size ({} bytes) exceeding max of {} bytes", key, size, MAX_BYTES);
+                        final long tagStart = System.nanoTime();
+                        return tags.setAsync(ScanStatus.FILE_SIZE_EXCEEED).thenApply(v -> {
+                            metrics.phase(ScanMetrics.TAG, tagStart);
+                            metrics.result(ScanStatus.FILE_SIZE_EXCEEED);
+                            return Optional.<Prepared>empty();
+                        });
+                    }
+
+                    // Content on a known clean or known bad list needs no scan (needs the uploader's SHA-256 checksum here)
+                    final List<String> contentIds = new ArrayList<>(ScanResultCache.contentIds(head));
+                    final Optional<ScanStatus> known = knownHashes.lookup(contentIds);
+                    if (known.isPresent()) {
+                        metrics.property("KnownHash", true);
+                        return tagWithoutScan(tags, known.get(), metrics);
+                    }
+
+                    // Identical content already scanned with the same definitions goes straight to tagging
+                    final String signatureVersion = Definitions.version();
+                    return scanCache.getAsync(contentIds, signatureVersion).thenComposeAsync(cached -> {
+                        if (cached.isPresent()) {
+                            log.info("Using cached scan result for {}: {}", key, cached.get());
+                            metrics.property("CacheHit", true);
+                            return tagWithoutScan(tags, cached.get(), metrics);
+                        }
+
+                        if (router.shouldRoute(size)) {
+                            // The large worker does everything from here, including the SCANNING tag
+                            return router.routeAsync(request, size).whenCompleteAsync((r, t) -> {
+                                if (t != null) {
+                                    log.error("Could not route {} to large object worker, triggering retry", key, t);
+                                } else {
+                                    metrics.result("ROUTED");
+                                }
+                            }, executor).thenApply(r -> Optional.<Prepared>empty());
+                        }
+
+                        if (!ONLY_TAG_INFECTED) {
+                            // Set the status to scanning immediately, so download can be denied via policy if desired.
+                            // This also reads the existing tags, overlapping that GET with the download and scan.
+                            tags.setAsync(ScanStatus.SCANNING); // Don't wait, the final status is chained after it
+                        }
+                        return CompletableFuture.completedFuture(
+                                Optional.of(new Prepared(request, tags, head, size, contentIds, signatureVersion)));
+                    }, executor);
+                }, executor);
+    }
+
+    /**
+     * Tag an object whose status is known without a scan (known hash or cached result).
+     */
+    private CompletableFuture<Optional<Prepared>> tagWithoutScan(ObjectTagger.Session tags, ScanStatus status,
+            ScanMetrics metrics) {
+        final long phaseStart = System.nanoTime();
+        return tagFinalStatus(tags, status).thenApply(v -> {
+            metrics.phase(ScanMetrics.TAG, phaseStart);
+            metrics.result(status);
+            return Optional.empty();
+        });
+    }
+
+    /**
+     * Scan a single object, streamed straight from S3 or staged in /tmp first.
+     *
+     * @return the status to tag with, null when the scanner failed and the object is left as it is, exceptionally on
+     * transient S3 failures that should be retried
+     */
+    private CompletableFuture<ScanStatus> scan(Prepared object, IntSupplier remainingMillis, ScanMetrics metrics,
+            Executor executor) {
+        final CompletableFuture<ScanStatus> scan;
+        final boolean needsFile = scanEngine.prefersFile(object.request().key());
+        if (STAGE_TO_TMP || needsFile) {
+            // Wait for room in /tmp when other objects are being scanned concurrently (on a virtual thread)
+            scan = CompletableFuture.supplyAsync(() -> reserve(object.request().key(), object.size(), needsFile, true), executor)
+                    .thenCompose(staging -> {
+                        metrics.property("Staging", staging.kind());
+                        final CompletableFuture<ScanStatus> staged = staging.file() == null
+                                ? bufferAndScan(object, remainingMillis, metrics, executor)
+                                : download(object, staging.file(), metrics)
+                                .thenComposeAsync(v -> knownStaged(object, staging.file(), metrics), executor)
+                                .thenComposeAsync(known -> known.isPresent()
+                                        ? CompletableFuture.completedFuture(known.get())
+                                        : timedScan(object, remainingMillis, metrics,
+                                                waitMillis -> scanFile(staging.file(), object.size(), waitMillis, metrics, executor)),
+                                        executor);
+                        return staged.whenComplete((status, t) -> staging.discard());
+                    });
+        } else {
+            scan = timedScan(object, remainingMillis, metrics,
+                    waitMillis -> streamAndScan(object, waitMillis, metrics, executor));
+        }
+        return scan.handleAsync((status, t) -> {
+            if (t == null) {
+                return CompletableFuture.completedFuture(status);
+            }
+            final Throwable failure = failed(object, t);
+            return failure == null ? CompletableFuture.<ScanStatus>completedFuture(null) : CompletableFuture.<ScanStatus>failedFuture(failure);
+        }, executor).thenCompose(f -> f);
+    }
+
+    /**
+     * Run a scan (of a staged file, a buffer or the object streamed from S3) bounded by the time the Lambda has left.
+     *
+     * @param scan started with the most time it may take
+     */
+    private CompletableFuture<ScanStatus> timedScan(Prepared object, IntSupplier remainingMillis, ScanMetrics metrics,
+            LongFunction<CompletableFuture<ScanStatus>> scan) {
+        int remaining = remainingMillis.getAsInt();
+        log.info("Remaining Millis before timeout: {}", remaining);
+
+        // Never past the time the Lambda has left with 10 second buffer, the scan profile usually allows far less
+        long waitMillis = getClamScanWaitMillis(remaining);
+        if (waitMillis <= 0) {
+            log.error("Not enough execution time left to safely run clamscan. Remaining millis: {}", remaining);
+            return CompletableFuture.completedFuture(ScanStatus.ERROR);
+        }
+
+        // When streaming this includes reading the object from S3
+        final long phaseStart = System.nanoTime();
+        return scan.apply(waitMillis).thenApply(status -> {
+            metrics.phase(ScanMetrics.SCAN, phaseStart);
+            log.info("Scan result for {}: {}", object.request().key(), status);
+            return status;
+        });
+    }
+
+    /**
+     * Sort out why an object could not be scanned, once pending tag writes are done.
+     *
+     * @return null when the scanner failed (logged, the object stays tagged SCANNING), otherwise the failure that should
+     * trigger a retry
+     */
+    private Throwable failed(Prepared object, Throwable t) {
+        final Throwable cause = unwrap(t);
+        if (cause instanceof ScanFailure failure) {
+            log.error("Error running {}: ", scanEngine.name(), failure.getCause());
+            object.tags().awaitPending();
+            return null;
+        }
+        log.error("Transient S3 failure, triggering retry", cause);
+        object.tags().awaitPending();
+        return t;
+    }
+
+    /**
+     * Remember the result and apply the final tag.
+     *
+     * @return completes exceptionally when tagging fails so the event is retried
+     */
+    private CompletableFuture<Void> finish(Prepared object, ScanStatus status, ScanMetrics metrics) {
+        final CompletableFuture<Void> cached = scanCache.putAsync(object.contentIds(), object.signatureVersion(), status);
+
+        // Without versions the tag lands on whatever is under the key now, so leave it to the newer event's scan
+        if (object.head().versionId() == null && !dedup.isCurrent(object.request())) {
+            log.info("Not tagging {} with {}, a newer event for the key arrived during the scan", object.request().key(),
+                    status);
+            metrics.result("SUPERSEDED");
+            return cached;
+        }
+
+        final long phaseStart = System.nanoTime();
+        return tagFinalStatus(object.tags(), status)
+                .thenRun(() -> {
+                    metrics.phase(ScanMetrics.TAG, phaseStart);
+                    metrics.result(status);
+                })
+                .thenCombine(cached, (a, b) -> null);
+    }
+
+    /**
+     * MB of the /tmp budget an object needs, never more than the whole budget.
+     */
+    private static int tmpPermits(long size) {
+        return (int) Math.min(Math.max(1, TMP_BUDGET_MB), size / (1024 * 1024) + 1);
+    }
+
+    /**
+     * Apply the terminal scan status tag, honoring ONLY_TAG_INFECTED.
+     *
+     * @param tags
+     * @param status
+     * @return completes exceptionally when tagging fails so the event is retried
+     */
+    private CompletableFuture<Void> tagFinalStatus(ObjectTagger.Session tags, ScanStatus status) {
+        if (ONLY_TAG_INFECTED && !ScanStatus.INFECTED.equals(status)) {
+            // Scan is not INFECTED, so do not set tagging 
+            log.debug("Not setting tag on Object because of flag and file is not INFECTED");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Update the S3 object's tagging with the scan result.
+        return tags.setAsync(status).whenComplete((r, t) -> {
+            if (t != null) {
+                log.error("Failed to tag object with final scan status: {}", status, t);
+            }
+        });
+    }
+
+    /**
+     * Download the object to a unique file in /tmp (large objects are fetched in parallel ranges).
+     *
+     * @param object
+     * @param localFilePath
+     * @param metrics
+     * @return completes once the file is written
+     */
+    private CompletableFuture<Void> download(Prepared object, Path localFilePath, ScanMetrics metrics) {
+        final String bucket = object.request().bucket();
+        final String key = object.request().key();
+        log.info("Downloading file {} from bucket {} to {}", key, bucket, localFilePath);
+        final long phaseStart = System.nanoTime();
+        return downloader.downloadAsync(bucket, key, object.head(), localFilePath)
+                .thenRun(() -> metrics.phase(ScanMetrics.DOWNLOAD, phaseStart));
+    }
+
+    /**
+     * Scan a staged file with the profile its first bytes call for.
+     *
+     * @param file
+     * @param size
+     * @param maxMillis
+     * @param metrics
+     * @param executor
+     * @return completes exceptionally with a {@link ScanFailure} when the engine failed
+     */
+    private CompletableFuture<ScanStatus> scanFile(Path file, long size, long maxMillis, ScanMetrics metrics, Executor executor) {
+        final ScanProfile profile = ScanProfile.detect(readHead(file), size);
+        metrics.property("Profile", profile);
+        return profile.timedAsync(size, scanEngine, maxMillis,
+                timeout -> scanEngine.scanAsync(file, profile, timeout, executor)
+                .exceptionallyCompose(t -> CompletableFuture.failedFuture(new ScanFailure(unwrap(t)))))
+                .thenApply(result -> {
+                    metrics.scan(result);
+                    return result.status();
+                });
+    }
+
+    /**
+     * Download a small object to a buffer on the heap and scan it from there, so it never touches /tmp. The content
+     * is hashed (cheap at this size) so known hashes and cached results are checked first and the result is cached
+     * under its SHA-256.
+     *
+     * @param object
+     * @param remainingMillis
+     * @param metrics
+     * @param executor
+     * @return completes exceptionally with a {@link ScanFailure} when the engine failed
+     */
+    private CompletableFuture<ScanStatus> bufferAndScan(Prepared object, IntSupplier remainingMillis, ScanMetrics metrics,
+            Executor executor) {
+        final String bucket = object.request().bucket();
+        final String key = object.request().key();
+        log.info("Buffering file {} from bucket {} in memory", key, bucket);
+        final long phaseStart = System.nanoTime();
+        return s3Client.getObject(b -> b.bucket(bucket).key(key)
+                .versionId(object.head().versionId())
+                .ifMatch(object.head().eTag()), AsyncResponseTransformer.toBytes())
+                .thenComposeAsync(response -> {
+                    metrics.phase(ScanMetrics.DOWNLOAD, phaseStart);
+                    final byte[] content = response.asByteArrayUnsafe();
+                    return knownContent(object, () -> sha256().digest(content), metrics)
+                            .thenComposeAsync(known -> known.isPresent()
+                                    ? CompletableFuture.completedFuture(known.get())
+                                    : timedScan(object, remainingMillis, metrics,
+                                            waitMillis -> scanContent(content, waitMillis, metrics, executor)),
+                                    executor);
+                }, executor);
+    }
+
+    /**
+     * Scan a buffer with the profile its first bytes call for.
+     *
+     * @return completes exceptionally with a {@link ScanFailure} when the engine failed
+     */
+    private CompletableFuture<ScanStatus> scanContent(byte[] content, long maxMillis, ScanMetrics metrics, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            final ScanProfile profile = ScanProfile.detect(
+                    Arrays.copyOf(content, Math.min(content.length, ScanProfile.HEAD_BYTES)), content.length);
+            metrics.property("Profile", profile);
+            try (InputStream in = new ByteArrayInputStream(content)) {
+                final ScanResult result = profile.timed(content.length, scanEngine, maxMillis,
+                        timeout -> scanEngine.scan(in, profile, timeout));
+                metrics.scan(result);
+                return result.status();
+            } catch (IOException e) {
+                throw new ScanFailure(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ScanFailure(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * {@link #knownContent} for a staged file.
+     *
+     * @throws ScanFailure when the file could not be read
+     */
+    private CompletableFuture<Optional<ScanStatus>> knownStaged(Prepared object, Path file, ScanMetrics metrics) {
+        return knownContent(object, () -> {
+            final MessageDigest digest = sha256();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new ScanFailure(e);
+            }
+            return digest.digest();
+        }, metrics);
+    }
+
+    /**
+     * When HEAD did not return a SHA-256 (no uploader checksum, a copy in place), hash the downloaded content and look
+     * it up in the known hash lists and then the scan cache, like prepare does with the uploader's checksum. The hash
+     * is added to the content ids so the scan result is also cached under it.
+     *
+     * @param object
+     * @param sha256 hashes the content, only called when there is something to look up
+     * @param metrics
+     * @return completes with the status when no scan is needed
+     */
+    private CompletableFuture<Optional<ScanStatus>> knownContent(Prepared object, Supplier<byte[]> sha256, ScanMetrics metrics) {
+        if (object.contentIds().stream().anyMatch(id -> id.startsWith("sha256:"))
+                || !(knownHashes.isEnabled() || scanCache.isEnabled())) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        final String id = ScanResultCache.sha256Id(Base64.getEncoder().encodeToString(sha256.get()));
+        object.contentIds().add(id);
+        final Optional<ScanStatus> known = knownHashes.lookup(List.of(id));
+        if (known.isPresent()) {
+            metrics.property("KnownHash", true);
+            return CompletableFuture.completedFuture(known);
+        }
+        return scanCache.getAsync(List.of(id), object.signatureVersion()).thenApply(cached -> {
+            if (cached.isPresent()) {
+                log.info("Using cached scan result for {}: {}", object.request().key(), cached.get());
+                metrics.property("CacheHit", true);
+            }
+            return cached;
+        });
+    }
+
+    private static byte[] readHead(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.readNBytes(ScanProfile.HEAD_BYTES);
+        } catch (IOException e) {
+            throw new ScanFailure(e);
+        }
+    }
+
+    /**
+     * Feed the object body to the scanner as the CRT client delivers it, so download and scan overlap and nothing is
+     * written to /tmp. Reading the body blocks, so the scan runs on executor (a virtual thread) once the response
+     * headers are in.
+     *
+     * The content is hashed on the way through, and when all of it was read the SHA-256 id is added to contentIds so
+     * the result can be cached under it. The first bytes are peeked at to choose the scan profile.
+     *
+     * @param object
+     * @param maxMillis
+     * @param metrics
+     * @param executor
+     * @return completes exceptionally with a {@link ScanFailure} when the engine failed
+     */
+    private CompletableFuture<ScanStatus> streamAndScan(Prepared object, long maxMillis, ScanMetrics metrics,
+            Executor executor) {
+        final String bucket = object.request().bucket();
+        final String key = object.request().key();
+        final long size = object.size();
+        log.info("Streaming file {} from bucket {} to {}", key, bucket, scanEngine.name());
+        // Same version HEAD saw, a concurrent overwrite fails the GET instead of scanning content we did not HEAD
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .versionId(object.head().versionId())
+                .ifMatch(object.head().eTag())
+                .build();
+        // Only waits for the response headers, body is read as it arrives
+        return s3Client.getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream())
+                .thenApplyAsync(body -> {
+                    final MessageDigest digest = sha256();
+                    try (body;
+                            var in = new ScanEngines.CountingInputStream(new DigestInputStream(new S3BodyInputStream(body), digest));
+                            var peek = new PushbackInputStream(in, ScanProfile.HEAD_BYTES)) {
+                        final byte[] head = peek.readNBytes(ScanProfile.HEAD_BYTES);
+                        peek.unread(head);
+                        final ScanProfile profile = ScanProfile.detect(head, size);
+                        metrics.property("Profile", profile);
+                        final ScanResult result = profile.timed(size, scanEngine, maxMillis,
+                                timeout -> scanEngine.scan(peek, profile, timeout));
+                        metrics.scan(result);
+                        ScanStatus status = result.status();
+                        if (in.count == size) {
+                            final String id = ScanResultCache.sha256Id(Base64.getEncoder().encodeToString(digest.digest()));
+                            object.contentIds().add(id);
+                            // Only known after the scan when streaming, but a known bad hash still wins over a missing signature
+                            if (status != ScanStatus.INFECTED && knownHashes.lookup(List.of(id)).orElse(null) == ScanStatus.INFECTED) {
+                                metrics.property("KnownHash", true);
+                                status = ScanStatus.INFECTED;
+                            }
+                        }
+                        return status;
+                    } catch (IOException e) {
+                        throw new ScanFailure(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ScanFailure(e);
+                    }
+                }, executor);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Failures reading the S3 body are download problems, not scanner problems, so surface them as a
+     * CompletionException which triggers a retry like any other transient S3 failure.
+     */
+    static class S3BodyInputStream extends FilterInputStream {
+
+        S3BodyInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    /**
+     * The scanner (not S3) failed, so the object is left as it is instead of being retried.
+     */
+    static class ScanFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ScanFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private static void complete(CompletableFuture<Void> result, Throwable failure) {
+        if (failure != null) {
+            result.completeExceptionally(failure);
+        } else {
+            result.complete(null);
+        }
+    }
+
+    private static String unquote(String eTag) {
+        return eTag != null && eTag.length() > 1 && eTag.startsWith("\"") ? eTag.substring(1, eTag.length() - 1) : eTag;
+    }
+
+    static long getClamScanWaitMillis(int remainingMillis) {
+        return Math.max(0, remainingMillis - 10000L);
+    }
+
+    static Path createTempFilePath(String key) {
+        return createTempFilePath(Paths.get("/tmp"), key);
+    }
+
+    static Path createTempFilePath(Path dir, String key) {
+        String baseName = new File(key).getName();
+        String extension = "";
+        int extIndex = baseName.lastIndexOf('.');
+        if (extIndex > 0 && extIndex < baseName.length() - 1) {
+            extension = baseName.substring(extIndex);
+        }
+
+        String uniqueName = java.util.UUID.randomUUID() + extension;
+        return dir.resolve(uniqueName);
+    }
+
+    private static Path writableDir(String dir) {
+        final Path path = Paths.get(dir);
+        return Files.isDirectory(path) && Files.isWritable(path) ? path : null;
+    }
+}
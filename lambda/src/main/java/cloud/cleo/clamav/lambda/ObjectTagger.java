@@ -0,0 +1,143 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanStatus;
+import static cloud.cleo.clamav.ScanStatus.SCAN_TAG_NAME;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.Tag;
+
+/**
+ * Set the scan status tag on S3 Objects while preserving any other tags on them.
+ *
+ * Each object gets a {@link Session} that reads the existing tag set once and reuses it for every status written
+ * (SCANNING and then the final status), so a scan costs one GET and at most two PUTs of tagging. Writes within a session
+ * are chained, so the final status can never be overwritten by a slow SCANNING write.
+ *
+ * @author sjensen
+ */
+public class ObjectTagger {
+
+    final static Logger log = LogManager.getLogger(ObjectTagger.class);
+
+    final S3AsyncClient s3Client;
+
+    public ObjectTagger(S3AsyncClient s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * Start tagging an object. Nothing is read from S3 until the first status is written.
+     *
+     * @param bucket
+     * @param key
+     * @return
+     */
+    public Session session(String bucket, String key) {
+        return session(bucket, key, null);
+    }
+
+    /**
+     * Start tagging one version of an object, so a newer upload of the key never gets this version's status.
+     *
+     * @param bucket
+     * @param key
+     * @param versionId null for the current object (unversioned bucket)
+     * @return
+     */
+    public Session session(String bucket, String key, String versionId) {
+        return new Session(bucket, key, versionId);
+    }
+
+    /**
+     * Tagging state for a single object.
+     */
+    public class Session {
+
+        final String bucket;
+
+        final String key;
+
+        final String versionId;
+
+        // Tags other than ours, fetched once
+        volatile CompletableFuture<List<Tag>> otherTags;
+
+        // Last write issued, the next one waits for it
+        CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+        Session(String bucket, String key, String versionId) {
+            this.bucket = bucket;
+            this.key = key;
+            this.versionId = versionId;
+        }
+
+        /**
+         * Write the status without waiting, after any earlier write in this session.
+         *
+         * @param status
+         * @return completes when this status has been written
+         */
+        public synchronized CompletableFuture<Void> setAsync(ScanStatus status) {
+            if (otherTags == null) {
+                otherTags = readOtherTags();
+            }
+            // A failed earlier write (like SCANNING) should not stop this one
+            lastWrite = lastWrite.exceptionally(t -> null)
+                    .thenCompose(v -> otherTags)
+                    .thenCompose(tags -> put(tags, status))
+                    .exceptionallyCompose(t -> {
+                        // Tags may have changed underneath us (or the read failed), read again and retry once
+                        log.warn("Tagging {} with {} failed, retrying with fresh tags: {}", key, status, t.getMessage());
+                        otherTags = readOtherTags();
+                        return otherTags.thenCompose(tags -> put(tags, status));
+                    });
+            return lastWrite;
+        }
+
+        /**
+         * Wait for any outstanding write, used when abandoning the session so nothing lands after we return.
+         */
+        public void awaitPending() {
+            final CompletableFuture<Void> pending;
+            synchronized (this) {
+                pending = lastWrite;
+            }
+            try {
+                pending.join();
+            } catch (RuntimeException e) {
+                log.warn("Pending tag write for {} failed: {}", key, e.getMessage());
+            }
+        }
+
+        private CompletableFuture<List<Tag>> readOtherTags() {
+            return s3Client.getObjectTagging(b -> b.bucket(bucket).key(key).versionId(versionId))
+                    .thenApply(r -> {
+                        // Remove any existing "scan-status" tag
+                        final var tags = new ArrayList<Tag>(r.tagSet().size() + 1);
+                        for (Tag tag : r.tagSet()) {
+                            if (!tag.key().equals(SCAN_TAG_NAME)) {
+                                tags.add(tag);
+                            }
+                        }
+                        return tags;
+                    });
+        }
+
+        private CompletableFuture<Void> put(List<Tag> otherTags, ScanStatus status) {
+            final var updatedTags = new ArrayList<Tag>(otherTags);
+            updatedTags.add(Tag.builder()
+                    .key(SCAN_TAG_NAME)
+                    .value(status.toString())
+                    .build());
+
+            log.info("Updating object tags for {} with scan-status: {}", key, status);
+            return s3Client.putObjectTagging(b -> b.bucket(bucket).key(key).versionId(versionId)
+                    .tagging(t -> t.tagSet(updatedTags)))
+                    .thenApply(r -> null);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Download an S3 object to a local file. Small objects use a single GET, larger ones are fetched as byte ranges in
+ * parallel and each part is written at its own offset in a preallocated file.
+ *
+ * Ranged GETs are pinned to the ETag (and version when present) from the HEAD so all parts come from the same object
+ * even if it is overwritten mid download.
+ *
+ * @author sjensen
+ */
+public class RangedDownloader {
+
+    final static Logger log = LogManager.getLogger(RangedDownloader.class);
+
+    final static long MB = 1024 * 1024;
+
+    // Objects at or above this size are downloaded in ranges
+    final static long THRESHOLD_BYTES = EnvConfig.getLong("DOWNLOAD_RANGED_THRESHOLD_MB", 16) * MB;
+
+    // Size of each ranged GET
+    final static long PART_SIZE_BYTES = Math.max(1, EnvConfig.getLong("DOWNLOAD_PART_SIZE_MB", 8)) * MB;
+
+    // Ranged GETs in flight per object
+    final static int CONCURRENCY = Math.max(1, EnvConfig.getInt("DOWNLOAD_CONCURRENCY", 8));
+
+    final S3AsyncClient s3Client;
+
+    final long thresholdBytes;
+
+    final long partSizeBytes;
+
+    final int concurrency;
+
+    public RangedDownloader(S3AsyncClient s3Client) {
+        this(s3Client, THRESHOLD_BYTES, PART_SIZE_BYTES, CONCURRENCY);
+    }
+
+    public RangedDownloader(S3AsyncClient s3Client, long thresholdBytes, long partSizeBytes, int concurrency) {
+        this.s3Client = s3Client;
+        this.thresholdBytes = thresholdBytes;
+        this.partSizeBytes = partSizeBytes;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Download the object described by head to target, which must not exist yet.
+     *
+     * @param bucket
+     * @param key
+     * @param head HEAD response for the object (size, ETag and version are used)
+     * @param target
+     * @throws CompletionException when S3 or writing the file fails
+     */
+    public void download(String bucket, String key, HeadObjectResponse head, Path target) {
+        downloadAsync(bucket, key, head, target).join();
+    }
+
+    /**
+     * Download without blocking the caller, no thread waits on S3 while parts are in flight.
+     *
+     * @param bucket
+     * @param key
+     * @param head HEAD response for the object (size, ETag and version are used)
+     * @param target
+     * @return completes once the whole file is written, exceptionally when S3 or writing the file fails
+     */
+    public CompletableFuture<Void> downloadAsync(String bucket, String key, HeadObjectResponse head, Path target) {
+        final long size = head.contentLength();
+        final long start = System.nanoTime();
+        final CompletableFuture<Integer> parts;
+        if (size < thresholdBytes || size <= partSizeBytes) {
+            parts = s3Client.getObject(request(bucket, key, head).build(), target).thenApply(r -> 1);
+        } else {
+            parts = downloadRanges(bucket, key, head, target);
+        }
+        return parts.thenAccept(count -> {
+            double seconds = Math.max(1, System.nanoTime() - start) / 1_000_000_000.0;
+            log.info("Downloaded {} ({} bytes) in {} ms, {} part(s), {} MB/s",
+                    key, size, Math.round(seconds * 1000), count, String.format("%.1f", size / MB / seconds));
+        });
+    }
+
+    private CompletableFuture<Integer> downloadRanges(String bucket, String key, HeadObjectResponse head, Path target) {
+        final long size = head.contentLength();
+        final int parts = (int) ((size + partSizeBytes - 1) / partSizeBytes);
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            // Preallocate by writing the last byte so parts can land in any order
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // Each lane downloads one part at a time and moves on to the next part nobody has taken yet
+        final AtomicInteger nextPart = new AtomicInteger();
+        final List<CompletableFuture<Void>> lanes = new ArrayList<>(concurrency);
+        for (int lane = 0; lane < Math.min(concurrency, parts); lane++) {
+            lanes.add(nextRange(bucket, key, head, channel, parts, nextPart));
+        }
+        return CompletableFuture.allOf(lanes.toArray(CompletableFuture[]::new))
+                .whenComplete((r, t) -> {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        log.warn("Could not close {}", target, e);
+                    }
+                })
+                .thenApply(r -> parts);
+    }
+
+    private CompletableFuture<Void> nextRange(String bucket, String key, HeadObjectResponse head, FileChannel channel,
+            int parts, AtomicInteger nextPart) {
+        final int part = nextPart.getAndIncrement();
+        if (part >= parts) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final long first = part * partSizeBytes;
+        final long last = Math.min(head.contentLength(), first + partSizeBytes) - 1;
+        return downloadRange(bucket, key, head, channel, first, last)
+                .whenComplete((r, t) -> {
+                    if (t != null) {
+                        // No point starting more parts, the failure surfaces through this lane
+                        nextPart.set(parts);
+                    }
+                })
+                .thenCompose(r -> nextRange(bucket, key, head, channel, parts, nextPart));
+    }
+
+    private CompletableFuture<Void> downloadRange(String bucket, String key, HeadObjectResponse head,
+            FileChannel channel, long first, long last) {
+        final AtomicLong position = new AtomicLong(first);
+        return s3Client.getObject(request(bucket, key, head).range("bytes=" + first + "-" + last).build(),
+                AsyncResponseTransformer.toPublisher())
+                .thenCompose(publisher -> publisher.subscribe(buffer -> {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            position.addAndGet(channel.write(buffer, position.get()));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }))
+                .thenRun(() -> {
+                    if (position.get() != last + 1) {
+                        throw new CompletionException(new IOException("Short read for range " + first + "-" + last
+                                + " of " + key + ", got " + (position.get() - first) + " bytes"));
+                    }
+                });
+    }
+
+    private static GetObjectRequest.Builder request(String bucket, String key, HeadObjectResponse head) {
+        return GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .versionId(head.versionId())
+                .ifMatch(head.eTag());
+    }
+}
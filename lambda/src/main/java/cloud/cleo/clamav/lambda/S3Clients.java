@@ -0,0 +1,40 @@
+package cloud.cleo.clamav.lambda;
+
+import java.net.URI;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Create the S3 client used by the handlers.
+ *
+ * S3_ENDPOINT_URL points the client at an S3 compatible endpoint instead of AWS (path style addressing), for example
+ * the local stand-in the load test runs.
+ *
+ * @author sjensen
+ */
+public final class S3Clients {
+
+    final static Logger log = LogManager.getLogger(S3Clients.class);
+
+    final static String ENDPOINT_URL = EnvConfig.getString("S3_ENDPOINT_URL", null);
+
+    private S3Clients() {
+    }
+
+    /**
+     * CRT based async client (better download performance and async calls).
+     *
+     * @return
+     */
+    public static S3AsyncClient create() {
+        if (ENDPOINT_URL == null) {
+            return S3AsyncClient.crtCreate();
+        }
+        log.info("Using S3 endpoint {}", ENDPOINT_URL);
+        return S3AsyncClient.crtBuilder()
+                .endpointOverride(URI.create(ENDPOINT_URL))
+                .forcePathStyle(true)
+                .build();
+    }
+}
@@ -0,0 +1,232 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Something that can scan a local file or a stream with ClamAV and return a status, along with the signatures that
+ * matched and anything else the engine reports.
+ *
+ * @author sjensen
+ */
+public interface ScanEngine extends AutoCloseable {
+
+    /**
+     * Location of the virus definitions baked into the container image.
+     */
+    String DATABASE_DIR = EnvConfig.getString("CLAMAV_DB_DIR", "/var/task/clamav_defs");
+
+    /**
+     * Get the engine ready to scan (load definitions, start daemons). Engines start on first scan if this is not
+     * called, calling it early just moves that cost to Lambda init.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    default void start() throws IOException, InterruptedException {
+    }
+
+    /**
+     * Scan a file that is on local disk.
+     *
+     * @param file the file to scan
+     * @param timeoutMillis how long the scan may run before it is aborted and ERROR is returned
+     * @return CLEAN, INFECTED or ERROR
+     * @throws IOException when the engine itself cannot be used (caller may fall back to another engine)
+     * @throws InterruptedException
+     */
+    ScanResult scan(Path file, long timeoutMillis) throws IOException, InterruptedException;
+
+    /**
+     * Scan content as it arrives on a stream (for example straight from an S3 download) without staging it on disk.
+     *
+     * @param in the content to scan, read until EOF but not closed
+     * @param timeoutMillis how long the scan may run before it is aborted and ERROR is returned
+     * @return CLEAN, INFECTED or ERROR
+     * @throws IOException when the engine cannot be used or the stream fails
+     * @throws InterruptedException
+     */
+    ScanResult scan(InputStream in, long timeoutMillis) throws IOException, InterruptedException;
+
+    /**
+     * Scan a local file with the options of a profile. Engines that cannot change options per scan ignore it.
+     *
+     * @param file
+     * @param profile
+     * @param timeoutMillis
+     * @return CLEAN, INFECTED or ERROR
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    default ScanResult scan(Path file, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        return scan(file, timeoutMillis);
+    }
+
+    /**
+     * Scan a stream with the options of a profile. Engines that cannot change options per scan ignore it.
+     *
+     * @param in
+     * @param profile
+     * @param timeoutMillis
+     * @return CLEAN, INFECTED or ERROR
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    default ScanResult scan(InputStream in, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        return scan(in, timeoutMillis);
+    }
+
+    /**
+     * Scan a local file without blocking the caller. By default the blocking scan runs on executor, engines that can
+     * wait for completion without a thread (a process exit) override this.
+     *
+     * @param file
+     * @param profile
+     * @param timeoutMillis
+     * @param executor runs any blocking part of the scan
+     * @return completes with CLEAN, INFECTED or ERROR, or exceptionally with the IOException when the engine failed
+     */
+    default CompletableFuture<ScanResult> scanAsync(Path file, ScanProfile profile, long timeoutMillis, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return scan(file, profile, timeoutMillis);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Scan several local files in one call, all with the options of one profile. Engines that pay a fixed cost per call
+     * (clamscan loads the whole database every run) override this to pay it once for the batch, by default the files
+     * are scanned one at a time until the time runs out.
+     *
+     * @param files
+     * @param profile
+     * @param timeoutMillis how long the whole batch may run, files not scanned by then are ERROR
+     * @return result of every file, in the order given
+     * @throws IOException when the engine itself cannot be used
+     * @throws InterruptedException
+     */
+    default Map<Path, ScanResult> scan(List<Path> files, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        final Map<Path, ScanResult> results = new LinkedHashMap<>();
+        for (Path file : files) {
+            final long remaining = deadline - System.currentTimeMillis();
+            results.put(file, remaining > 0 ? scan(file, profile, remaining) : ScanResult.of(ScanStatus.ERROR, name()));
+        }
+        return results;
+    }
+
+    /**
+     * Whether scanning files together with {@link #scan(List, ScanProfile, long)} is cheaper than scanning them one at a
+     * time in parallel.
+     *
+     * @return
+     */
+    default boolean batchesScans() {
+        return false;
+    }
+
+    /**
+     * Fixed time every scan pays before any content is read (clamscan loads the whole database on every run). Added to
+     * predicted deadlines so small objects are not cut off while the engine gets ready.
+     *
+     * @return
+     */
+    default long startupMillis() {
+        return 0;
+    }
+
+    /**
+     * Time the engine spent scanning for a result it returned, without startup or the time taken to receive the
+     * content. Scan profiles learn throughput from it.
+     *
+     * @param result
+     * @return milliseconds, -1 when the engine cannot tell
+     */
+    default long scanMillis(ScanResult result) {
+        return result.engineMillis();
+    }
+
+    /**
+     * Whether this object is better scanned from a staged file than streamed, even when streaming is configured.
+     *
+     * @param key object key
+     * @return
+     */
+    default boolean prefersFile(String key) {
+        return false;
+    }
+
+    /**
+     * Switch to the definitions in dir. Scans already running finish with the old definitions. Engines that read the
+     * database for each scan just need {@link Definitions} updated.
+     *
+     * @param dir
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    default void reload(Path dir) throws IOException, InterruptedException {
+        Definitions.activate(dir);
+    }
+
+    /**
+     * Whether the engine keeps the whole database in memory once loaded, so the files of the previous definitions can
+     * be deleted as soon as {@link #reload(Path)} returns. Engines that read the database for each scan still need them
+     * until the scans started before the reload are done.
+     *
+     * @return
+     */
+    default boolean holdsDatabase() {
+        return false;
+    }
+
+    /**
+     * Check the engine is still able to scan, for example after an execution environment snapshot is restored.
+     *
+     * @return
+     */
+    default boolean isHealthy() {
+        return true;
+    }
+
+    /**
+     * Short name of the engine for logging.
+     *
+     * @return
+     */
+    String name();
+
+    /**
+     * Release any resources (processes, sockets) held by the engine.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * The engine can't scan yet (still starting, or waiting before it retries a failed start). Scans can go elsewhere
+     * without tearing it down.
+     */
+    class NotReadyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public NotReadyException(String message) {
+            super(message);
+        }
+    }
+}
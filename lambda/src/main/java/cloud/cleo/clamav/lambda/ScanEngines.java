@@ -0,0 +1,256 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Select the scan engine to use based on the SCAN_ENGINE environment variable.
+ *
+ * <ul>
+ * <li>clamd (default) - persistent daemon, falls back to clamscan if the daemon cannot be used</li>
+ * <li>clamscan - fork a clamscan process per file (original behavior)</li>
+ * </ul>
+ *
+ * @author sjensen
+ */
+public final class ScanEngines {
+
+    final static Logger log = LogManager.getLogger(ScanEngines.class);
+
+    private ScanEngines() {
+    }
+
+    /**
+     * Create the engine configured for this environment.
+     *
+     * @return
+     */
+    public static ScanEngine create() {
+        String engine = EnvConfig.getString("SCAN_ENGINE", "clamd").toLowerCase();
+        return switch (engine) {
+            case "clamscan" ->
+                new ClamScanEngine();
+            case "clamd" ->
+                daemon();
+            default -> {
+                log.warn("Invalid value for SCAN_ENGINE: {} (defaulting to clamd)", engine);
+                yield daemon();
+            }
+        };
+    }
+
+    private static ScanEngine daemon() {
+        final ScanEngine engine = new FallbackScanEngine(new ClamdEngine(), new ClamScanEngine());
+        // Parallel member scans only pay off when each scan does not have to load the database (not with clamscan)
+        return ArchiveScanEngine.ENABLED ? new ArchiveScanEngine(engine) : engine;
+    }
+
+    /**
+     * Use the primary engine, but if it fails to operate (not a scan result of ERROR, but an actual failure like the
+     * daemon not starting), then scan with the fallback engine instead.
+     */
+    static class FallbackScanEngine implements ScanEngine {
+
+        final ScanEngine primary;
+        final ScanEngine fallback;
+
+        FallbackScanEngine(ScanEngine primary, ScanEngine fallback) {
+            this.primary = primary;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void start() throws IOException, InterruptedException {
+            try {
+                primary.start();
+            } catch (IOException e) {
+                log.error("{} engine failed to start, {} will be used until it can be started", primary.name(), fallback.name(), e);
+                if (!(e instanceof NotReadyException)) {
+                    primary.close();
+                }
+                fallback.start();
+            }
+        }
+
+        @Override
+        public ScanResult scan(Path file, long timeoutMillis) throws IOException, InterruptedException {
+            return scan(file, ScanProfile.DEFAULT, timeoutMillis);
+        }
+
+        @Override
+        public ScanResult scan(InputStream in, long timeoutMillis) throws IOException, InterruptedException {
+            return scan(in, ScanProfile.DEFAULT, timeoutMillis);
+        }
+
+        @Override
+        public ScanResult scan(Path file, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+            long start = System.currentTimeMillis();
+            try {
+                return primary.scan(file, profile, timeoutMillis);
+            } catch (IOException e) {
+                primaryFailed(e);
+                long remaining = timeoutMillis - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    log.error("No time left to scan with {}", fallback.name());
+                    return ScanResult.of(ScanStatus.ERROR, name());
+                }
+                return fallback.scan(file, profile, remaining);
+            }
+        }
+
+        @Override
+        public ScanResult scan(InputStream in, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+            long start = System.currentTimeMillis();
+            final var counting = new CountingInputStream(in);
+            try {
+                return primary.scan(counting, profile, timeoutMillis);
+            } catch (IOException e) {
+                if (counting.count > 0) {
+                    // Part of the stream is gone, can't hand it to another engine
+                    primary.close();
+                    throw e;
+                }
+                primaryFailed(e);
+                long remaining = timeoutMillis - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    log.error("No time left to scan with {}", fallback.name());
+                    return ScanResult.of(ScanStatus.ERROR, name());
+                }
+                return fallback.scan(in, profile, remaining);
+            }
+        }
+
+        @Override
+        public CompletableFuture<ScanResult> scanAsync(Path file, ScanProfile profile, long timeoutMillis, Executor executor) {
+            final long start = System.currentTimeMillis();
+            return primary.scanAsync(file, profile, timeoutMillis, executor).exceptionallyCompose(t -> {
+                final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (!(cause instanceof IOException)) {
+                    return CompletableFuture.failedFuture(t);
+                }
+                primaryFailed((IOException) cause);
+                long remaining = timeoutMillis - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    log.error("No time left to scan with {}", fallback.name());
+                    return CompletableFuture.completedFuture(ScanResult.of(ScanStatus.ERROR, name()));
+                }
+                return fallback.scanAsync(file, profile, remaining, executor);
+            });
+        }
+
+        @Override
+        public Map<Path, ScanResult> scan(List<Path> files, ScanProfile profile, long timeoutMillis) throws IOException, InterruptedException {
+            long start = System.currentTimeMillis();
+            try {
+                return primary.scan(files, profile, timeoutMillis);
+            } catch (IOException e) {
+                primaryFailed(e);
+                long remaining = timeoutMillis - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    log.error("No time left to scan with {}", fallback.name());
+                    final Map<Path, ScanResult> errors = new LinkedHashMap<>();
+                    files.forEach(file -> errors.put(file, ScanResult.of(ScanStatus.ERROR, name())));
+                    return errors;
+                }
+                return fallback.scan(files, profile, remaining);
+            }
+        }
+
+        /**
+         * Shut down the primary so it is restarted clean on the next scan, unless it just isn't ready yet.
+         */
+        private void primaryFailed(IOException e) {
+            if (e instanceof NotReadyException) {
+                log.warn("{} engine not ready ({}), scanning with {}", primary.name(), e.getMessage(), fallback.name());
+                return;
+            }
+            log.error("{} engine failed, falling back to {}", primary.name(), fallback.name(), e);
+            primary.close();
+        }
+
+        @Override
+        public boolean batchesScans() {
+            return primary.batchesScans();
+        }
+
+        @Override
+        public long startupMillis() {
+            // Deadlines leave room for the fallback to get ready when the primary fails part way
+            return Math.max(primary.startupMillis(), fallback.startupMillis());
+        }
+
+        @Override
+        public long scanMillis(ScanResult result) {
+            return fallback.name().equals(result.engine()) ? fallback.scanMillis(result) : primary.scanMillis(result);
+        }
+
+        @Override
+        public void reload(Path dir) throws IOException, InterruptedException {
+            primary.reload(dir);
+        }
+
+        @Override
+        public boolean holdsDatabase() {
+            // The fallback may be scanning with the files at any time
+            return primary.holdsDatabase() && fallback.holdsDatabase();
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return primary.isHealthy();
+        }
+
+        @Override
+        public String name() {
+            return primary.name() + "/" + fallback.name();
+        }
+
+        @Override
+        public void close() {
+            primary.close();
+            fallback.close();
+        }
+    }
+
+    /**
+     * Track how many bytes have been consumed from a stream.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
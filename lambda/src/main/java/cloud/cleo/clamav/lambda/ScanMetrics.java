@@ -0,0 +1,277 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Per-object timings written as CloudWatch Embedded Metric Format (EMF) so they become metrics without any API calls.
+ *
+ * Lines go to the "metrics" logger, which log4j2.xml sends to an appender that writes just the JSON (CloudWatch only
+ * picks up EMF when the line is a bare JSON object).
+ *
+ * @author sjensen
+ */
+public class ScanMetrics {
+
+    // Dedicated logger so the EMF lines are not prefixed like normal log lines
+    final static Logger metricsLog = LogManager.getLogger("metrics");
+
+    final static String NAMESPACE = EnvConfig.getString("METRICS_NAMESPACE", "ClamAV");
+
+    final static boolean ENABLED = EnvConfig.getBoolean("METRICS_ENABLED", true);
+
+    // Phases timed for each object
+    public final static String HEAD = "HeadMillis";
+    public final static String DOWNLOAD = "DownloadMillis";
+    public final static String SCAN = "ScanMillis";
+    public final static String TAG = "TagMillis";
+    public final static String TOTAL = "TotalMillis";
+
+    // Scan time as reported by the engine, compared to SCAN it shows where the time goes
+    public final static String ENGINE = "EngineMillis";
+
+    // Per object, the scan service runs many requests at once and none of them are a Lambda cold start
+    final boolean coldStart;
+
+    final long startNanos = System.nanoTime();
+
+    final Map<String, Long> millis = new LinkedHashMap<>();
+
+    final Map<String, String> properties = new LinkedHashMap<>();
+
+    long size = -1;
+
+    long scannedBytes = -1;
+
+    String engine;
+
+    String result = "FAILED";
+
+    /**
+     * @param coldStart true when the object came in the first invocation in the execution environment
+     */
+    public ScanMetrics(boolean coldStart) {
+        this.coldStart = coldStart;
+    }
+
+    /**
+     * Record a phase that started at startNanos (from System.nanoTime) and ended now. Repeated phases add up.
+     *
+     * @param phase
+     * @param startNanos
+     */
+    public void phase(String phase, long startNanos) {
+        millis.merge(phase, (System.nanoTime() - startNanos) / 1_000_000, Long::sum);
+    }
+
+    public void size(long size) {
+        this.size = size;
+    }
+
+    public void result(Object result) {
+        this.result = String.valueOf(result);
+    }
+
+    /**
+     * Outcome recorded so far, FAILED until a result is set.
+     *
+     * @return
+     */
+    public String result() {
+        return result;
+    }
+
+    /**
+     * Record what the engine reported: which engine scanned the object, the signatures that matched (also counted per
+     * signature on their own EMF lines), how much data it scanned and how long it says that took.
+     *
+     * @param result
+     */
+    public void scan(ScanResult result) {
+        engine = result.engine();
+        if (!result.signatures().isEmpty()) {
+            property("Signatures", String.join(",", result.signatures()));
+            result.signatures().forEach(signature -> detection(result.engine(), signature));
+        }
+        if (result.scannedBytes() >= 0) {
+            scannedBytes = result.scannedBytes();
+        }
+        if (result.engineMillis() >= 0) {
+            millis.put(ENGINE, result.engineMillis());
+        }
+    }
+
+    /**
+     * Extra searchable value on the EMF line that is not a metric (like the object key).
+     *
+     * @param name
+     * @param value
+     */
+    public void property(String name, Object value) {
+        properties.put(name, String.valueOf(value));
+    }
+
+    /**
+     * Write the EMF line. Called once when the object is done, whatever the outcome.
+     */
+    public void emit() {
+        if (!ENABLED) {
+            return;
+        }
+        millis.put(TOTAL, (System.nanoTime() - startNanos) / 1_000_000);
+
+        final var metrics = new LinkedHashMap<String, Object[]>();
+        millis.forEach((name, value) -> metrics.put(name, new Object[]{value, "Milliseconds"}));
+        if (size >= 0) {
+            metrics.put("ObjectSize", new Object[]{size, "Bytes"});
+            // Staged objects are read from S3 during download, streamed ones during the scan
+            long transferMillis = millis.getOrDefault(DOWNLOAD, millis.getOrDefault(SCAN, 0L));
+            if (transferMillis > 0 && size > 0) {
+                metrics.put("Throughput", new Object[]{size * 1000 / transferMillis, "Bytes/Second"});
+            }
+        }
+        if (scannedBytes >= 0) {
+            metrics.put("ScannedBytes", new Object[]{scannedBytes, "Bytes"});
+        }
+
+        final var json = new StringBuilder(512);
+        json.append("{\"_aws\":{\"Timestamp\":").append(System.currentTimeMillis())
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        string(json, NAMESPACE);
+        json.append(",\"Dimensions\":[[\"Result\"],[\"ColdStart\"]").append(engine != null ? ",[\"Engine\"]" : "")
+                .append("],\"Metrics\":[");
+        boolean first = true;
+        for (var metric : metrics.entrySet()) {
+            json.append(first ? "" : ",").append("{\"Name\":");
+            string(json, metric.getKey());
+            json.append(",\"Unit\":\"").append(metric.getValue()[1]).append("\"}");
+            first = false;
+        }
+        json.append("]}]},\"Result\":");
+        string(json, result);
+        json.append(",\"ColdStart\":\"").append(coldStart).append('"');
+        if (engine != null) {
+            json.append(",\"Engine\":");
+            string(json, engine);
+        }
+        for (var metric : metrics.entrySet()) {
+            json.append(',');
+            string(json, metric.getKey());
+            json.append(':').append(metric.getValue()[0]);
+        }
+        for (var property : properties.entrySet()) {
+            json.append(',');
+            string(json, property.getKey());
+            json.append(':');
+            string(json, property.getValue());
+        }
+        json.append('}');
+        metricsLog.info(json);
+    }
+
+    /**
+     * Write an EMF line for the messages of one lane in an SQS batch, with the time each one waited in the queue. Ages
+     * are written as a list of values so CloudWatch percentiles are per message, not per batch.
+     *
+     * @param lane
+     * @param ageMillis time from each message being sent to being received
+     */
+    public static void queue(String lane, List<Long> ageMillis) {
+        if (!ENABLED || ageMillis.isEmpty()) {
+            return;
+        }
+        final var json = new StringBuilder(256);
+        json.append("{\"_aws\":{\"Timestamp\":").append(System.currentTimeMillis())
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        string(json, NAMESPACE);
+        json.append(",\"Dimensions\":[[\"Lane\"]],\"Metrics\":[{\"Name\":\"QueueAgeMillis\",\"Unit\":\"Milliseconds\"},")
+                .append("{\"Name\":\"Messages\",\"Unit\":\"Count\"}]}]},\"Lane\":");
+        string(json, lane);
+        json.append(",\"QueueAgeMillis\":[");
+        for (int i = 0; i < ageMillis.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(ageMillis.get(i));
+        }
+        json.append("],\"Messages\":").append(ageMillis.size()).append('}');
+        metricsLog.info(json);
+    }
+
+    /**
+     * Write an EMF line with the inputs provisioned concurrency is scaled on, without dimensions so they add up across
+     * the whole function: how many objects an environment had in flight at once and how old the events were when the
+     * scanner got them.
+     *
+     * @param inFlight most objects in flight at once during the invocation
+     * @param eventAgeMillis time from each event being sent (by S3, or to the queue) to being received
+     */
+    public static void load(int inFlight, List<Long> eventAgeMillis) {
+        if (!ENABLED) {
+            return;
+        }
+        final var json = new StringBuilder(256);
+        json.append("{\"_aws\":{\"Timestamp\":").append(System.currentTimeMillis())
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        string(json, NAMESPACE);
+        json.append(",\"Dimensions\":[[]],\"Metrics\":[{\"Name\":\"InFlightScans\",\"Unit\":\"Count\"}")
+                .append(eventAgeMillis.isEmpty() ? "" : ",{\"Name\":\"EventAgeMillis\",\"Unit\":\"Milliseconds\"}")
+                .append("]}]},\"InFlightScans\":").append(inFlight);
+        if (!eventAgeMillis.isEmpty()) {
+            json.append(",\"EventAgeMillis\":[");
+            for (int i = 0; i < eventAgeMillis.size(); i++) {
+                json.append(i == 0 ? "" : ",").append(eventAgeMillis.get(i));
+            }
+            json.append(']');
+        }
+        json.append('}');
+        metricsLog.info(json);
+    }
+
+    /**
+     * Write an EMF line counting one detection of a signature, so the signatures that fire can be graphed and alarmed
+     * on. Only written for infected objects, which keeps the number of Signature values small.
+     *
+     * @param engine
+     * @param signature
+     */
+    public static void detection(String engine, String signature) {
+        if (!ENABLED) {
+            return;
+        }
+        final var json = new StringBuilder(256);
+        json.append("{\"_aws\":{\"Timestamp\":").append(System.currentTimeMillis())
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        string(json, NAMESPACE);
+        json.append(",\"Dimensions\":[[\"Signature\"]],\"Metrics\":[{\"Name\":\"Detections\",\"Unit\":\"Count\"}]}]},")
+                .append("\"Signature\":");
+        string(json, signature);
+        json.append(",\"Engine\":");
+        string(json, engine);
+        json.append(",\"Detections\":1}");
+        metricsLog.info(json);
+    }
+
+    private static void string(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+}
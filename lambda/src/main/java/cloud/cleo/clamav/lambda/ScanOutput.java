@@ -0,0 +1,158 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Streaming parser for clamscan --stdout output (and the single line replies of clamd). Lines are handled as they are
+ * read, so the verbose output for a large archive is never held in memory, and only what ends up in a
+ * {@link ScanResult} is kept: the signatures found for each scanned target plus the data scanned and time from the
+ * summary.
+ *
+ * Verdict lines look like "/tmp/file: OK", "stdin: Eicar-Signature FOUND" or "/tmp/file: Can't open file ERROR".
+ *
+ * @author sjensen
+ */
+public class ScanOutput {
+
+    final static Logger log = LogManager.getLogger(ScanOutput.class);
+
+    // "Data scanned: 0.52 MB" (0.x) or "Data scanned: 12.34 KiB", "68 B" (1.x), all 1024 based
+    final static Pattern DATA_SCANNED = Pattern.compile("^Data scanned: ([0-9.]+) ?([KMGT]?)i?B");
+
+    // "Time: 7.462 sec (0 m 7 s)"
+    final static Pattern TIME = Pattern.compile("^Time: ([0-9.]+) sec");
+
+    final String engine;
+
+    // Names as they are printed (file paths, or "stdin" for a stream)
+    final Set<String> targets;
+
+    final Map<String, ScanResult> verdicts = new ConcurrentHashMap<>();
+
+    volatile long scannedBytes = -1;
+
+    volatile long engineMillis = -1;
+
+    public ScanOutput(String engine, Collection<String> targets) {
+        this.engine = engine;
+        this.targets = Set.copyOf(targets);
+    }
+
+    /**
+     * Read output until EOF, typically on its own thread while the process runs so it never blocks on a full pipe.
+     *
+     * @param in
+     */
+    public void read(InputStream in) {
+        try (var lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                log.debug("Process Output: {}", line);
+                accept(line);
+            }
+        } catch (IOException e) {
+            log.warn("Failed reading {} output: {}", engine, e.getMessage());
+        }
+    }
+
+    /**
+     * Handle one line of output. Lines that are neither about a target nor part of the summary are ignored.
+     *
+     * @param line
+     */
+    public void accept(String line) {
+        Matcher matcher = DATA_SCANNED.matcher(line);
+        if (matcher.find()) {
+            scannedBytes = bytes(matcher.group(1), matcher.group(2));
+            return;
+        }
+        matcher = TIME.matcher(line);
+        if (matcher.find()) {
+            engineMillis = Math.round(Double.parseDouble(matcher.group(1)) * 1000);
+            return;
+        }
+        // Names can contain ": " too, so try every separator until the part before it is one of ours
+        for (int sep = line.indexOf(": "); sep > 0; sep = line.indexOf(": ", sep + 1)) {
+            final String target = line.substring(0, sep);
+            if (targets.contains(target)) {
+                // A target can be reported more than once (each archive member that matched)
+                verdicts.merge(target, verdict(line.substring(sep + 2), engine), ScanResult::merge);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Status reported for a target, empty when the output never mentioned it.
+     *
+     * @param target
+     * @return
+     */
+    public Optional<ScanStatus> status(String target) {
+        return Optional.ofNullable(verdicts.get(target)).map(ScanResult::status);
+    }
+
+    /**
+     * Result for a target with the status the caller settled on (clamscan's exit code is the authority for a single
+     * target) and whatever the output said about it.
+     *
+     * @param target
+     * @param status
+     * @return
+     */
+    public ScanResult result(String target, ScanStatus status) {
+        final ScanResult verdict = verdicts.get(target);
+        return new ScanResult(status, verdict != null ? verdict.signatures() : List.of(), scannedBytes, engineMillis, engine);
+    }
+
+    /**
+     * Map the verdict part of a line or clamd reply ("OK", "Eicar-Signature FOUND", "reason ERROR") to a result.
+     *
+     * @param verdict
+     * @param engine
+     * @return
+     */
+    public static ScanResult verdict(String verdict, String engine) {
+        final String text = verdict.trim();
+        if (text.endsWith(" FOUND")) {
+            final String signature = text.substring(0, text.length() - " FOUND".length()).trim();
+            return new ScanResult(ScanStatus.INFECTED, List.of(signature), -1, -1, engine);
+        }
+        if (text.equals("OK") || text.equals("Empty file")) {
+            return ScanResult.of(ScanStatus.CLEAN, engine);
+        }
+        return ScanResult.of(ScanStatus.ERROR, engine);
+    }
+
+    private static long bytes(String amount, String unit) {
+        final int shift = switch (unit) {
+            case "K" ->
+                10;
+            case "M" ->
+                20;
+            case "G" ->
+                30;
+            case "T" ->
+                40;
+            default ->
+                0;
+        };
+        return Math.round(Double.parseDouble(amount) * (1L << shift));
+    }
+}
@@ -0,0 +1,285 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * How hard to look at an object, chosen from its first bytes and its size, and how long the scan should take.
+ *
+ * Profiles set clamscan options (clamd options are daemon wide, so with clamd only the deadline applies). Plain text
+ * skips the archive, PDF, OLE2 and executable parsers, media gets tight recursion and size limits, executables, Office
+ * and PDF documents get a full scan.
+ *
+ * The deadline is predicted from the throughput observed for the profile in this execution environment (an EWMA of
+ * bytes per millisecond over completed scans), so a runaway scan is killed and tagged ERROR after a few times its
+ * expected duration instead of running until the Lambda times out.
+ *
+ * @author sjensen
+ */
+public enum ScanProfile {
+
+    /**
+     * Plain text (scripts and HTML are still parsed).
+     */
+    TEXT(List.of("--scan-archive=no", "--scan-pdf=no", "--scan-ole2=no", "--scan-pe=no", "--scan-elf=no",
+            "--scan-swf=no", "--scan-hwp3=no")),
+    /**
+     * Images, audio and video.
+     */
+    MEDIA(List.of("--max-recursion=2", "--max-files=100", "--max-scansize=" + ProfileConfig.MEDIA_MAX_SCAN_BYTES,
+            "--scan-ole2=no", "--scan-hwp3=no")),
+    /**
+     * Executables, Office and PDF documents.
+     */
+    FULL(List.of()),
+    /**
+     * Compressed archives.
+     */
+    ARCHIVE(List.of()),
+    /**
+     * Anything not recognized.
+     */
+    DEFAULT(List.of());
+
+    final static Logger log = LogManager.getLogger(ScanProfile.class);
+
+    /**
+     * Bytes needed from the start of an object to choose a profile.
+     */
+    public final static int HEAD_BYTES = 512;
+
+    // Extra clamscan arguments
+    final List<String> options;
+
+    // Observed bytes per millisecond, 0 until the first scan large enough to measure
+    private volatile double throughput;
+
+    ScanProfile(List<String> options) {
+        this.options = options;
+    }
+
+    /**
+     * A scan bounded by a deadline.
+     *
+     * @param <T> result of the scan
+     */
+    @FunctionalInterface
+    public interface Scan<T> {
+
+        T run(long timeoutMillis) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Choose a profile from the start of an object.
+     *
+     * @param head first bytes of the object (up to HEAD_BYTES)
+     * @param size object size
+     * @return
+     */
+    public static ScanProfile detect(byte[] head, long size) {
+        if (!ProfileConfig.ENABLED || head.length == 0) {
+            return DEFAULT;
+        }
+        if (startsWith(head, 0, "MZ") || startsWith(head, 0, "\u007fELF") || startsWith(head, 0, 0xCF, 0xFA, 0xED, 0xFE)
+                || startsWith(head, 0, 0xD0, 0xCF, 0x11, 0xE0) || startsWith(head, 0, "%PDF") || startsWith(head, 0, "{\\rtf")) {
+            return FULL;
+        }
+        if (startsWith(head, 0, "PK\u0003\u0004") || startsWith(head, 0, "Rar!") || startsWith(head, 0, "7z", 0xBC, 0xAF)
+                || startsWith(head, 0, 0x1F, 0x8B) || startsWith(head, 0, "BZh") || startsWith(head, 0, 0xFD, "7zXZ")
+                || startsWith(head, 257, "ustar")) {
+            return ARCHIVE;
+        }
+        if (startsWith(head, 0, 0xFF, 0xD8, 0xFF) || startsWith(head, 0, 0x89, "PNG") || startsWith(head, 0, "GIF8")
+                || startsWith(head, 0, "ID3") || startsWith(head, 0, "OggS") || startsWith(head, 0, "fLaC")
+                || startsWith(head, 0, 0x1A, 0x45, 0xDF, 0xA3) || startsWith(head, 4, "ftyp")
+                || (startsWith(head, 0, "RIFF") && (startsWith(head, 8, "WAVE") || startsWith(head, 8, "AVI ") || startsWith(head, 8, "WEBP")))) {
+            return MEDIA;
+        }
+        // The first bytes say little about the rest of a big file, only small ones are trusted to be text
+        if (size <= ProfileConfig.TEXT_MAX_BYTES && isText(head)) {
+            return TEXT;
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Extra clamscan arguments for this profile.
+     *
+     * @return
+     */
+    public List<String> options() {
+        return options;
+    }
+
+    /**
+     * Time allowed for scanning an object of this size: the engine's startup cost plus a multiple of the time observed
+     * throughput predicts, never less than the minimum and never more than maxMillis.
+     *
+     * @param size
+     * @param startupMillis fixed cost of the engine, see {@link ScanEngine#startupMillis()}
+     * @param maxMillis time left in the invocation
+     * @return
+     */
+    public long deadlineMillis(long size, long startupMillis, long maxMillis) {
+        if (!ProfileConfig.ENABLED) {
+            return maxMillis;
+        }
+        final double rate = throughput > 0 ? throughput : ProfileConfig.INITIAL_THROUGHPUT;
+        final long predicted = (long) (ProfileConfig.MIN_MILLIS + startupMillis + ProfileConfig.FACTOR * size / rate);
+        return Math.min(maxMillis, predicted);
+    }
+
+    /**
+     * Run a scan with the predicted deadline and learn from how long the engine says it spent scanning.
+     *
+     * @param size object size
+     * @param engine engine doing the scan, for its startup cost and scan time
+     * @param maxMillis time left in the invocation
+     * @param scan
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ScanResult timed(long size, ScanEngine engine, long maxMillis, Scan<ScanResult> scan) throws IOException, InterruptedException {
+        return timed(size, engine, maxMillis, scan, ScanResult::status, engine::scanMillis);
+    }
+
+    /**
+     * Run a scan of one or more objects with the deadline predicted for their total size and learn from how long the
+     * engine spent scanning.
+     *
+     * @param <T>
+     * @param size total size of the objects
+     * @param engine engine doing the scan, its startup cost is paid once for the batch
+     * @param maxMillis time left in the invocation
+     * @param scan
+     * @param outcome ERROR when anything in the result failed, otherwise any other status
+     * @param scanMillis time spent scanning for the result, -1 when not known
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public <T> T timed(long size, ScanEngine engine, long maxMillis, Scan<T> scan, Function<T, ScanStatus> outcome,
+            ToLongFunction<T> scanMillis) throws IOException, InterruptedException {
+        final long deadline = deadlineMillis(size, engine.startupMillis(), maxMillis);
+        log.info("Scanning with profile {}, deadline {} ms", this, deadline);
+        final long start = System.currentTimeMillis();
+        final T result = scan.run(deadline);
+        learn(size, maxMillis, deadline, outcome.apply(result), System.currentTimeMillis() - start,
+                scanMillis.applyAsLong(result));
+        return result;
+    }
+
+    /**
+     * Same as {@link #timed(long, ScanEngine, long, Scan)} for a scan that completes asynchronously.
+     *
+     * @param size
+     * @param engine
+     * @param maxMillis
+     * @param scan given the deadline, starts the scan
+     * @return completes with the scan result
+     */
+    public CompletableFuture<ScanResult> timedAsync(long size, ScanEngine engine, long maxMillis,
+            Function<Long, CompletableFuture<ScanResult>> scan) {
+        final long deadline = deadlineMillis(size, engine.startupMillis(), maxMillis);
+        log.info("Scanning with profile {}, deadline {} ms", this, deadline);
+        final long start = System.currentTimeMillis();
+        return scan.apply(deadline).thenApply(result -> {
+            learn(size, maxMillis, deadline, result.status(), System.currentTimeMillis() - start, engine.scanMillis(result));
+            return result;
+        });
+    }
+
+    /**
+     * Timeouts are told apart by the time the caller waited, throughput is learned only from the time the engine
+     * spent scanning (startup and receiving streamed content would make it look slower than it is).
+     */
+    private void learn(long size, long maxMillis, long deadline, ScanStatus status, long elapsed, long scanMillis) {
+        if (status == ScanStatus.ERROR && elapsed >= deadline && deadline < maxMillis) {
+            log.warn("{} scan of {} bytes stopped at predicted deadline of {} ms", this, size, deadline);
+        } else if (status != ScanStatus.ERROR && scanMillis >= 0) {
+            record(size, scanMillis);
+        }
+    }
+
+    private void record(long size, long scanMillis) {
+        // Small objects are all fixed overhead and say nothing about throughput
+        if (size < ProfileConfig.MIN_SAMPLE_BYTES) {
+            return;
+        }
+        final double sample = (double) size / Math.max(1, scanMillis);
+        final double current = throughput;
+        throughput = current == 0 ? sample : current + ProfileConfig.ALPHA * (sample - current);
+    }
+
+    private static boolean isText(byte[] head) {
+        int printable = 0;
+        for (byte b : head) {
+            if (b == 0) {
+                return false;
+            }
+            // Tab, CR, LF, FF, printable ASCII and anything above (UTF-8 sequences)
+            if (b == '\t' || b == '\n' || b == '\r' || b == '\f' || b >= 0x20 || b < 0) {
+                printable++;
+            }
+        }
+        return printable * 100 >= head.length * 95;
+    }
+
+    /**
+     * Match a signature made of strings and byte values at an offset.
+     */
+    private static boolean startsWith(byte[] head, int offset, Object... signature) {
+        int i = offset;
+        for (Object part : signature) {
+            final byte[] bytes = part instanceof String s
+                    ? s.getBytes(StandardCharsets.ISO_8859_1)
+                    : new byte[]{(byte) (int) (Integer) part};
+            for (byte b : bytes) {
+                if (i >= head.length || head[i++] != b) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Settings, kept out of the enum so they are initialized before the constants use them.
+     */
+    static final class ProfileConfig {
+
+        // Choose profiles by content, otherwise every object gets the DEFAULT full scan and the Lambda time limit
+        final static boolean ENABLED = EnvConfig.getBoolean("SCAN_PROFILES", true);
+
+        // Deadline is this many times the predicted scan time
+        final static double FACTOR = EnvConfig.getDouble("SCAN_DEADLINE_FACTOR", 4);
+
+        // Fixed part of every deadline (process start, connection setup), engine startup cost is added on top
+        final static long MIN_MILLIS = EnvConfig.getLong("SCAN_DEADLINE_MIN_MILLIS", 15000L);
+
+        // Throughput assumed before anything has been measured, 1 MB/s is slow for clamd
+        final static double INITIAL_THROUGHPUT = 1024 * 1024 / 1000.0;
+
+        // Objects smaller than this are not used to measure throughput
+        final static long MIN_SAMPLE_BYTES = 1024 * 1024;
+
+        // Weight of the newest sample
+        final static double ALPHA = 0.2;
+
+        final static long TEXT_MAX_BYTES = EnvConfig.getLong("SCAN_TEXT_MAX_BYTES", 16L * 1024 * 1024);
+
+        final static long MEDIA_MAX_SCAN_BYTES = EnvConfig.getLong("SCAN_MEDIA_MAX_SCAN_BYTES", 25L * 1024 * 1024);
+
+        private ProfileConfig() {
+        }
+    }
+}
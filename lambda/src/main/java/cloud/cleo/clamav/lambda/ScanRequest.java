@@ -0,0 +1,129 @@
+package cloud.cleo.clamav.lambda;
+
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+import software.amazon.awssdk.protocols.jsoncore.JsonWriter;
+
+/**
+ * A single S3 object that needs to be scanned, regardless of how the event was delivered (direct S3 invoke or SQS).
+ *
+ * @author sjensen
+ * @param bucket
+ * @param key URL decoded object key
+ * @param versionId version the event is about, null for unversioned buckets or when not from an event
+ * @param sequencer S3 event sequencer, orders events for the same key (null when not from an event)
+ * @param eTag ETag of the object the event is about, without quotes (null when not from an event)
+ */
+public record ScanRequest(String bucket, String key, String versionId, String sequencer, String eTag) {
+
+    /**
+     * Request for whatever is currently stored under the key (backfill, scan service).
+     *
+     * @param bucket
+     * @param key
+     */
+    public ScanRequest(String bucket, String key) {
+        this(bucket, key, null, null, null);
+    }
+
+    /**
+     * From an S3 event record delivered directly to the Lambda.
+     *
+     * @param record
+     * @return
+     */
+    public static ScanRequest from(S3EventNotification.S3EventNotificationRecord record) {
+        final var object = record.getS3().getObject();
+        return new ScanRequest(record.getS3().getBucket().getName(), object.getUrlDecodedKey(), object.getVersionId(),
+                object.getSequencer(), object.geteTag());
+    }
+
+    /**
+     * Parse an S3 event notification JSON document, like the body of an SQS message when S3 notifications target a
+     * queue. The s3:TestEvent sent when a notification is configured has no records and yields an empty list.
+     *
+     * @param json
+     * @return
+     */
+    public static List<ScanRequest> fromJson(String json) {
+        final var requests = new ArrayList<ScanRequest>();
+        JsonNode records = JsonNode.parser().parse(json).field("Records").orElse(null);
+        if (records == null || !records.isArray()) {
+            return requests;
+        }
+        for (JsonNode record : records.asArray()) {
+            JsonNode s3 = record.field("s3").orElse(JsonNode.emptyObjectNode());
+            String bucket = s3.field("bucket").flatMap(b -> b.field("name")).map(JsonNode::asString).orElse(null);
+            JsonNode object = s3.field("object").orElse(JsonNode.emptyObjectNode());
+            String key = object.field("key").map(JsonNode::asString).orElse(null);
+            requests.add(new ScanRequest(bucket, key == null ? null : URLDecoder.decode(key, StandardCharsets.UTF_8),
+                    string(object, "versionId"), string(object, "sequencer"), string(object, "eTag")));
+        }
+        return requests;
+    }
+
+    /**
+     * Minimal S3 event notification JSON for this object (key URL encoded like S3 does), readable by
+     * {@link #fromJson(String)}. Used to forward an object to another worker's queue.
+     *
+     * @param size object size in bytes
+     * @return
+     */
+    public String toJson(long size) {
+        try (JsonWriter writer = JsonWriter.create()) {
+            writer.writeStartObject().writeFieldName("Records").writeStartArray()
+                    .writeStartObject()
+                    .writeFieldName("eventSource").writeValue("aws:s3")
+                    .writeFieldName("eventName").writeValue("ObjectCreated:Forwarded")
+                    .writeFieldName("s3").writeStartObject()
+                    .writeFieldName("bucket").writeStartObject()
+                    .writeFieldName("name").writeValue(bucket)
+                    .writeEndObject()
+                    .writeFieldName("object").writeStartObject()
+                    .writeFieldName("key").writeValue(URLEncoder.encode(key, StandardCharsets.UTF_8))
+                    .writeFieldName("size").writeValue(size);
+            // Keep what the forwarded event was about, so the worker scans the same version and can drop duplicates
+            optional(writer, "versionId", versionId);
+            optional(writer, "sequencer", sequencer);
+            optional(writer, "eTag", eTag);
+            writer.writeEndObject()
+                    .writeEndObject()
+                    .writeEndObject()
+                    .writeEndArray().writeEndObject();
+            return new String(writer.getBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Key for idempotency, events are only ordered within the same bucket and key.
+     *
+     * @return
+     */
+    public String objectId() {
+        return bucket + "/" + key;
+    }
+
+    private static String string(JsonNode node, String field) {
+        return node.field(field).filter(JsonNode::isString).map(JsonNode::asString).orElse(null);
+    }
+
+    private static void optional(JsonWriter writer, String field, String value) {
+        if (value != null) {
+            writer.writeFieldName(field).writeValue(value);
+        }
+    }
+
+    /**
+     * Bucket and key must be present to do anything.
+     *
+     * @return
+     */
+    public boolean isValid() {
+        return bucket != null && !bucket.isEmpty() && key != null && !key.isEmpty();
+    }
+}
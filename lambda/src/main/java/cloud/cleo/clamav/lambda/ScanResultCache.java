@@ -0,0 +1,226 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanStatus;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ChecksumType;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Remember scan results by content hash and signature database version so identical content is not scanned again.
+ *
+ * There is always an in-memory LRU tier that lives as long as the warm execution environment. When SCAN_CACHE_BUCKET is
+ * set, results are also shared across environments as small objects in that bucket. Keys include the signature
+ * version, so a definitions update naturally misses the cache and forces a real scan.
+ *
+ * @author sjensen
+ */
+public class ScanResultCache {
+
+    final static Logger log = LogManager.getLogger(ScanResultCache.class);
+
+    // Number of results held in memory per execution environment
+    final static int CACHE_SIZE = EnvConfig.getInt("SCAN_CACHE_SIZE", 10000);
+
+    // Optional bucket for the shared tier
+    final static String CACHE_BUCKET = EnvConfig.getString("SCAN_CACHE_BUCKET", null);
+
+    // Prefix for shared tier objects
+    final static String CACHE_PREFIX = EnvConfig.getString("SCAN_CACHE_PREFIX", "scan-cache/");
+
+    // ETags are MD5 based (colliding content can be crafted), so they are only used as a key when explicitly trusted
+    final static boolean TRUST_ETAG = EnvConfig.getBoolean("SCAN_CACHE_TRUST_ETAG", false);
+
+    final S3AsyncClient s3Client;
+
+    final String bucket;
+
+    final int capacity;
+
+    final Map<String, ScanStatus> memory;
+
+    public ScanResultCache(S3AsyncClient s3Client, String bucket, int capacity) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.capacity = capacity;
+        this.memory = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScanStatus> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * Cache configured from environment.
+     *
+     * @param s3Client
+     * @return
+     */
+    public static ScanResultCache fromEnv(S3AsyncClient s3Client) {
+        return new ScanResultCache(s3Client, CACHE_BUCKET, CACHE_SIZE);
+    }
+
+    /**
+     * Whether results are kept at all, so content is worth hashing just to look it up.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return capacity > 0 || bucket != null;
+    }
+
+    /**
+     * Content identifiers that can be derived from a HEAD response without downloading the object.
+     *
+     * @param head
+     * @return possibly empty list of ids like "sha256:base64" or "etag:hex"
+     */
+    public static List<String> contentIds(HeadObjectResponse head) {
+        final var ids = new ArrayList<String>(2);
+        // Composite (multipart) checksums are a checksum of part checksums, not of the content
+        if (head.checksumSHA256() != null && head.checksumType() != ChecksumType.COMPOSITE) {
+            ids.add(sha256Id(head.checksumSHA256()));
+        }
+        if (TRUST_ETAG && head.eTag() != null) {
+            ids.add("etag:" + head.eTag().replace("\"", ""));
+        }
+        return ids;
+    }
+
+    /**
+     * Id for a base64 SHA-256 of the content (same format S3 uses for checksums).
+     *
+     * @param base64
+     * @return
+     */
+    public static String sha256Id(String base64) {
+        return "sha256:" + base64;
+    }
+
+    /**
+     * Look for a previous result for any of the content ids.
+     *
+     * @param contentIds
+     * @param signatureVersion
+     * @return
+     */
+    public Optional<ScanStatus> get(List<String> contentIds, String signatureVersion) {
+        return getAsync(contentIds, signatureVersion).join();
+    }
+
+    /**
+     * Look for a previous result without waiting on the shared tier. Never completes exceptionally.
+     *
+     * @param contentIds
+     * @param signatureVersion
+     * @return
+     */
+    public CompletableFuture<Optional<ScanStatus>> getAsync(List<String> contentIds, String signatureVersion) {
+        if (SignatureVersion.UNKNOWN.equals(signatureVersion)) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        for (String id : contentIds) {
+            ScanStatus status = memory.get(cacheKey(id, signatureVersion));
+            if (status != null) {
+                log.info("Scan cache hit (memory) for {}: {}", id, status);
+                return CompletableFuture.completedFuture(Optional.of(status));
+            }
+        }
+
+        CompletableFuture<Optional<ScanStatus>> result = CompletableFuture.completedFuture(Optional.empty());
+        if (bucket == null) {
+            return result;
+        }
+        // One id at a time, later ids are only read on a miss
+        for (String id : contentIds) {
+            result = result.thenCompose(found -> found.isPresent()
+                    ? CompletableFuture.completedFuture(found) : getShared(id, signatureVersion));
+        }
+        return result;
+    }
+
+    private CompletableFuture<Optional<ScanStatus>> getShared(String id, String signatureVersion) {
+        String key = cacheKey(id, signatureVersion);
+        return s3Client.getObject(b -> b.bucket(bucket).key(s3Key(key)), AsyncResponseTransformer.toBytes())
+                .thenApply(bytes -> {
+                    ScanStatus status = ScanStatus.valueOf(bytes.asUtf8String().trim());
+                    memory.put(key, status);
+                    log.info("Scan cache hit (shared) for {}: {}", id, status);
+                    return Optional.of(status);
+                })
+                .exceptionally(t -> {
+                    final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                    if (cause instanceof IllegalArgumentException) {
+                        log.warn("Invalid shared scan cache entry for {}", id);
+                    } else if (!(cause instanceof NoSuchKeyException)) {
+                        // Cache is only an optimization, never fail the scan because of it
+                        log.warn("Could not read shared scan cache for {}: {}", id, cause.getMessage());
+                    }
+                    return Optional.empty();
+                });
+    }
+
+    /**
+     * Store a final result under all the content ids. Only CLEAN and INFECTED are definitive, anything else is not
+     * cached. Neither is a result from definitions whose version is unknown, it would never be invalidated.
+     *
+     * @param contentIds
+     * @param signatureVersion
+     * @param status
+     */
+    public void put(List<String> contentIds, String signatureVersion, ScanStatus status) {
+        putAsync(contentIds, signatureVersion, status).join();
+    }
+
+    /**
+     * Store a final result without waiting on the shared tier. Never completes exceptionally.
+     *
+     * @param contentIds
+     * @param signatureVersion
+     * @param status
+     * @return completes once shared writes are done
+     */
+    public CompletableFuture<Void> putAsync(List<String> contentIds, String signatureVersion, ScanStatus status) {
+        if ((status != ScanStatus.CLEAN && status != ScanStatus.INFECTED) || SignatureVersion.UNKNOWN.equals(signatureVersion)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final var writes = new ArrayList<CompletableFuture<?>>();
+        for (String id : contentIds) {
+            String key = cacheKey(id, signatureVersion);
+            memory.put(key, status);
+            if (bucket != null) {
+                writes.add(s3Client.putObject(b -> b.bucket(bucket).key(s3Key(key)), AsyncRequestBody.fromString(status.name()))
+                        .exceptionally(t -> {
+                            log.warn("Could not write shared scan cache for {}: {}", id, t.getMessage());
+                            return null;
+                        }));
+            }
+        }
+        return CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new));
+    }
+
+    private static String cacheKey(String contentId, String signatureVersion) {
+        return signatureVersion + "|" + contentId;
+    }
+
+    private static String s3Key(String cacheKey) {
+        int split = cacheKey.indexOf('|');
+        return CACHE_PREFIX + URLEncoder.encode(cacheKey.substring(0, split), StandardCharsets.UTF_8)
+                + "/" + URLEncoder.encode(cacheKey.substring(split + 1), StandardCharsets.UTF_8);
+    }
+}
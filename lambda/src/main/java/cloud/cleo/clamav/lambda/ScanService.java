@@ -0,0 +1,265 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import static cloud.cleo.clamav.ScanStatus.MAX_BYTES;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
+import org.apache.logging.log4j.CloseableThreadContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.protocols.jsoncore.JsonWriter;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Long running scan service, for buckets busy enough that an always warm container (ECS, EC2) is cheaper than an
+ * invocation per event. Runs the same {@link ObjectScanner} as the Lambda handlers, with one engine and one loaded
+ * signature database shared by every request, and handles each request on its own virtual thread.
+ *
+ * <pre>
+ * POST /scan/s3?bucket=b&amp;key=k  scan and tag an S3 object like the Lambda does, replies with the outcome
+ * POST /scan                      scan the request body (Content-Length required), replies with the result
+ * GET  /health                    200 while the engine can scan, 503 otherwise
+ * </pre>
+ *
+ * Run it from the Lambda image by overriding the entry point:
+ * {@code java -cp '/var/task/lib/*' cloud.cleo.clamav.lambda.ScanService}
+ *
+ * Only listens on loopback unless SERVICE_BIND_ADDRESS says otherwise, and then requires SERVICE_TOKEN as a bearer
+ * token on scan requests, since /scan/s3 reads and tags any object the role can reach.
+ *
+ * @author sjensen
+ */
+public class ScanService {
+
+    final static Logger log = LogManager.getLogger(ScanService.class);
+
+    final static int PORT = EnvConfig.getInt("SERVICE_PORT", 8080);
+
+    // Loopback by default (callers on the same host or task), anything else needs the token
+    final static String BIND_ADDRESS = EnvConfig.getString("SERVICE_BIND_ADDRESS", "127.0.0.1");
+
+    // Bearer token scan requests must carry, optional on loopback
+    final static String TOKEN = EnvConfig.getString("SERVICE_TOKEN", null);
+
+    // There is no invocation deadline, every request gets this long (the scan profile usually allows far less)
+    final static int REQUEST_TIMEOUT_MILLIS = EnvConfig.getInt("SERVICE_REQUEST_TIMEOUT_SECONDS", 300) * 1000;
+
+    final ScanEngine scanEngine;
+
+    final DefinitionsWatcher definitions;
+
+    final ObjectScanner scanner;
+
+    public ScanService(S3AsyncClient s3Client, ScanEngine scanEngine) {
+        this.scanEngine = scanEngine;
+        this.definitions = new DefinitionsWatcher(DefinitionsStore.fromEnv(s3Client), scanEngine);
+        this.scanner = new ObjectScanner(s3Client, scanEngine);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final var service = new ScanService(S3Clients.create(), ScanEngines.create());
+        service.start();
+        final HttpServer server = service.listen(new InetSocketAddress(BIND_ADDRESS, PORT));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log.info("Shutting down");
+            server.stop(5);
+            service.scanEngine.close();
+        }));
+    }
+
+    /**
+     * Load the latest definitions and the engine before taking requests, so no request pays for it.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void start() throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        definitions.refresh();
+        scanEngine.start();
+        log.info("{} engine started in {} ms", scanEngine.name(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Start taking requests, each handled on its own virtual thread.
+     *
+     * @param address
+     * @return the running server
+     * @throws IOException
+     * @throws IllegalStateException when asked to listen beyond loopback without SERVICE_TOKEN
+     */
+    public HttpServer listen(InetSocketAddress address) throws IOException {
+        if (TOKEN == null && !address.getAddress().isLoopbackAddress()) {
+            throw new IllegalStateException("SERVICE_TOKEN is required to listen on " + address);
+        }
+        final HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/scan/s3", this::scanObject);
+        server.createContext("/scan", this::scanUpload);
+        server.createContext("/health", this::health);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        log.info("Scan service listening on {} with scan concurrency {}", address, ObjectScanner.SCAN_CONCURRENCY);
+        return server;
+    }
+
+    private void scanObject(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405, error("POST required"));
+                return;
+            }
+            if (!authorized(exchange)) {
+                reply(exchange, 401, error("bearer token required"));
+                return;
+            }
+            definitions.onInvoke();
+            final Map<String, String> query = query(exchange);
+            final var request = new ScanRequest(query.get("bucket"), query.get("key"));
+            if (!request.isValid()) {
+                reply(exchange, 400, error("bucket and key are required"));
+                return;
+            }
+            try (var ignored = CloseableThreadContext.put("key", request.key())) {
+                final String outcome = scanner.processAsync(request, deadline()).join();
+                try (JsonWriter writer = JsonWriter.create()) {
+                    writer.writeStartObject()
+                            .writeFieldName("bucket").writeValue(request.bucket())
+                            .writeFieldName("key").writeValue(request.key())
+                            .writeFieldName("result").writeValue(outcome)
+                            .writeEndObject();
+                    reply(exchange, 200, writer.getBytes());
+                }
+            } catch (CompletionException e) {
+                // Transient S3 failure, same as a retried event
+                reply(exchange, 503, error(String.valueOf(e.getCause())));
+            }
+        }
+    }
+
+    private void scanUpload(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"/scan".equals(exchange.getRequestURI().getPath())) {
+                reply(exchange, 404, error("not found"));
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405, error("POST required"));
+                return;
+            }
+            if (!authorized(exchange)) {
+                reply(exchange, 401, error("bearer token required"));
+                return;
+            }
+            final long size = contentLength(exchange);
+            if (size < 0) {
+                reply(exchange, 411, error("Content-Length required"));
+                return;
+            }
+            if (size > MAX_BYTES) {
+                reply(exchange, 413, error("content exceeds " + MAX_BYTES + " bytes"));
+                return;
+            }
+            definitions.onInvoke();
+            try (InputStream body = exchange.getRequestBody()) {
+                reply(exchange, 200, json(scanner.scanAsync(body, size, deadline()).join()));
+            } catch (CompletionException e) {
+                log.error("Error scanning upload", e.getCause());
+                reply(exchange, 500, error(String.valueOf(e.getCause())));
+            }
+        }
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final boolean healthy = scanEngine.isHealthy();
+            reply(exchange, healthy ? 200 : 503, error(healthy ? "OK" : "engine unavailable"));
+        }
+    }
+
+    /**
+     * Whether the request carries SERVICE_TOKEN (always when none is set), compared in constant time.
+     */
+    private static boolean authorized(HttpExchange exchange) {
+        if (TOKEN == null) {
+            return true;
+        }
+        final String header = exchange.getRequestHeaders().getFirst("Authorization");
+        return header != null && MessageDigest.isEqual(header.getBytes(StandardCharsets.UTF_8),
+                ("Bearer " + TOKEN).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Time left for a request that starts now.
+     */
+    private static IntSupplier deadline() {
+        final long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT_MILLIS;
+        return () -> (int) Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        try {
+            final String value = exchange.getRequestHeaders().getFirst("Content-Length");
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        final Map<String, String> params = new HashMap<>();
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static byte[] json(ScanResult result) {
+        try (JsonWriter writer = JsonWriter.create()) {
+            writer.writeStartObject()
+                    .writeFieldName("status").writeValue(result.status().name())
+                    .writeFieldName("signatures").writeStartArray();
+            result.signatures().forEach(writer::writeValue);
+            writer.writeEndArray()
+                    .writeFieldName("scannedBytes").writeValue(result.scannedBytes())
+                    .writeFieldName("engineMillis").writeValue(result.engineMillis())
+                    .writeFieldName("engine").writeValue(result.engine())
+                    .writeEndObject();
+            return writer.getBytes();
+        }
+    }
+
+    private static byte[] error(String message) {
+        try (JsonWriter writer = JsonWriter.create()) {
+            writer.writeStartObject().writeFieldName("message").writeValue(message).writeEndObject();
+            return writer.getBytes();
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Determine the version of a signature database directory by reading the headers of the CVD/CLD files in it. The
+ * result looks like "bytecode:335/daily:27000/main:62" and changes whenever any of the databases are updated.
+ *
+ * @author sjensen
+ */
+public final class SignatureVersion {
+
+    final static Logger log = LogManager.getLogger(SignatureVersion.class);
+
+    /**
+     * Version of a directory with no readable databases.
+     */
+    public static final String UNKNOWN = "unknown";
+
+    // CVD and CLD files start with a 512 byte header "ClamAV-VDB:build time:version:signatures:..."
+    final static int HEADER_SIZE = 512;
+
+    // Database directories never change in place (updates go to a new directory, see Definitions), so read each only once
+    final static Map<Path, String> versions = new ConcurrentHashMap<>();
+
+    private SignatureVersion() {
+    }
+
+    /**
+     * Version of the given database directory.
+     *
+     * @param databaseDir
+     * @return version string, or "unknown" if no databases could be read
+     */
+    public static String of(String databaseDir) {
+        return versions.computeIfAbsent(Path.of(databaseDir), SignatureVersion::read);
+    }
+
+    /**
+     * Read the version of a directory without remembering it, for directories that are updated in place (like the
+     * freshclam working directory).
+     *
+     * @param dir
+     * @return
+     */
+    static String read(Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            String version = files
+                    .filter(f -> f.toString().endsWith(".cvd") || f.toString().endsWith(".cld"))
+                    .sorted()
+                    .map(SignatureVersion::readHeader)
+                    .filter(v -> v != null)
+                    .collect(Collectors.joining("/"));
+            log.info("Signature database version for {}: {}", dir, version);
+            return version.isEmpty() ? UNKNOWN : version;
+        } catch (IOException e) {
+            log.warn("Could not read signature database directory {}: {}", dir, e.getMessage());
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Version of a single CVD/CLD file like "daily:27000".
+     *
+     * @param file
+     * @return version, or null if not a readable database file
+     */
+    static String readHeader(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            String[] fields = new String(in.readNBytes(HEADER_SIZE), StandardCharsets.US_ASCII).split(":");
+            if (fields.length < 3 || !fields[0].startsWith("ClamAV-VDB")) {
+                return null;
+            }
+            String name = file.getFileName().toString();
+            return name.substring(0, name.lastIndexOf('.')) + ":" + fields[2];
+        } catch (IOException e) {
+            log.warn("Could not read header of {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package cloud.cleo.clamav.lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Consume batches of S3 Object create events from SQS and scan several objects at once. Only the messages that fail
+ * are reported back so SQS redelivers just those.
+ *
+ * With an engine that pays a fixed cost per scan call (clamscan), the whole batch is downloaded first and scanned in
+ * one call per scan profile instead of one call per object.
+ *
+ * @author sjensen
+ */
+public class SqsScanningLambda implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    // Create an S3 client with CRT Async (better download performance and Async calls)
+    final static S3AsyncClient s3Client = S3Clients.create();
+
+    // Configure a Log4j2 logger.
+    final static Logger log = LogManager.getLogger(SqsScanningLambda.class);
+
+    // Scan engine lives for the life of the execution environment (clamd stays loaded between invocations)
+    final static ScanEngine scanEngine = ScanEngines.create();
+
+    // Pick up definitions published since the image was built (when DEFINITIONS_BUCKET is set)
+    final static DefinitionsWatcher definitions = new DefinitionsWatcher(DefinitionsStore.fromEnv(s3Client), scanEngine);
+
+    // Start loading signatures now so the first event does not pay the full load time
+    final static EnginePreloader preloader = EnginePreloader.preload(scanEngine, definitions);
+
+    final static ObjectScanner scanner = new ObjectScanner(s3Client, scanEngine);
+
+    // Queue ARN to lane name ("priority=arn:...,bulk=arn:..."), set by the stack when priority lanes are deployed
+    final static Map<String, String> LANES = lanes(EnvConfig.getString("SCAN_LANES", ""));
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
+        final boolean coldStart = preloader.onInvoke();
+        definitions.onInvoke();
+        log.info("Processing batch of {} messages with scan concurrency {}", event.getRecords().size(),
+                ObjectScanner.SCAN_CONCURRENCY);
+        final List<Long> eventAges = queueMetrics(event);
+
+        final var messages = new LinkedHashMap<String, List<ScanRequest>>();
+        event.getRecords().forEach(message -> messages.put(message.getMessageId(), parse(message)));
+        // Duplicate and superseded events are dropped against the whole batch, not just what came before them
+        messages.values().forEach(scanner::observe);
+
+        // Every object is started at once, the scanner limits how many are actually scanning
+        final var futures = new LinkedHashMap<String, CompletableFuture<Void>>();
+        if (scanner.batches() && event.getRecords().size() > 1) {
+            futures.putAll(processBatch(messages, context, coldStart));
+        } else {
+            messages.forEach((messageId, requests) -> futures.put(messageId, CompletableFuture.allOf(requests.stream()
+                    .map(request -> scanner.processAsync(request, context, coldStart))
+                    .toArray(CompletableFuture[]::new))));
+        }
+
+        final List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<>();
+        futures.forEach((messageId, future) -> {
+            try {
+                future.join();
+            } catch (RuntimeException e) {
+                log.error("Scan failed for message {}, will be retried", messageId, e);
+                failures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+            }
+        });
+
+        if (!failures.isEmpty()) {
+            log.warn("{} of {} messages failed", failures.size(), event.getRecords().size());
+        }
+        ScanMetrics.load(scanner.peakInFlight(), eventAges);
+        return new SQSBatchResponse(failures);
+    }
+
+    /**
+     * Scan every object in the batch together, then fail each message whose objects need a retry.
+     */
+    private Map<String, CompletableFuture<Void>> processBatch(Map<String, List<ScanRequest>> messages, Context context,
+            boolean coldStart) {
+        final List<ScanRequest> requests = new ArrayList<>();
+        final List<String> messageIds = new ArrayList<>();
+        messages.forEach((messageId, parsed) -> parsed.forEach(request -> {
+            requests.add(request);
+            messageIds.add(messageId);
+        }));
+
+        final List<CompletableFuture<Void>> results = scanner.processBatch(requests, context, coldStart);
+        final var byMessage = new LinkedHashMap<String, List<CompletableFuture<Void>>>();
+        messages.keySet().forEach(messageId -> byMessage.put(messageId, new ArrayList<>()));
+        for (int i = 0; i < results.size(); i++) {
+            byMessage.get(messageIds.get(i)).add(results.get(i));
+        }
+
+        final var futures = new LinkedHashMap<String, CompletableFuture<Void>>();
+        byMessage.forEach((messageId, objects) -> futures.put(messageId,
+                CompletableFuture.allOf(objects.toArray(CompletableFuture[]::new))));
+        return futures;
+    }
+
+    /**
+     * Emit how long the messages waited in their queue, per lane, so the latency of each lane can be tracked against
+     * its SLO.
+     *
+     * @return the wait of every message, whatever its lane
+     */
+    private static List<Long> queueMetrics(SQSEvent event) {
+        final long now = System.currentTimeMillis();
+        final var ages = new LinkedHashMap<String, List<Long>>();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            final String sent = message.getAttributes() != null ? message.getAttributes().get("SentTimestamp") : null;
+            if (sent == null) {
+                continue;
+            }
+            final String lane = LANES.getOrDefault(message.getEventSourceArn(), "default");
+            ages.computeIfAbsent(lane, l -> new ArrayList<>()).add(Math.max(0, now - Long.parseLong(sent)));
+        }
+        ages.forEach(ScanMetrics::queue);
+        return ages.values().stream().flatMap(List::stream).toList();
+    }
+
+    static Map<String, String> lanes(String config) {
+        final Map<String, String> lanes = new HashMap<>();
+        for (String entry : config.split(",")) {
+            final String[] parts = entry.trim().split("=", 2);
+            if (parts.length == 2) {
+                lanes.put(parts[1].trim(), parts[0].trim());
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * The scan requests in a message, none when it can not be parsed.
+     */
+    private List<ScanRequest> parse(SQSEvent.SQSMessage message) {
+        final List<ScanRequest> requests;
+        try {
+            requests = ScanRequest.fromJson(message.getBody());
+        } catch (RuntimeException e) {
+            // Retrying will never fix a bad message, so log and drop it
+            log.error("Could not parse S3 event from message {}: {}", message.getMessageId(), message.getBody(), e);
+            return List.of();
+        }
+
+        if (requests.isEmpty()) {
+            log.debug("No S3 records in message {} (likely s3:TestEvent)", message.getMessageId());
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,75 @@
+package cloud.cleo.clamav.lambda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Limits on tasks in flight, and handing slots on without recursing.
+ *
+ * @author sjensen
+ */
+public class AsyncLimiterTest {
+
+    @Test
+    public void waitingTasksStartAsSlotsFreeUp() {
+        final var limiter = new AsyncLimiter(2);
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        final AtomicInteger started = new AtomicInteger();
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final var future = new CompletableFuture<Integer>();
+            futures.add(future);
+            results.add(limiter.submit(() -> {
+                started.incrementAndGet();
+                return future;
+            }));
+        }
+        assertEquals(2, started.get());
+
+        futures.get(0).complete(0);
+        assertEquals(3, started.get());
+        assertEquals(0, results.get(0).join());
+        assertFalse(results.get(2).isDone());
+
+        futures.get(2).completeExceptionally(new IllegalStateException());
+        assertTrue(results.get(2).isCompletedExceptionally());
+    }
+
+    @Test
+    public void longQueueOfCompletedTasksDoesNotRecurse() {
+        final var limiter = new AsyncLimiter(1);
+        final var first = new CompletableFuture<Integer>();
+        final CompletableFuture<Integer> blocked = limiter.submit(() -> first);
+
+        // Each of these completes as soon as it starts, releasing its slot to the next
+        final int tasks = 100_000;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger most = new AtomicInteger();
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            final int n = i;
+            results.add(limiter.submit(() -> {
+                most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                running.decrementAndGet();
+                return CompletableFuture.completedFuture(n);
+            }));
+        }
+
+        first.complete(-1);
+        assertEquals(-1, blocked.join());
+        for (int i = 0; i < tasks; i++) {
+            assertEquals(i, results.get(i).join());
+        }
+        assertEquals(1, most.get());
+
+        // Nothing left holding the slot
+        assertEquals(7, limiter.submit(() -> CompletableFuture.completedFuture(7)).join());
+        assertEquals(0, limiter.running);
+    }
+}
@@ -0,0 +1,164 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Publish definitions from a file:// mirror to an in-memory store and pick them up with the watcher, the same path a
+ * scheduled update and a warm scanner take.
+ *
+ * @author sjensen
+ */
+public class DefinitionsUpdaterTest {
+
+    private static final String PREFIX = "clamav-defs/";
+
+    // Never scans, reload is the default (the new definitions are in use once it returns)
+    private static final ScanEngine ENGINE = new ScanEngine() {
+        @Override
+        public ScanResult scan(Path file, long timeoutMillis) {
+            throw new AssertionError("Unexpected scan");
+        }
+
+        @Override
+        public ScanResult scan(InputStream in, long timeoutMillis) {
+            throw new AssertionError("Unexpected scan");
+        }
+
+        @Override
+        public String name() {
+            return "test";
+        }
+    };
+
+    @TempDir
+    Path tmp;
+
+    final InMemoryS3 s3 = new InMemoryS3();
+
+    final Path initial = Definitions.directory();
+
+    Path image;
+
+    Path mirror;
+
+    DefinitionsStore store;
+
+    DefinitionsUpdater updater;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        image = Files.createDirectories(tmp.resolve("image"));
+        mirror = Files.createDirectories(tmp.resolve("mirror"));
+        database(image.resolve("main.cvd"), 62);
+        database(image.resolve("daily.cvd"), 27400);
+        store = new DefinitionsStore(s3, "defs", PREFIX);
+        updater = new DefinitionsUpdater(store, mirror.toUri().toString(), tmp.resolve("work"), image);
+    }
+
+    @AfterEach
+    public void restoreDefinitions() {
+        Definitions.activate(initial);
+    }
+
+    /**
+     * Just enough of a CVD/CLD header for the version to be read.
+     */
+    private static void database(Path file, int version) throws IOException {
+        Files.writeString(file, "ClamAV-VDB:17 Oct 2026 10-00 +0000:" + version + ":1000:90:sig:builder:0\n"
+                + file.getFileName() + " " + version, StandardCharsets.US_ASCII);
+    }
+
+    private String object(String key) {
+        return new String(s3.objects.get(PREFIX + key), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void publishesCurrentAndVersionsLayout() throws IOException {
+        database(mirror.resolve("daily.cld"), 27401);
+
+        assertEquals("PUBLISHED daily-27401_main-62", updater.handleRequest(Map.of(), null));
+
+        assertEquals("daily-27401_main-62\ndaily.cld daily:27401\nmain.cvd main:62\n", object("CURRENT"));
+        assertArrayEquals(Files.readAllBytes(mirror.resolve("daily.cld")),
+                s3.objects.get(PREFIX + "versions/daily-27401_main-62/daily.cld"));
+        assertArrayEquals(Files.readAllBytes(image.resolve("main.cvd")),
+                s3.objects.get(PREFIX + "versions/daily-27401_main-62/main.cvd"));
+        // The older daily.cvd is replaced, not published next to the newer daily.cld
+        assertEquals(3, s3.objects.size());
+    }
+
+    @Test
+    public void unchangedDefinitionsAreNotPublishedAgain() {
+        assertEquals("PUBLISHED daily-27400_main-62", updater.handleRequest(Map.of(), null));
+        final int uploads = s3.uploads.get();
+
+        assertEquals("UNCHANGED daily-27400_main-62", updater.handleRequest(Map.of(), null));
+        assertEquals(uploads, s3.uploads.get());
+    }
+
+    @Test
+    public void unchangedFilesAreCopiedWithinTheStore() throws IOException {
+        updater.handleRequest(Map.of(), null);
+        database(mirror.resolve("daily.cld"), 27401);
+
+        assertEquals("PUBLISHED daily-27401_main-62", updater.handleRequest(Map.of(), null));
+        assertEquals(1, s3.copies.get());
+        assertTrue(object("versions/daily-27401_main-62/main.cvd").startsWith("ClamAV-VDB"));
+    }
+
+    @Test
+    public void watcherActivatesTheNewRelease() throws IOException {
+        Definitions.activate(image);
+        database(mirror.resolve("daily.cld"), 27401);
+        updater.handleRequest(Map.of(), null);
+
+        final Path root = tmp.resolve("releases");
+        final var watcher = new DefinitionsWatcher(Optional.of(store), ENGINE, root);
+        watcher.refresh();
+
+        final Path release = root.resolve("daily-27401_main-62");
+        assertEquals(release, Definitions.directory());
+        assertEquals("daily:27401/main:62", Definitions.version());
+        // Same main version as the one in use, so it is linked rather than downloaded
+        assertTrue(Files.isSameFile(image.resolve("main.cvd"), release.resolve("main.cvd")));
+        assertTrue(Files.exists(image.resolve("daily.cvd")), "Image definitions are never deleted");
+
+        // Nothing new, nothing changes
+        watcher.refresh();
+        assertEquals(release, Definitions.directory());
+    }
+
+    @Test
+    public void watcherKeepsPreviousReleaseForScansInFlight() throws IOException {
+        Definitions.activate(image);
+        database(mirror.resolve("daily.cld"), 27401);
+        updater.handleRequest(Map.of(), null);
+        final Path root = tmp.resolve("releases");
+        final var watcher = new DefinitionsWatcher(Optional.of(store), ENGINE, root);
+        watcher.refresh();
+
+        database(mirror.resolve("daily.cld"), 27402);
+        assertEquals("PUBLISHED daily-27402_main-62", updater.handleRequest(Map.of(), null));
+        watcher.refresh();
+
+        assertEquals(root.resolve("daily-27402_main-62"), Definitions.directory());
+        // The engine reads the database on every scan, scans started before the switch may still be using it
+        assertTrue(Files.exists(root.resolve("daily-27401_main-62").resolve("daily.cld")));
+        assertFalse(watcher.retired.isEmpty());
+    }
+}
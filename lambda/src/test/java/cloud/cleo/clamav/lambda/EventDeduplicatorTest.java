@@ -0,0 +1,111 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.lambda.EventDeduplicator.Claim;
+import cloud.cleo.clamav.lambda.EventDeduplicator.Outcome;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * In-memory tier of the deduplicator (no shared bucket, so nothing goes to S3).
+ *
+ * @author sjensen
+ */
+public class EventDeduplicatorTest {
+
+    private static ScanRequest event(String key, String sequencer) {
+        return new ScanRequest("bucket", key, null, sequencer, "etag");
+    }
+
+    private static Claim admit(EventDeduplicator dedup, ScanRequest request) {
+        return dedup.admit(request).join();
+    }
+
+    @Test
+    public void duplicateDeliveryIsDroppedOnceHandled() {
+        final var dedup = new EventDeduplicator(null, null, 100);
+        final Claim claim = admit(dedup, event("a", "0A"));
+        assertEquals(Outcome.SCAN, claim.outcome());
+
+        // Still being scanned, a redelivery must not start a second scan
+        assertEquals(Outcome.DUPLICATE, admit(dedup, event("a", "0A")).outcome());
+
+        dedup.complete(claim, true).join();
+        assertEquals(Outcome.DUPLICATE, admit(dedup, event("a", "0A")).outcome());
+    }
+
+    @Test
+    public void failedScanIsReleasedForRedelivery() {
+        final var dedup = new EventDeduplicator(null, null, 100);
+        dedup.complete(admit(dedup, event("a", "0A")), false).join();
+
+        assertEquals(Outcome.SCAN, admit(dedup, event("a", "0A")).outcome());
+    }
+
+    @Test
+    public void supersededEventInSameBatchIsStale() {
+        final var dedup = new EventDeduplicator(null, null, 100);
+        final var older = event("a", "0A");
+        final var newer = event("a", "0B");
+        dedup.observe(List.of(older, newer));
+
+        // The older one comes first in the batch but a newer upload is already known
+        assertEquals(Outcome.STALE, admit(dedup, older).outcome());
+        assertEquals(Outcome.SCAN, admit(dedup, newer).outcome());
+        assertFalse(dedup.isCurrent(older));
+        assertTrue(dedup.isCurrent(newer));
+    }
+
+    @Test
+    public void outOfOrderEventIsStale() {
+        final var dedup = new EventDeduplicator(null, null, 100);
+        assertEquals(Outcome.SCAN, admit(dedup, event("a", "0B")).outcome());
+        assertEquals(Outcome.STALE, admit(dedup, event("a", "0A")).outcome());
+
+        // Other keys are ordered on their own
+        assertEquals(Outcome.SCAN, admit(dedup, event("b", "0A")).outcome());
+    }
+
+    @Test
+    public void requestsWithoutSequencerAreAlwaysScanned() {
+        final var dedup = new EventDeduplicator(null, null, 100);
+        final var request = new ScanRequest("bucket", "a");
+        assertEquals(Outcome.SCAN, admit(dedup, request).outcome());
+        assertEquals(Outcome.SCAN, admit(dedup, request).outcome());
+        assertTrue(dedup.isCurrent(request));
+    }
+
+    @Test
+    public void evictedKeysAreForgotten() {
+        final var dedup = new EventDeduplicator(null, null, 1);
+        dedup.complete(admit(dedup, event("a", "0A")), true).join();
+        assertEquals(Outcome.DUPLICATE, admit(dedup, event("a", "0A")).outcome());
+
+        // Only one key fits, admitting another evicts the first
+        assertEquals(Outcome.SCAN, admit(dedup, event("b", "0A")).outcome());
+        assertTrue(dedup.isCurrent(event("a", "00")));
+        assertEquals(Outcome.SCAN, admit(dedup, event("a", "0A")).outcome());
+    }
+
+    @Test
+    public void noLocalCacheStillAdmits() {
+        for (int capacity : new int[]{0, -1}) {
+            final var dedup = new EventDeduplicator(null, null, capacity);
+            dedup.observe(List.of(event("a", "0A"), event("b", "0B")));
+            final Claim claim = admit(dedup, event("a", "0A"));
+            assertEquals(Outcome.SCAN, claim.outcome());
+            assertEquals(Outcome.SCAN, admit(dedup, event("b", "0B")).outcome());
+            dedup.complete(claim, false).join();
+        }
+    }
+
+    @Test
+    public void sequencersCompareRightPadded() {
+        assertEquals(0, EventDeduplicator.compare("0A", "0A00"));
+        assertTrue(EventDeduplicator.compare("0A", "0A01") < 0);
+        assertTrue(EventDeduplicator.compare("0B", "0A1234") > 0);
+        assertTrue(EventDeduplicator.compare("005f2a", "005F2B") < 0);
+    }
+}
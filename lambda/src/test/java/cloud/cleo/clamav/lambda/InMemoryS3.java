@@ -0,0 +1,136 @@
+package cloud.cleo.clamav.lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+/**
+ * Single bucket S3 stand-in holding objects in memory, just the calls the definitions store makes.
+ *
+ * @author sjensen
+ */
+class InMemoryS3 implements S3AsyncClient {
+
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    final AtomicInteger uploads = new AtomicInteger();
+
+    final AtomicInteger copies = new AtomicInteger();
+
+    @Override
+    public <T> CompletableFuture<T> getObject(GetObjectRequest request,
+            AsyncResponseTransformer<GetObjectResponse, T> transformer) {
+        final byte[] bytes = objects.get(request.key());
+        if (bytes == null) {
+            return CompletableFuture.failedFuture(NoSuchKeyException.builder().message(request.key()).build());
+        }
+        final CompletableFuture<T> result = transformer.prepare();
+        transformer.onResponse(GetObjectResponse.builder().contentLength((long) bytes.length).build());
+        transformer.onStream(SdkPublisher.adapt(subscriber -> subscriber.onSubscribe(new Subscription() {
+            boolean sent;
+
+            @Override
+            public void request(long n) {
+                if (!sent) {
+                    sent = true;
+                    subscriber.onNext(ByteBuffer.wrap(bytes));
+                    subscriber.onComplete();
+                }
+            }
+
+            @Override
+            public void cancel() {
+            }
+        })));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<GetObjectResponse> getObject(GetObjectRequest request, Path destination) {
+        final byte[] bytes = objects.get(request.key());
+        if (bytes == null) {
+            return CompletableFuture.failedFuture(NoSuchKeyException.builder().message(request.key()).build());
+        }
+        try {
+            Files.write(destination, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return CompletableFuture.completedFuture(GetObjectResponse.builder().contentLength((long) bytes.length).build());
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody body) {
+        final var content = new CompletableFuture<byte[]>();
+        body.subscribe(new Subscriber<ByteBuffer>() {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.writeBytes(bytes);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                content.completeExceptionally(t);
+            }
+
+            @Override
+            public void onComplete() {
+                content.complete(out.toByteArray());
+            }
+        });
+        return content.thenApply(bytes -> {
+            objects.put(request.key(), bytes);
+            uploads.incrementAndGet();
+            return PutObjectResponse.builder().eTag("\"" + uploads.get() + "\"").build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<CopyObjectResponse> copyObject(CopyObjectRequest request) {
+        final byte[] bytes = objects.get(request.sourceKey());
+        if (bytes == null) {
+            return CompletableFuture.failedFuture(NoSuchKeyException.builder().message(request.sourceKey()).build());
+        }
+        objects.put(request.destinationKey(), bytes);
+        copies.incrementAndGet();
+        return CompletableFuture.completedFuture(CopyObjectResponse.builder().build());
+    }
+
+    @Override
+    public String serviceName() {
+        return "s3";
+    }
+
+    @Override
+    public void close() {
+    }
+}
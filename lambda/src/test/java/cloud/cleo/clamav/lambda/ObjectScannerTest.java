@@ -0,0 +1,123 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectTaggingRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectTaggingResponse;
+
+/**
+ * Checks made on the HEAD response before an object is scanned, against an in-memory S3 that only answers HEAD and
+ * tagging calls.
+ *
+ * @author sjensen
+ */
+public class ObjectScannerTest {
+
+    /**
+     * One object, larger than MAX_BYTES so an object that gets past the checks is tagged without a scan.
+     */
+    private static class FakeS3 implements S3AsyncClient {
+
+        final String eTag;
+
+        final String versionId;
+
+        // Version tagged (empty for the current object) to the status written
+        final Map<String, String> tagged = new ConcurrentHashMap<>();
+
+        FakeS3(String eTag, String versionId) {
+            this.eTag = eTag;
+            this.versionId = versionId;
+        }
+
+        @Override
+        public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+            return CompletableFuture.completedFuture(HeadObjectResponse.builder()
+                    .contentLength(ScanStatus.MAX_BYTES + 1L).eTag('"' + eTag + '"').versionId(versionId).build());
+        }
+
+        @Override
+        public CompletableFuture<GetObjectTaggingResponse> getObjectTagging(GetObjectTaggingRequest request) {
+            return CompletableFuture.completedFuture(GetObjectTaggingResponse.builder().tagSet(List.of()).build());
+        }
+
+        @Override
+        public CompletableFuture<PutObjectTaggingResponse> putObjectTagging(PutObjectTaggingRequest request) {
+            tagged.put(request.versionId() == null ? "" : request.versionId(),
+                    request.tagging().tagSet().get(0).value());
+            return CompletableFuture.completedFuture(PutObjectTaggingResponse.builder().build());
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Never reached, every object here is dealt with before the scan
+    private static final ScanEngine ENGINE = new ScanEngine() {
+        @Override
+        public ScanResult scan(Path file, long timeoutMillis) {
+            throw new AssertionError("Unexpected scan");
+        }
+
+        @Override
+        public ScanResult scan(InputStream in, long timeoutMillis) {
+            throw new AssertionError("Unexpected scan");
+        }
+
+        @Override
+        public String name() {
+            return "test";
+        }
+    };
+
+    private static String process(FakeS3 s3, ScanRequest request) {
+        final var scanner = new ObjectScanner(s3, ENGINE, new ScanResultCache(null, null, 0),
+                new LargeObjectRouter(null, 0), new KnownHashes(null, null, null), new EventDeduplicator(null, null, 100));
+        return scanner.processAsync(request, () -> 60000).join();
+    }
+
+    @Test
+    public void overwrittenUnversionedObjectIsStale() {
+        final var s3 = new FakeS3("new", null);
+        assertEquals(EventDeduplicator.Outcome.STALE.name(),
+                process(s3, new ScanRequest("bucket", "key", null, "0A", "old")));
+        assertTrue(s3.tagged.isEmpty(), "Stale event must not tag the newer upload");
+    }
+
+    @Test
+    public void unchangedObjectIsProcessed() {
+        final var s3 = new FakeS3("same", null);
+        assertEquals(ScanStatus.FILE_SIZE_EXCEEED.name(),
+                process(s3, new ScanRequest("bucket", "key", null, "0A", "same")));
+        assertEquals(Map.of("", ScanStatus.FILE_SIZE_EXCEEED.name()), s3.tagged);
+    }
+
+    @Test
+    public void versionedObjectIsNeverStaleAndTagsItsVersion() {
+        // The event names the version, so a different current ETag says nothing about it
+        final var s3 = new FakeS3("other", "v1");
+        assertEquals(ScanStatus.FILE_SIZE_EXCEEED.name(),
+                process(s3, new ScanRequest("bucket", "key", "v1", "0A", "old")));
+        assertEquals(Map.of("v1", ScanStatus.FILE_SIZE_EXCEEED.name()), s3.tagged);
+    }
+}
@@ -0,0 +1,90 @@
+package cloud.cleo.clamav.lambda;
+
+import cloud.cleo.clamav.ScanResult;
+import cloud.cleo.clamav.ScanStatus;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Deadlines predicted from the throughput a profile has learned. Each test uses its own profile since what a profile
+ * learns is kept for the life of the execution environment.
+ *
+ * @author sjensen
+ */
+public class ScanProfileTest {
+
+    private static final long SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Reports the given scan time, after taking longer than that to answer (startup, receiving the content).
+     */
+    private static ScanEngine engine(long scanMillis) {
+        return new ScanEngine() {
+            @Override
+            public ScanResult scan(Path file, long timeoutMillis) {
+                throw new AssertionError("Unexpected scan");
+            }
+
+            @Override
+            public ScanResult scan(InputStream in, long timeoutMillis) {
+                throw new AssertionError("Unexpected scan");
+            }
+
+            @Override
+            public long scanMillis(ScanResult result) {
+                return scanMillis;
+            }
+
+            @Override
+            public String name() {
+                return "test";
+            }
+        };
+    }
+
+    private static ScanResult slowScan(long engineMillis) throws InterruptedException {
+        Thread.sleep(200);
+        return new ScanResult(ScanStatus.CLEAN, List.of(), SIZE, engineMillis, "test");
+    }
+
+    // Deadline once SIZE bytes in scanMillis is all the profile has seen
+    private static long predicted(long scanMillis) {
+        return (long) (ScanProfile.ProfileConfig.MIN_MILLIS + ScanProfile.ProfileConfig.FACTOR * SIZE / ((double) SIZE / scanMillis));
+    }
+
+    @Test
+    public void learnsFromEngineTimeOnly() throws Exception {
+        final var engine = engine(100);
+        ScanProfile.MEDIA.timed(SIZE, engine, Long.MAX_VALUE, timeout -> slowScan(100));
+
+        // 10 MB in the 100 ms the engine reported, not the 200+ ms the caller waited
+        assertEquals(predicted(100), ScanProfile.MEDIA.deadlineMillis(SIZE, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void learnsFromEngineTimeAsync() {
+        final var engine = engine(50);
+        ScanProfile.ARCHIVE.timedAsync(SIZE, engine, Long.MAX_VALUE,
+                timeout -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return slowScan(50);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                })).join();
+
+        assertEquals(predicted(50), ScanProfile.ARCHIVE.deadlineMillis(SIZE, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void unknownScanTimeIsNotLearned() throws Exception {
+        final long before = ScanProfile.FULL.deadlineMillis(SIZE, 0, Long.MAX_VALUE);
+        ScanProfile.FULL.timed(SIZE, engine(-1), Long.MAX_VALUE, timeout -> slowScan(-1));
+
+        assertEquals(before, ScanProfile.FULL.deadlineMillis(SIZE, 0, Long.MAX_VALUE));
+    }
+}
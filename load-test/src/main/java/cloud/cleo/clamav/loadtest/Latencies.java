@@ -0,0 +1,55 @@
+package cloud.cleo.clamav.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Millisecond samples for one measurement, summarized as percentiles.
+ *
+ * @author sjensen
+ */
+public class Latencies {
+
+    final String name;
+
+    final List<Long> samples = new ArrayList<>();
+
+    public Latencies(String name) {
+        this.name = name;
+    }
+
+    public synchronized void add(long millis) {
+        samples.add(millis);
+    }
+
+    /**
+     * One line with count, p50, p90, p99 and max.
+     *
+     * @return
+     */
+    public synchronized String summary() {
+        if (samples.isEmpty()) {
+            return String.format("%-16s %8s", name, "-");
+        }
+        final long[] sorted = samples.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return String.format("%-16s %8d %8d %8d %8d %8d", name, sorted.length,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1]);
+    }
+
+    /**
+     * Header matching {@link #summary()}.
+     *
+     * @return
+     */
+    public static String header() {
+        return String.format("%-16s %8s %8s %8s %8s %8s", "(ms)", "count", "p50", "p90", "p99", "max");
+    }
+
+    // Nearest rank
+    private static long percentile(long[] sorted, int percentile) {
+        final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
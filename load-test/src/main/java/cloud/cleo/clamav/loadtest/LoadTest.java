@@ -0,0 +1,223 @@
+package cloud.cleo.clamav.loadtest;
+
+import static cloud.cleo.clamav.ScanStatus.SCAN_TAG_NAME;
+import cloud.cleo.clamav.ScanStatus;
+import cloud.cleo.clamav.lambda.Corpus;
+import cloud.cleo.clamav.lambda.ScanningLambda;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3BucketEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3Entity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3ObjectEntity;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+
+/**
+ * Replay generated S3 events through {@link ScanningLambda} against {@link LocalS3Server} at a target rate, then report
+ * latency percentiles per phase (from the scanner's own EMF lines), end to end latency and throughput. Runs offline, so
+ * engine and pipeline changes can be measured before deploying. Needs ClamAV installed like the benchmarks do.
+ *
+ * Events are sent on a fixed schedule whether or not earlier ones have finished, and end to end latency is measured from
+ * the scheduled time, so falling behind shows up as latency instead of a silently lower rate.
+ *
+ * Configured with environment variables (the Lambda itself reads its usual ones, like SCAN_ENGINE and STAGING_MODE):
+ * <ul>
+ * <li>LOADTEST_MIX - weighted samples, see {@link Corpus#sample(String)} (default
+ * text-64KB:40,random-1MB:25,pdf-256KB:10,jpeg-2MB:10,zip-1MB:10,eicar:5)</li>
+ * <li>LOADTEST_RATE - events per second (default 5)</li>
+ * <li>LOADTEST_DURATION_SECONDS - how long to send events for (default 60)</li>
+ * <li>LOADTEST_CONCURRENCY - invocations running at once, like Lambda concurrency (default 4)</li>
+ * <li>LOADTEST_PORT - port of the local S3, must match S3_ENDPOINT_URL (default 9090)</li>
+ * </ul>
+ *
+ * @author sjensen
+ */
+public class LoadTest {
+
+    final static Logger log = LogManager.getLogger(LoadTest.class);
+
+    final static String MIX = getEnv("LOADTEST_MIX", "text-64KB:40,random-1MB:25,pdf-256KB:10,jpeg-2MB:10,zip-1MB:10,eicar:5");
+    final static double RATE = Double.parseDouble(getEnv("LOADTEST_RATE", "5"));
+    final static int DURATION_SECONDS = Integer.parseInt(getEnv("LOADTEST_DURATION_SECONDS", "60"));
+    final static int CONCURRENCY = Integer.parseInt(getEnv("LOADTEST_CONCURRENCY", "4"));
+    final static int PORT = Integer.parseInt(getEnv("LOADTEST_PORT", "9090"));
+    final static Path METRICS_FILE = Path.of(getEnv("LOADTEST_METRICS_FILE", "target/loadtest-metrics.jsonl"));
+
+    // Same as the deployed function
+    final static long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    final static int MEMORY_MB = 3009;
+
+    final static String BUCKET = "load-test";
+
+    // Phases reported from the EMF lines, in pipeline order
+    final static List<String> PHASES = List.of("HeadMillis", "DownloadMillis", "ScanMillis", "EngineMillis", "TagMillis", "TotalMillis");
+
+    /**
+     * A sample and how often it is picked relative to the others.
+     */
+    record Weighted(String sample, int weight) {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<Weighted> mix = parseMix(MIX);
+        final int events = (int) Math.ceil(RATE * DURATION_SECONDS);
+
+        try (LocalS3Server s3 = new LocalS3Server(PORT)) {
+            final List<String> keys = createObjects(s3, mix, events);
+
+            long start = System.nanoTime();
+            final ScanningLambda handler = new ScanningLambda();
+            log.info("Handler initialized in {} ms", (System.nanoTime() - start) / 1_000_000);
+
+            log.info("Sending {} events at {}/sec with concurrency {}, mix {}", events, RATE, CONCURRENCY, MIX);
+            final Latencies endToEnd = new Latencies("EndToEnd");
+            final AtomicInteger failures = new AtomicInteger();
+            final Semaphore concurrency = new Semaphore(CONCURRENCY);
+            final long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / RATE);
+
+            start = System.nanoTime();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < events; i++) {
+                    final long scheduled = start + i * intervalNanos;
+                    LockSupport.parkNanos(scheduled - System.nanoTime());
+                    final String key = keys.get(i);
+                    final long size = s3.objects.get(BUCKET + "/" + key).length;
+                    executor.submit(() -> {
+                        try {
+                            concurrency.acquire();
+                            try {
+                                handler.handleRequest(event(key, size), new LoadTestContext(TIMEOUT_MILLIS, MEMORY_MB));
+                            } finally {
+                                concurrency.release();
+                            }
+                        } catch (InterruptedException | RuntimeException e) {
+                            failures.incrementAndGet();
+                            log.error("Invocation for {} failed", key, e);
+                        } finally {
+                            endToEnd.add((System.nanoTime() - scheduled) / 1_000_000);
+                        }
+                    });
+                }
+            } // Waits for everything submitted
+            final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+            report(s3, keys, endToEnd, failures.get(), elapsedSeconds);
+        }
+        // The scan engine keeps non-daemon threads and processes running
+        System.exit(0);
+    }
+
+    /**
+     * Put the objects for every event into the local S3, picked by weight. Content is generated once per sample and
+     * shared between keys (the scan cache is disabled so each key is still scanned).
+     */
+    private static List<String> createObjects(LocalS3Server s3, List<Weighted> mix, int events) {
+        final int totalWeight = mix.stream().mapToInt(Weighted::weight).sum();
+        final Map<String, byte[]> content = new ConcurrentHashMap<>();
+        final Random random = new Random(42);
+        final List<String> keys = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            int pick = random.nextInt(totalWeight);
+            String sample = mix.getLast().sample();
+            for (Weighted w : mix) {
+                if ((pick -= w.weight()) < 0) {
+                    sample = w.sample();
+                    break;
+                }
+            }
+            final String key = sample + "/" + String.format("%06d", i);
+            s3.putObject(BUCKET, key, content.computeIfAbsent(sample, Corpus::sample));
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static void report(LocalS3Server s3, List<String> keys, Latencies endToEnd, int failures, double elapsedSeconds)
+            throws IOException {
+        final Map<String, Latencies> phases = new LinkedHashMap<>();
+        PHASES.forEach(phase -> phases.put(phase, new Latencies(phase.replace("Millis", ""))));
+        final Map<String, Integer> results = new TreeMap<>();
+        long bytes = 0;
+        if (Files.exists(METRICS_FILE)) {
+            for (String line : Files.readAllLines(METRICS_FILE)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                final JsonNode emf = JsonNode.parser().parse(line);
+                for (String phase : PHASES) {
+                    emf.field(phase).ifPresent(v -> phases.get(phase).add(Long.parseLong(v.asNumber())));
+                }
+                bytes += emf.field("ObjectSize").map(v -> Long.parseLong(v.asNumber())).orElse(0L);
+                results.merge(emf.field("Result").map(JsonNode::asString).orElse("?"), 1, Integer::sum);
+            }
+        } else {
+            log.warn("No metrics in {}, is METRICS_ENABLED off?", METRICS_FILE);
+        }
+
+        // EICAR samples should all be tagged INFECTED and nothing else should be
+        int missed = 0;
+        int falsePositives = 0;
+        for (String key : keys) {
+            final boolean infected = ScanStatus.INFECTED.name().equals(s3.getTags(BUCKET, key).get(SCAN_TAG_NAME));
+            final boolean expected = key.startsWith("eicar");
+            if (expected && !infected) {
+                missed++;
+            } else if (!expected && infected) {
+                falsePositives++;
+            }
+        }
+
+        final var out = new StringBuilder("\n");
+        out.append(Latencies.header()).append('\n');
+        phases.values().forEach(l -> out.append(l.summary()).append('\n'));
+        out.append(endToEnd.summary()).append('\n');
+        out.append(String.format("%nThroughput: %.1f objects/sec, %.1f MB/sec over %.1f sec (target %.1f/sec)%n",
+                keys.size() / elapsedSeconds, bytes / elapsedSeconds / (1024 * 1024), elapsedSeconds, RATE));
+        out.append("Results: ").append(results).append('\n');
+        out.append(String.format("Failed invocations: %d, EICAR missed: %d, false positives: %d%n", failures, missed, falsePositives));
+        log.info(out);
+    }
+
+    private static S3EventNotification event(String key, long size) {
+        final var s3 = new S3Entity("load-test",
+                new S3BucketEntity(BUCKET, null, "arn:aws:s3:::" + BUCKET),
+                new S3ObjectEntity(URLEncoder.encode(key, StandardCharsets.UTF_8), size, null, null, null),
+                "1.0");
+        return new S3EventNotification(List.of(new S3EventNotificationRecord("us-east-1", "ObjectCreated:Put", "aws:s3",
+                null, "2.1", null, null, s3, null)));
+    }
+
+    static List<Weighted> parseMix(String mix) {
+        final List<Weighted> weighted = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            final String[] parts = entry.trim().split(":");
+            weighted.add(new Weighted(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1));
+        }
+        return weighted;
+    }
+
+    private static String getEnv(String name, String defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+}
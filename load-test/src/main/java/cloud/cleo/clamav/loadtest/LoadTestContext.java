@@ -0,0 +1,92 @@
+package cloud.cleo.clamav.loadtest;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Lambda context for one simulated invocation, with the same timeout as the deployed function.
+ *
+ * @author sjensen
+ */
+public class LoadTestContext implements Context {
+
+    final String requestId = UUID.randomUUID().toString();
+
+    final long deadline;
+
+    final int memoryMb;
+
+    public LoadTestContext(long timeoutMillis, int memoryMb) {
+        this.deadline = System.currentTimeMillis() + timeoutMillis;
+        this.memoryMb = memoryMb;
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/load-test";
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return "load-test";
+    }
+
+    @Override
+    public String getFunctionName() {
+        return "load-test";
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:us-east-1:000000000000:function:load-test";
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return memoryMb;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                System.out.print(message);
+            }
+
+            @Override
+            public void log(byte[] message) {
+                log(new String(message, StandardCharsets.UTF_8));
+            }
+        };
+    }
+}
@@ -0,0 +1,198 @@
+package cloud.cleo.clamav.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Minimal S3 compatible HTTP endpoint holding objects in memory, so the real client (CRT, signing, ranged GETs) is
+ * exercised without AWS. Path style only, request signatures are not checked.
+ *
+ * Supports what the scanner uses: HEAD and GET of an object (whole, a byte range or part 1) and GET/PUT of its tagging.
+ *
+ * @author sjensen
+ */
+public class LocalS3Server implements AutoCloseable {
+
+    final static Logger log = LogManager.getLogger(LocalS3Server.class);
+
+    final static Pattern TAG = Pattern.compile("<Tag>\\s*<Key>(.*?)</Key>\\s*<Value>(.*?)</Value>\\s*</Tag>", Pattern.DOTALL);
+
+    final static String LAST_MODIFIED = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    final Map<String, Map<String, String>> tags = new ConcurrentHashMap<>();
+
+    final HttpServer server;
+
+    public LocalS3Server(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 512);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+        server.start();
+        log.info("Local S3 listening on http://localhost:{}", port);
+    }
+
+    public void putObject(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, content);
+        tags.remove(bucket + "/" + key);
+    }
+
+    /**
+     * Tags currently on an object.
+     *
+     * @param bucket
+     * @param key
+     * @return
+     */
+    public Map<String, String> getTags(String bucket, String key) {
+        return tags.getOrDefault(bucket + "/" + key, Map.of());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // Path is /bucket/key, raw so encoded characters in keys survive
+            final String path = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring(1), StandardCharsets.UTF_8);
+            final boolean tagging = query(exchange, "tagging") != null;
+            final String method = exchange.getRequestMethod();
+
+            if (tagging && "GET".equals(method)) {
+                getTagging(exchange, path);
+            } else if (tagging && "PUT".equals(method)) {
+                putTagging(exchange, path);
+            } else if ("HEAD".equals(method) || "GET".equals(method)) {
+                getObject(exchange, path, "HEAD".equals(method));
+            } else {
+                error(exchange, 501, "NotImplemented", method + " is not supported");
+            }
+        } catch (RuntimeException e) {
+            log.error("Request failed", e);
+            throw e;
+        }
+    }
+
+    private void getObject(HttpExchange exchange, String path, boolean headOnly) throws IOException {
+        final byte[] content = objects.get(path);
+        if (content == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        int first = 0;
+        int last = content.length - 1;
+        int status = 200;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && content.length > 0) {
+            final String[] parts = range.substring("bytes=".length()).split("-", -1);
+            first = Integer.parseInt(parts[0]);
+            if (!parts[1].isEmpty()) {
+                last = Math.min(last, Integer.parseInt(parts[1]));
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+        }
+        if (query(exchange, "partNumber") != null) {
+            // Objects are never multipart uploaded here, so the whole object is part 1
+            exchange.getResponseHeaders().set("x-amz-mp-parts-count", "1");
+        }
+        final int length = Math.max(0, last - first + 1);
+        exchange.getResponseHeaders().set("ETag", etag(content));
+        exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("Content-Type", "binary/octet-stream");
+        if (headOnly) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, first, length);
+        }
+    }
+
+    private void getTagging(HttpExchange exchange, String path) throws IOException {
+        if (!objects.containsKey(path)) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        final var xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<Tagging xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><TagSet>");
+        getTags(path.substring(0, path.indexOf('/')), path.substring(path.indexOf('/') + 1))
+                .forEach((key, value) -> xml.append("<Tag><Key>").append(key).append("</Key><Value>")
+                .append(value).append("</Value></Tag>"));
+        xml.append("</TagSet></Tagging>");
+        send(exchange, 200, xml.toString());
+    }
+
+    private void putTagging(HttpExchange exchange, String path) throws IOException {
+        if (!objects.containsKey(path)) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        final String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        final Map<String, String> tagSet = new LinkedHashMap<>();
+        final Matcher matcher = TAG.matcher(body);
+        while (matcher.find()) {
+            tagSet.put(matcher.group(1), matcher.group(2));
+        }
+        tags.put(path, tagSet);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private static String query(HttpExchange exchange, String name) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            final String[] parts = param.split("=", 2);
+            if (parts[0].equals(name)) {
+                return parts.length > 1 ? parts[1] : "";
+            }
+        }
+        return null;
+    }
+
+    private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        send(exchange, status, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>"
+                + message + "</Message></Error>");
+    }
+
+    private static void send(HttpExchange exchange, int status, String xml) throws IOException {
+        final byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String etag(byte[] content) {
+        return "\"" + Integer.toHexString(System.identityHashCode(content)) + "\"";
+    }
+}
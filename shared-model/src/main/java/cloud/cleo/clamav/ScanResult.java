@@ -0,0 +1,57 @@
+package cloud.cleo.clamav;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of scanning one piece of content: the status used for tagging plus what the engine reported along the way.
+ *
+ * @param status CLEAN, INFECTED or ERROR
+ * @param signatures names of the signatures that matched, in the order reported, empty unless INFECTED
+ * @param scannedBytes data the engine scanned (clamscan counts archive contents after unpacking), -1 when not known
+ * @param engineMillis time the engine reported for the scan (clamscan includes loading the database), -1 when not
+ * known
+ * @param engine name of the engine that produced the result
+ */
+public record ScanResult(ScanStatus status, List<String> signatures, long scannedBytes, long engineMillis, String engine) {
+
+    public ScanResult {
+        signatures = List.copyOf(signatures);
+    }
+
+    /**
+     * Result with only a status, when the engine reported nothing else (timed out, no time left to scan).
+     *
+     * @param status
+     * @param engine
+     * @return
+     */
+    public static ScanResult of(ScanStatus status, String engine) {
+        return new ScanResult(status, List.of(), -1, -1, engine);
+    }
+
+    /**
+     * Combine the results for parts of the same content (archive members scanned separately). INFECTED wins over ERROR
+     * which wins over CLEAN, each signature is kept once and sizes and times add up.
+     *
+     * @param other
+     * @return
+     */
+    public ScanResult merge(ScanResult other) {
+        final List<String> merged = new ArrayList<>(signatures);
+        other.signatures().stream().filter(s -> !merged.contains(s)).forEach(merged::add);
+        return new ScanResult(worst(status, other.status()), merged, add(scannedBytes, other.scannedBytes()),
+                add(engineMillis, other.engineMillis()), engine);
+    }
+
+    private static ScanStatus worst(ScanStatus a, ScanStatus b) {
+        if (a == ScanStatus.INFECTED || b == ScanStatus.INFECTED) {
+            return ScanStatus.INFECTED;
+        }
+        return a == ScanStatus.ERROR || b == ScanStatus.ERROR ? ScanStatus.ERROR : a;
+    }
+
+    private static long add(long a, long b) {
+        return a < 0 ? b : b < 0 ? a : a + b;
+    }
+}
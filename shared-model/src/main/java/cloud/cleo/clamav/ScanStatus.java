@@ -57,8 +57,27 @@ public enum ScanStatus {
         ONLY_TAG_INFECTED = onlyTagInfected;
     }
 
-    // Max size in bytes to process (100MB is safe given 512MB /tmp in Lambda)
-    public final static int MAX_BYTES = 100000000;
+    /**
+     * Max size in bytes to process. The default of 100MB is safe given 512MB /tmp in Lambda when objects are staged to
+     * disk. When objects are streamed to the scanner nothing is written to /tmp, so this can be raised with the
+     * MAX_BYTES env var and the real limit becomes how long a scan takes.
+     */
+    public final static int MAX_BYTES;
+
+    static {
+        int maxBytes = 100000000; // Default to 100MB
+        String envValue = System.getenv("MAX_BYTES");
+
+        if (envValue != null && !envValue.isBlank()) {
+            try {
+                maxBytes = Integer.parseInt(envValue.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("WARNING: Invalid value for MAX_BYTES: " + envValue + " (defaulting to " + maxBytes + ")");
+            }
+        }
+
+        MAX_BYTES = maxBytes;
+    }
 
     // Function Name for the Lambda
     public static final String LAMBDA_NAME = "ClamavLambdaFunction";
@@ -79,6 +98,8 @@ public enum ScanStatus {
                 System.out.println(LAMBDA_ALIAS_NAME);
             case "SCAN_TAG_NAME" ->
                 System.out.println(SCAN_TAG_NAME);
+            case "MAX_BYTES" ->
+                System.out.println(MAX_BYTES);
             default -> {
                 System.err.println("Unknown constant: " + args[0]);
                 System.exit(2);